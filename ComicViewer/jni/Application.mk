@@ -2,5 +2,6 @@ APP_MODULES := pdf fitz fitzdraw jpeg apv jbig2dec openjpeg
 APP_OPTIM := release
 # APP_OPTIM := debug
 APP_ABI := armeabi-v7a armeabi x86
-APP_PLATFORM := android-3
+# android-8: the first platform with jnigraphics
+APP_PLATFORM := android-8
 
@@ -1,9 +1,11 @@
 
 #include <string.h>
 #include <wctype.h>
+#include <pthread.h>
 #include <jni.h>
 
 #include "android/log.h"
+#include "android/bitmap.h"
 
 #include "apvcore.h"
 #include "apvandroid.h"
@@ -19,6 +21,19 @@ apv_alloc_state_t *apv_alloc_state = NULL;
 fz_alloc_context *fitz_alloc_context = NULL;
 fz_context *fitz_context = NULL;
 
+/* one mutex for each lock of fitz: documents opened with cloned contexts can render in parallel */
+static pthread_mutex_t apv_mutexes[FZ_LOCK_MAX];
+
+static void apv_lock(void *user, int lock) {
+    pthread_mutex_lock(&((pthread_mutex_t*)user)[lock]);
+}
+
+static void apv_unlock(void *user, int lock) {
+    pthread_mutex_unlock(&((pthread_mutex_t*)user)[lock]);
+}
+
+static fz_locks_context apv_locks = { apv_mutexes, apv_lock, apv_unlock };
+
 
 int get_descriptor_from_file_descriptor(JNIEnv *env, jobject this);
 
@@ -77,7 +92,11 @@ Java_cx_hell_android_lib_pdf_PDF_init(
     } else {
         // fz_context *fz_new_context(fz_alloc_context *alloc, fz_locks_context *locks, unsigned int max_store);
         __android_log_print(ANDROID_LOG_DEBUG, PDFVIEW_LOG_TAG, "creating fitz_context with max_store: %d", (int)max_store);
-        fitz_context = fz_new_context(fitz_alloc_context, NULL, max_store);
+        int i;
+        for(i = 0; i < FZ_LOCK_MAX; ++i) {
+            pthread_mutex_init(&apv_mutexes[i], NULL);
+        }
+        fitz_context = fz_new_context(fitz_alloc_context, &apv_locks, max_store);
         if (fitz_context == NULL) {
             __android_log_print(ANDROID_LOG_ERROR, PDFVIEW_LOG_TAG, "failed to create fitz_context"); // TODO: display error to user
         }
@@ -85,6 +104,19 @@ Java_cx_hell_android_lib_pdf_PDF_init(
 }
 
 
+/**
+ * Implementation of native method PDF.isThreadSafe.
+ * Each pdf_t has its own clone of fitz_context, and fitz_context has locks:
+ * different PDF objects can be used from different threads at the same time.
+ */
+JNIEXPORT jboolean JNICALL
+Java_cx_hell_android_lib_pdf_PDF_isThreadSafe(
+        JNIEnv *env,
+        jclass clazz) {
+    return JNI_TRUE;
+}
+
+
 JNIEXPORT void JNICALL
 Java_cx_hell_android_lib_pdf_PDF_deinit(
         JNIEnv *env,
@@ -266,6 +298,82 @@ Java_cx_hell_android_lib_pdf_PDF_renderPage(
 }
 
 
+/**
+ * Implementation of native method PDF.renderPageToBitmap.
+ * Renders a part of a page straight into the pixels of a bitmap, converting
+ * them to the format of the bitmap. No Java arrays are created.
+ * Supported formats: RGB_565 and ARGB_8888.
+ * @return 0 on success, an error code if the page could not be rendered
+ */
+JNIEXPORT jint JNICALL
+Java_cx_hell_android_lib_pdf_PDF_renderPageToBitmap(
+        JNIEnv *env,
+        jobject this,
+        jint pageno,
+        jint zoom,
+        jint left,
+        jint top,
+        jint rotation,
+        jboolean skipImages,
+        jobject bitmap) {
+    AndroidBitmapInfo info;
+    void *pixels = NULL;
+    pdf_t *pdf = NULL;
+    fz_pixmap *image = NULL;
+    unsigned char *src = NULL;
+    int width, height, x, y;
+
+    pdf = get_pdf_from_this(env, this);
+    if (pdf == NULL) {
+        return 1;
+    }
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        return 2;
+    }
+    if (info.format != ANDROID_BITMAP_FORMAT_RGB_565 && info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+        APV_LOG_PRINT(APV_LOG_ERROR, "unsupported bitmap format %d", info.format);
+        return 2;
+    }
+
+    image = get_page_image_bitmap(pdf, pageno, zoom, left, top, rotation, skipImages, info.width, info.height);
+    if (image == NULL) {
+        return 3;
+    }
+    width = MIN(fz_pixmap_width(pdf->ctx, image), (int)info.width);
+    height = MIN(fz_pixmap_height(pdf->ctx, image), (int)info.height);
+
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        fz_drop_pixmap(pdf->ctx, image);
+        return 4;
+    }
+    /* samples are B, G, R, A bytes */
+    src = fz_pixmap_samples(pdf->ctx, image);
+    for(y = 0; y < height; ++y) {
+        unsigned char *s = src + y * fz_pixmap_width(pdf->ctx, image) * 4;
+        if (info.format == ANDROID_BITMAP_FORMAT_RGB_565) {
+            uint16_t *d = (uint16_t*)((char*)pixels + y * info.stride);
+            for(x = 0; x < width; ++x, s += 4) {
+                d[x] = ((s[2] & 0xf8) << 8) | ((s[1] & 0xfc) << 3) | (s[0] >> 3);
+            }
+        } else {
+            unsigned char *d = (unsigned char*)pixels + y * info.stride;
+            for(x = 0; x < width; ++x, s += 4, d += 4) {
+                d[0] = s[2];
+                d[1] = s[1];
+                d[2] = s[0];
+                d[3] = s[3];
+            }
+        }
+    }
+    AndroidBitmap_unlockPixels(env, bitmap);
+    fz_drop_pixmap(pdf->ctx, image);
+
+    maybe_free_cache(pdf);
+
+    return 0;
+}
+
+
 JNIEXPORT jint JNICALL
 Java_cx_hell_android_lib_pdf_PDF_getPageSize(
         JNIEnv *env,
@@ -225,7 +225,8 @@ pdf_t* create_pdf_t(fz_context *context, fz_alloc_context *alloc_context, apv_al
 
     pdf = malloc(sizeof(pdf_t));
 
-    pdf->ctx = context;
+    /* each pdf_t has its own context (and exception stack), so different pdf_t can be used in parallel */
+    pdf->ctx = fz_clone_context(context);
     pdf->alloc_context = alloc_context;
     pdf->alloc_state = alloc_state;
     pdf->doc = NULL;
@@ -246,8 +247,11 @@ void free_pdf_t(pdf_t *pdf) {
         fz_close_document(pdf->doc);
         pdf->doc = NULL;
     }
-    /* pdf->ctx is a "reference" pointer */
-    pdf->ctx = NULL;
+    /* pdf->ctx is a clone of the shared context */
+    if (pdf->ctx) {
+        fz_free_context(pdf->ctx);
+        pdf->ctx = NULL;
+    }
     /* pdf->alloc_state is a "reference" pointer */
     pdf->alloc_state = NULL;
     free(pdf);
@@ -374,7 +378,7 @@ pdf_t* parse_pdf_file(const char *filename, int fileno, const char* password, fz
     } else {
         stream = fz_open_fd(pdf->ctx, fileno);
     }
-    pdf->doc = (fz_document*) pdf_open_document_with_stream(context, stream);
+    pdf->doc = (fz_document*) pdf_open_document_with_stream(pdf->ctx, stream);
     fz_close(stream); /* pdf->doc holds ref */
 
     pdf->invalid_password = 0;
@@ -3,21 +3,80 @@ package com.juanvvc.comicviewer;
 import java.io.File;
 
 import android.app.ListActivity;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.View;
-import android.widget.ArrayAdapter;
 import android.widget.ListView;
+import android.widget.ResourceCursorAdapter;
+import android.widget.TextView;
 
 /** This activity shows a list of book marks on the screen.
  *
  * If the calling intent used the extra "comicid", only
  * the bookmarks of that comic are shown.
+ *
+ * The bookmarks are read with a single query in the background, and the list
+ * reads the rows from the cursor only when they are shown. There is no limit
+ * to the number of bookmarks. Before the query, the bookmarks that are still
+ * in the ProgressJournal are written to the database.
  * @author juanvi
  *
  */
 public class BookmarksExplorer extends ListActivity {
-	/** The bookmarks to show on the list */
-	private BookmarkInfo[] bookmarks;
+	/** The adapter of the list, on the cursor of the bookmarks. */
+	private BookmarksAdapter adapter;
+	/** Queries the bookmarks in the background. */
+	private AsyncTask<Long, Void, Cursor> query = null;
+
+	/** Shows a bookmark of a row of the cursor. */
+	private static class BookmarksAdapter extends ResourceCursorAdapter {
+		/** Column of the page in the cursor. */
+		private int pageColumn = -1;
+		/** Column of the path of the comic in the cursor. */
+		private int pathColumn = -1;
+		/** Column of the id of the comic in the cursor. */
+		private int comicColumn = -1;
+
+		/** @param context The context of the list */
+		BookmarksAdapter(final Context context) {
+			super(context, android.R.layout.simple_list_item_1, null, 0);
+		}
+
+		@Override
+		public Cursor swapCursor(final Cursor c) {
+			if (c != null) {
+				this.pageColumn = c.getColumnIndex("page");
+				this.pathColumn = c.getColumnIndex("path");
+				this.comicColumn = c.getColumnIndex("comicid");
+			}
+			return super.swapCursor(c);
+		}
+
+		@Override
+		public void bindView(final View view, final Context context, final Cursor c) {
+			TextView tv = (TextView) view.findViewById(android.R.id.text1);
+			tv.setText(context.getText(R.string.page) + " "
+					+ (c.getInt(this.pageColumn) + 1) + " "
+					+ context.getText(R.string.in) + " \""
+					+ (new File(c.getString(this.pathColumn))).getName() + "\".");
+		}
+
+		/** @param position A row of the list
+		 * @return The page of the bookmark in the row */
+		int getPage(final int position) {
+			Cursor c = (Cursor) this.getItem(position);
+			return c.getInt(this.pageColumn);
+		}
+
+		/** @param position A row of the list
+		 * @return The comic of the bookmark in the row */
+		long getComicId(final int position) {
+			Cursor c = (Cursor) this.getItem(position);
+			return c.getLong(this.comicColumn);
+		}
+	}
 
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -29,35 +88,51 @@ public class BookmarksExplorer extends ListActivity {
 				&& getIntent().getExtras().containsKey("comicid")) {
 			comicid = getIntent().getExtras().getLong("comicid");
 		}
-		
-		// get the bookmarks of this comic from the database
-		ComicDBHelper db = new ComicDBHelper(this);
-		this.bookmarks = db.getBookmarks(comicid);
-
-		// if any bookmarks, construct the list
-		if (this.bookmarks != null) {
-			String[] values = new String[this.bookmarks.length];
-			for (int i = 0; i < this.bookmarks.length; i++) {
-				ComicInfo ci = db.getComicInfo(this.bookmarks[i].comicid);
-				values[i] = getText(R.string.page) + " "
-						+ (this.bookmarks[i].page + 1) + " "
-						+ getText(R.string.in) + " \""
-						+ (new File(ci.uri)).getName() + "\".";
+
+		this.adapter = new BookmarksAdapter(this);
+		setListAdapter(this.adapter);
+
+		// get the bookmarks from the database, in the background
+		final ComicDBHelper db = ComicDBHelper.getInstance(this);
+		final ProgressJournal journal = ProgressJournal.getInstance(this);
+		this.query = new AsyncTask<Long, Void, Cursor>() {
+			@Override
+			protected Cursor doInBackground(final Long... params) {
+				journal.sync();
+				Cursor c = db.queryBookmarks(params[0]);
+				// reads the first rows now, and not in the UI thread
+				c.getCount();
+				return c;
 			}
 
-			ArrayAdapter<String> adapter = new ArrayAdapter<String>(this,
-					android.R.layout.simple_list_item_1, android.R.id.text1,
-					values);
-			setListAdapter(adapter);
-		}
+			@Override
+			protected void onPostExecute(final Cursor c) {
+				adapter.changeCursor(c);
+			}
+
+			@Override
+			protected void onCancelled(final Cursor c) {
+				if (c != null) {
+					c.close();
+				}
+			}
+		}.execute(comicid);
+	}
+
+	@Override
+	protected void onDestroy() {
+		this.query.cancel(false);
+		// closes the cursor
+		this.adapter.changeCursor(null);
+		super.onDestroy();
 	}
 
 	/** An item was clicked.
 	 * Finish and inform the caller about the page and comicid of the selected bookmark.
 	 */
 	protected final void onListItemClick(final ListView l, final View v, final int position, final long id) {
-		getIntent().putExtra("page", this.bookmarks[position].page);
-		getIntent().putExtra("comicid", this.bookmarks[position].comicid);
+		getIntent().putExtra("page", this.adapter.getPage(position));
+		getIntent().putExtra("comicid", this.adapter.getComicId(position));
 		setResult(RESULT_OK, getIntent());
 		finish();
 	}
@@ -0,0 +1,188 @@
+package com.juanvvc.comicviewer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+
+/** Helpers for the small files that the application keeps between runs:
+ * indexes, snapshots and journals.
+ *
+ * The file about a source file is named after the hash and the length of the path
+ * of the source. It starts with a header with the version of its format, the path,
+ * the size and the modification time of the source: the file is valid while the
+ * header matches, and the path detects collisions of the names.
+ *
+ * Files are written to a temporary file and then renamed, so readers never see a
+ * half-written file. Files that cannot be rebuilt are also synced to the disk before
+ * the rename, so they survive if the device dies. Files that can be rebuilt are not:
+ * syncing is slow, and a lost file is only a cache miss. These files may also be
+ * written in the background thread of the cache files.
+ *
+ * @author juanvi
+ */
+public final class CacheFile {
+	/** Writes the content of a file. */
+	public interface Content {
+		/**
+		 * @param out The stream of the file
+		 * @throws IOException After any problem. The file is not changed
+		 */
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/** A tag for logging. */
+	private static final String TAG = "CacheFile";
+	/** Writes files in the background, one at a time. Created when needed. */
+	private static ExecutorService executor = null;
+
+	/** Do not create instances of this class. */
+	private CacheFile() {
+	}
+
+	/**
+	 * @param dir The directory of the file
+	 * @param source The source file
+	 * @param extension The extension of the file, with the dot
+	 * @return The file about the source file
+	 */
+	public static File getFile(final File dir, final File source, final String extension) {
+		String path = source.getAbsolutePath();
+		return new File(dir, Integer.toHexString(path.hashCode()) + "_" + Integer.toHexString(path.length()) + extension);
+	}
+
+	/**
+	 * Writes the header of a file about a source file.
+	 * @param out The stream of the file
+	 * @param version The version of the format of the file
+	 * @param source The source file
+	 * @throws IOException After any problem
+	 */
+	public static void writeHeader(final DataOutputStream out, final int version, final File source) throws IOException {
+		out.writeInt(version);
+		out.writeUTF(source.getAbsolutePath());
+		out.writeLong(source.length());
+		out.writeLong(source.lastModified());
+	}
+
+	/**
+	 * Reads the header of a file about a source file.
+	 * @param in The stream of the file
+	 * @param version The current version of the format of the file
+	 * @param source The source file
+	 * @return True if the header is about the current version of the source file
+	 * @throws IOException After any problem
+	 */
+	public static boolean checkHeader(final DataInputStream in, final int version, final File source) throws IOException {
+		return in.readInt() == version
+				&& in.readUTF().equals(source.getAbsolutePath())
+				&& in.readLong() == source.length()
+				&& in.readLong() == source.lastModified();
+	}
+
+	/**
+	 * Skips the header of a file about a source file, without checking it.
+	 * @param in The stream of the file
+	 * @throws IOException After any problem
+	 */
+	public static void skipHeader(final DataInputStream in) throws IOException {
+		in.readInt();
+		in.readUTF();
+		in.readLong();
+		in.readLong();
+	}
+
+	/**
+	 * @param f A file
+	 * @return A buffered stream to read the file. Close it with close()
+	 * @throws IOException If the file cannot be opened
+	 */
+	public static DataInputStream open(final File f) throws IOException {
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+	}
+
+	/**
+	 * Replaces a file atomically. The parent directory is created if needed.
+	 * @param f The file
+	 * @param content Writes the content of the file
+	 * @param durable If set, the file is synced to the disk before it replaces the old one.
+	 * Use it only for files that cannot be rebuilt
+	 * @throws IOException After any problem. Then, the file is not changed
+	 */
+	public static void write(final File f, final Content content, final boolean durable) throws IOException {
+		File parent = f.getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs()) {
+			throw new IOException("Cannot create " + parent.getPath());
+		}
+		File tmp = new File(f.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		boolean done = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			content.write(out);
+			out.flush();
+			if (durable) {
+				// else, the rename may reach the disk before the data
+				fos.getFD().sync();
+			}
+			out.close();
+			if (!tmp.renameTo(f)) {
+				throw new IOException("Cannot rename " + tmp.getName());
+			}
+			done = true;
+		} finally {
+			close(fos);
+			if (!done) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/** Runs a task that writes files in the background thread of the cache files.
+	 * Tasks run one at a time, in order.
+	 * @param task The task */
+	public static void execute(final Runnable task) {
+		getExecutor().execute(task);
+	}
+
+	/** @return The executor of the background writes. */
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable runnable) {
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							runnable.run();
+						}
+					}, TAG);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/** Closes a stream, ignoring errors.
+	 * @param c The stream. May be null */
+	public static void close(final Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+}
@@ -2,16 +2,11 @@ package com.juanvvc.comicviewer;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
 
-import com.juanvvc.comicviewer.readers.Reader;
-
 /**
  * Manages a collection of comics. A collection of comics is an ordered set of
  * comics that are (hopefully) related. The most common collection is a
@@ -66,6 +61,8 @@ public class ComicCollection extends ArrayList<ComicInfo> {
 	 * Collections are the directory and any subdirectory (at any level).
 	 * This method only creates one level of collections: top directories and
 	 * subdirectories are all of them collections of the same level.
+	 * Directories are scanned with a LibraryScanner: only the directories that
+	 * changed since the last scan are listed again.
 	 *
 	 * @param context The context of the application.
 	 * @param root The root directory to scan.
@@ -76,25 +73,9 @@ public class ComicCollection extends ArrayList<ComicInfo> {
 			return null;
 		}
 		ArrayList<ComicCollection> collections = new ArrayList<ComicCollection>();
-		ComicCollection rootCol = new ComicCollection(root.getName()).populate(context, root);
-		if (rootCol != null && !rootCol.isEmpty()) {
-			collections.add(rootCol);
-		}
-
-		ArrayList<File> contents = new ArrayList<File>(Arrays.asList(root.listFiles()));
-		Iterator<File> itr = contents.iterator();
-		while (itr.hasNext()) {
-			File nf = itr.next();
-			if (nf.getName().startsWith(".")) {
-				// remove from the list hidden files/directories
-				itr.remove();
-			} else if (!nf.isDirectory() || nf.getName().equals(GalleryExplorerActivity.THUMBNAILS)) {
-				// remove from the list normal files and the thumbnails directory
-				itr.remove();
-			} else {
-				// if it passed the tests, recursive scan on the directory
-				collections.addAll(ComicCollection.getCollections(context, nf));
-			}
+		Map<File, List<File>> comics = new LibraryScanner(context, root).scan();
+		for (Map.Entry<File, List<File>> e: comics.entrySet()) {
+			collections.add(new ComicCollection(e.getKey().getName()).populate(context, e.getKey(), e.getValue()));
 		}
 		return collections;
 	}
@@ -113,39 +94,37 @@ public class ComicCollection extends ArrayList<ComicInfo> {
 	 * @return A reference to self
 	 */
 	public final ComicCollection populate(final Context context, final File root) {
+		List<File> files = LibraryScanner.listComics(root);
+		if (files == null) {
+			files = new ArrayList<File>();
+		}
+		return this.populate(context, root, files);
+	}
+
+	/**
+	 * Creates a collection from a list of comics of a directory.
+	 *
+	 * @param context The context of the application
+	 * @param root The root directory of the collection
+	 * @param files The comics of the collection, sorted
+	 * @return A reference to self
+	 */
+	final ComicCollection populate(final Context context, final File root, final List<File> files) {
 		this.clear();
 		this.rootDir = root;
 
-		// get the files in the directory
-		ArrayList<File> f = new ArrayList<File>(Arrays.asList(root.listFiles()));
-		// sort the names alphabetically
-		Collections.sort(f, new Comparator<File>() {
-			public int compare(final File lhs, final File rhs) {
-				String n1 = lhs.getName();
-				String n2 = rhs.getName();
-				return n1.compareTo(n2);
-			}
-		});
+		// get the information of all the comics of the directory from the database at once
+		ComicDBHelper db = ComicDBHelper.getInstance(context);
+		Map<String, ComicInfo> infos = db.getComicInfos(root.getAbsolutePath());
 
 		// create the collection
-		Iterator<File> itr = f.iterator();
-		ComicDBHelper db = new ComicDBHelper(context);
-		while (itr.hasNext()) {
-			File nf = itr.next();
-			// remove from the list the thumbnails directory and any other hidden dir/file
-			if (nf.getName().equals(GalleryExplorerActivity.THUMBNAILS) || nf.getName().startsWith(".")) {
-				continue;
-			} else if (!Reader.existsReader(nf.getAbsolutePath())) {
-				// if there is not a manager for the file, continue
-				continue;
-			}
-
+		for (File nf: files) {
 			// get the information from the database, if exists
 			// we do not want to UPDATE the database: if the information is no
 			// there, create one
 			// Comics are only inserted into the database when read for the
 			// first time, to save resources
-			ComicInfo c = db.getComicInfo(db.getComicID(nf.getAbsolutePath(), false));
+			ComicInfo c = infos.get(nf.getAbsolutePath());
 			if (c == null) {
 				c = new ComicInfo();
 				c.uri = nf.getAbsolutePath();
@@ -157,7 +136,6 @@ public class ComicCollection extends ArrayList<ComicInfo> {
 			c.collection = this;
 			add(c);
 		}
-		db.close();
 		return this;
 	}
 
@@ -1,49 +1,127 @@
 package com.juanvvc.comicviewer;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 /**
  * Access to the internal comic database.
  *
+ * There is a single helper for the whole application: get it with getInstance().
+ * The connection is opened the first time it is used and it is never closed,
+ * since opening a database is much slower than any query. The database uses
+ * write-ahead logging, so readers do not wait for writers.
+ * The helper can be used from any thread.
+ *
  * @author juanvi
  */
 public class ComicDBHelper extends SQLiteOpenHelper {
 	/** The name of this database. */
 	private static final String DATABASE_NAME = "comicdb.db";
 	/** The version of this database. */
-	private static final int DATABASE_VERSION = 5;
+	private static final int DATABASE_VERSION = 6;
 	/** A tag to be used in debugging. */
 	private static final String TAG = "database";
-	/** The max number of bookmarks to return. */
-	public static final int MAX_NUMBER_BOOKMARKS = 100;
+
+	/** The helper of the application. */
+	private static ComicDBHelper instance = null;
+	/** Gets the id of a comic from its path. */
+	private SQLiteStatement findComic = null;
+	/** Inserts a new comic. */
+	private SQLiteStatement insertComic = null;
 
 	/** Creates this helper.
 	 * @param context The context of the application
 	 */
-	public ComicDBHelper(final Context context) {
+	private ComicDBHelper(final Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 	}
 
+	/**
+	 * @param context Any context of the application
+	 * @return The helper of the application
+	 */
+	public static synchronized ComicDBHelper getInstance(final Context context) {
+		if (instance == null) {
+			instance = new ComicDBHelper(context.getApplicationContext());
+		}
+		return instance;
+	}
+
 	@Override
 	public final void onCreate(final SQLiteDatabase db) {
 		MyLog.v(TAG, "Creating the database");
 		db.execSQL("CREATE TABLE comics(_id INTEGER PRIMARY KEY AUTOINCREMENT, path TEXT NOT NULL, read INTEGER, last_page INTEGER, pages INTEGER, last_access TEST);");
 		db.execSQL("CREATE TABLE bookmarks(_id INTEGER PRIMARY KEY, comicid INTEGER NOT NULL, page INTEGER NOT NULL);");
+		this.createIndexes(db);
+	}
+
+	/** Creates the indexes of the database.
+	 * @param db The database */
+	private void createIndexes(final SQLiteDatabase db) {
+		db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS comics_path ON comics(path);");
+		db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS bookmarks_comic_page ON bookmarks(comicid, page);");
 	}
 
 	@Override
 	public final void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
 		MyLog.w(TAG, "Updating database from " + oldVersion + " to "
 				+ newVersion);
-		db.execSQL("DROP TABLE IF EXISTS comics");
-		db.execSQL("DROP TABLE IF EXISTS bookmarks");
-		this.onCreate(db);
+		if (oldVersion < 5) {
+			// we do not know the tables of these versions
+			db.execSQL("DROP TABLE IF EXISTS comics");
+			db.execSQL("DROP TABLE IF EXISTS bookmarks");
+			this.onCreate(db);
+			return;
+		}
+		if (oldVersion < 6) {
+			// version 6 adds indexes. Remove the duplicates that the unique indexes do not allow,
+			// keeping the oldest row, and the bookmarks of removed comics
+			db.execSQL("DELETE FROM comics WHERE _id NOT IN (SELECT MIN(_id) FROM comics GROUP BY path);");
+			db.execSQL("DELETE FROM bookmarks WHERE comicid NOT IN (SELECT _id FROM comics);");
+			db.execSQL("DELETE FROM bookmarks WHERE _id NOT IN (SELECT MIN(_id) FROM bookmarks GROUP BY comicid, page);");
+			this.createIndexes(db);
+		}
+	}
+
+	@Override
+	public final void onOpen(final SQLiteDatabase db) {
+		super.onOpen(db);
+		if (!db.isReadOnly()) {
+			db.enableWriteAheadLogging();
+		}
+	}
+
+	/** Closes the connection. The helper opens it again if it is used later.
+	 * There is no need to call this method. */
+	@Override
+	public final synchronized void close() {
+		if (this.findComic != null) {
+			this.findComic.close();
+			this.findComic = null;
+		}
+		if (this.insertComic != null) {
+			this.insertComic.close();
+			this.insertComic = null;
+		}
+		super.close();
+	}
+
+	/** @return The connection to the database. Opened if it was not */
+	private synchronized SQLiteDatabase getDatabase() {
+		return this.getWritableDatabase();
 	}
 
 	/**
@@ -52,16 +130,14 @@ public class ComicDBHelper extends SQLiteOpenHelper {
 	 * @param uri the path in the filesystem to the comic
 	 * @return the ID of the created comic
 	 */
-	private long createNewComic(final String uri) {
+	private synchronized long createNewComic(final String uri) {
 		MyLog.v(TAG, "New comic in the database: " + uri);
-		SQLiteDatabase db = this.getWritableDatabase();
-		ContentValues cv = new ContentValues();
-		cv.put("last_page", 0);
-		cv.put("read", 0);
-		cv.put("path", uri);
-		long id = db.insert("comics", null, cv);
-		db.close();
-		return id;
+		if (this.insertComic == null) {
+			this.insertComic = this.getDatabase().compileStatement(
+					"INSERT INTO comics(path, read, last_page) VALUES (?, 0, 0);");
+		}
+		this.insertComic.bindString(1, uri);
+		return this.insertComic.executeInsert();
 	}
 
 	/** Gets the identifier inside the DB of a comic in the filesystem.
@@ -75,23 +151,22 @@ public class ComicDBHelper extends SQLiteOpenHelper {
 		if (uri == null) {
 			return -1;
 		}
-		SQLiteDatabase db = this.getReadableDatabase();
-		Cursor cur = db.query("comics", new String[] {"_id"}, "path=?",
-				new String[] {uri}, null, null, null);
 		long id;
-		if (!cur.moveToFirst()) {
-			if (create) {
+		synchronized (this) {
+			if (this.findComic == null) {
+				this.findComic = this.getDatabase().compileStatement("SELECT _id FROM comics WHERE path=?;");
+			}
+			this.findComic.bindString(1, uri);
+			try {
+				id = this.findComic.simpleQueryForLong();
+			} catch (SQLiteDoneException e) {
+				// no rows
+				if (!create) {
+					return -1;
+				}
 				id = this.createNewComic(uri);
-			} else {
-				cur.close();
-				db.close();
-				return -1;
 			}
-		} else {
-			id = cur.getInt(cur.getColumnIndex("_id"));
 		}
-		cur.close();
-		db.close();
 		MyLog.v(TAG, "Comic '" + uri + "': " + id);
 		return id;
 	}
@@ -107,7 +182,7 @@ public class ComicDBHelper extends SQLiteOpenHelper {
 		if (comicid == -1) {
 			return null;
 		}
-		SQLiteDatabase db = this.getReadableDatabase();
+		SQLiteDatabase db = this.getDatabase();
 		Cursor cur = db.query("comics", new String[] {"_id", "path", "read",
 				"last_page", "pages", "last_access" }, "_id=?",
 				new String[] {"" + comicid }, null, null, null);
@@ -131,10 +206,58 @@ public class ComicDBHelper extends SQLiteOpenHelper {
 			} while (cur.moveToNext());
 		}
 		cur.close();
-		db.close();
 		return i;
 	}
 
+	/**
+	 * Gets the ComicInfo objects of all the comics in a directory, in a single query.
+	 * The database does not set neither collection nor reader.
+	 *
+	 * @param dir The path to a directory
+	 * @return The ComicInfo of the comics in the database that are directly inside the directory,
+	 *         by path. Comics that are not in the database are not in the map
+	 */
+	public final Map<String, ComicInfo> getComicInfos(final String dir) {
+		HashMap<String, ComicInfo> infos = new HashMap<String, ComicInfo>();
+		if (dir == null) {
+			return infos;
+		}
+		String prefix = dir.endsWith(File.separator) ? dir : dir + File.separator;
+		// all paths that start with the prefix. The upper bound is the prefix with its last
+		// character incremented: unlike LIKE, a range is case-sensitive and it can use an index
+		String last = prefix.substring(0, prefix.length() - 1) + (char) (prefix.charAt(prefix.length() - 1) + 1);
+		SQLiteDatabase db = this.getDatabase();
+		Cursor cur = db.rawQuery("SELECT c._id, c.path, c.read, c.last_page, c.pages, b.page"
+				+ " FROM comics c LEFT JOIN bookmarks b ON b.comicid=c._id"
+				+ " WHERE c.path>=? AND c.path<? ORDER BY c._id",
+				new String[] {prefix, last});
+		ComicInfo i = null;
+		while (cur.moveToNext()) {
+			long id = cur.getLong(0);
+			if (i == null || i.id != id) {
+				String path = cur.getString(1);
+				// comics in subdirectories belong to other collections
+				if (path.indexOf(File.separatorChar, prefix.length()) != -1) {
+					continue;
+				}
+				i = new ComicInfo();
+				i.id = id;
+				i.uri = path;
+				i.read = (cur.getInt(2) == 1);
+				i.page = cur.getInt(3);
+				i.countpages = cur.getInt(4);
+				i.bookmarks = new ArrayList<Integer>();
+				infos.put(path, i);
+			}
+			if (!cur.isNull(5)) {
+				i.bookmarks.add(cur.getInt(5));
+			}
+		}
+		cur.close();
+		MyLog.v(TAG, infos.size() + " comics in " + dir);
+		return infos;
+	}
+
 	/**
 	 * Update the information of a comic in the database. info.page and
 	 * info.countpages are never used in the updating, but
@@ -143,10 +266,37 @@ public class ComicDBHelper extends SQLiteOpenHelper {
 	 * @param info The ComicInfo of the comic to update
 	 */
 	public final void updateComicInfo(final ComicInfo info) {
+		this.updateComicInfos(Collections.singletonList(info));
+	}
+
+	/**
+	 * Update the information of several comics in the database, in a single transaction.
+	 * @param infos The ComicInfo of the comics to update
+	 * @see #updateComicInfo(ComicInfo)
+	 */
+	public final void updateComicInfos(final Collection<ComicInfo> infos) {
+		SQLiteDatabase db = this.getDatabase();
+		db.beginTransaction();
+		try {
+			for (ComicInfo info: infos) {
+				this.writeComicInfo(db, info);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Writes the information of a comic. Only the bookmarks that changed are
+	 * inserted or deleted.
+	 * @param db The database, in a transaction
+	 * @param info The ComicInfo of the comic to update. Ignored if it is not in the database
+	 */
+	private void writeComicInfo(final SQLiteDatabase db, final ComicInfo info) {
 		if (info == null || info.id == -1) {
 			return;
 		}
-		SQLiteDatabase db = this.getWritableDatabase();
 		ContentValues cv = new ContentValues();
 		if (info.reader != null) {
 			cv.put("last_page", info.reader.getCurrentPage());
@@ -160,24 +310,75 @@ public class ComicDBHelper extends SQLiteOpenHelper {
 		if (info.reader != null) {
 			cv.put("pages", info.reader.countPages());
 		}
-		db.update("comics", cv, "_id=?",
-				new String[] {String.valueOf(info.id) });
-		// Update bookrmaks
-		// First: remove all current bookmarks
-		db.delete("bookmarks", "comicid=?",
-				new String[] {new Long(info.id).toString() });
-		// Second: add current bookmarks
-		String comicid = new Long(info.id).toString();
+		db.update("comics", cv, "_id=?", new String[] {String.valueOf(info.id) });
+		this.writeBookmarks(db, info);
+	}
+
+	/**
+	 * Update the progress of several comics in the database, in a single transaction:
+	 * the last page, the number of pages and the bookmarks. The read mark and
+	 * the path are not modified.
+	 * Comics that are not in the database anymore are ignored.
+	 * @param infos Snapshots of the comics: info.page and info.countpages are used,
+	 * and info.reader is ignored
+	 * @see ProgressJournal
+	 */
+	public final void updateProgress(final Collection<ComicInfo> infos) {
+		SQLiteDatabase db = this.getDatabase();
+		db.beginTransaction();
+		try {
+			for (ComicInfo info: infos) {
+				if (info == null || info.id == -1) {
+					continue;
+				}
+				ContentValues cv = new ContentValues();
+				cv.put("last_page", info.page);
+				cv.put("pages", info.countpages);
+				if (db.update("comics", cv, "_id=?", new String[] {String.valueOf(info.id) }) == 0) {
+					// the comic was removed: do not leave its bookmarks behind
+					continue;
+				}
+				this.writeBookmarks(db, info);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Writes the bookmarks of a comic. Only the bookmarks that changed are
+	 * inserted or deleted.
+	 * @param db The database, in a transaction
+	 * @param info The ComicInfo of the comic to update
+	 */
+	private void writeBookmarks(final SQLiteDatabase db, final ComicInfo info) {
+		String comicid = String.valueOf(info.id);
+		// compare the bookmarks in the database and in the comic
+		HashSet<Integer> saved = new HashSet<Integer>();
+		Cursor cur = db.query("bookmarks", new String[] {"page"}, "comicid=?",
+				new String[] {comicid }, null, null, null);
+		while (cur.moveToNext()) {
+			saved.add(cur.getInt(0));
+		}
+		cur.close();
+		HashSet<Integer> wanted = new HashSet<Integer>();
 		if (info.bookmarks != null) {
-			for (int i = 0; i < info.bookmarks.size(); i++) {
-				Integer b = info.bookmarks.get(i);
-				cv = new ContentValues();
-				cv.put("page", b);
-				cv.put("comicid", comicid);
+			wanted.addAll(info.bookmarks);
+		}
+		for (Integer page: saved) {
+			if (!wanted.contains(page)) {
+				db.delete("bookmarks", "comicid=? AND page=?", new String[] {comicid, page.toString() });
+			}
+		}
+		for (Integer page: wanted) {
+			if (!saved.contains(page)) {
+				ContentValues cv = new ContentValues();
+				cv.put("page", page);
+				cv.put("comicid", info.id);
 				db.insert("bookmarks", null, cv);
 			}
 		}
-		db.close();
 	}
 
 	/**
@@ -189,51 +390,37 @@ public class ComicDBHelper extends SQLiteOpenHelper {
 		if (comicid == -1) {
 			return;
 		}
-		SQLiteDatabase db = this.getWritableDatabase();
-		db.delete("comics", "_id=?", new String[] {String.valueOf(comicid) });
-		db.delete("bookmarks", "comicid=?",
-				new String[] {new Long(comicid).toString() });
-		db.close();
+		SQLiteDatabase db = this.getDatabase();
+		db.beginTransaction();
+		try {
+			db.delete("comics", "_id=?", new String[] {String.valueOf(comicid) });
+			db.delete("bookmarks", "comicid=?",
+					new String[] {new Long(comicid).toString() });
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
 	}
 
 	/**
-	 * This method returns an array of bookmarks.
-	 * TODO: This method supposes that there number of bookmarks is low (under 100)
+	 * Queries the bookmarks and the path of their comics, in a single query.
+	 * The rows are read from the database when they are needed, so there is no
+	 * limit to the number of bookmarks.
 	 *
 	 * @param comicid The id of the comic. If -1, return all bookmarks
-	 * @return The bookmarks or null if bookmarks are more than 100
+	 * @return A cursor with the columns _id, comicid, page and path, sorted by path and page.
+	 * The caller must close it
 	 */
-	public final BookmarkInfo[] getBookmarks(final long comicid) {
-		SQLiteDatabase db = this.getReadableDatabase();
-		Cursor cur = null;
+	public final Cursor queryBookmarks(final long comicid) {
+		SQLiteDatabase db = this.getDatabase();
+		String sql = "SELECT b._id AS _id, b.comicid AS comicid, b.page AS page, c.path AS path"
+				+ " FROM bookmarks b JOIN comics c ON c._id=b.comicid";
 		if (comicid != -1) {
 			// return selected bookmarks
-			cur = db.query("bookmarks",
-					new String[] {"_id", "comicid", "page" }, "comicid=?",
-					new String[] {String.valueOf(comicid) }, null, null, null);
-		} else {
-			// return all bookmarks
-			cur = db.query("bookmarks",
-					new String[] {"_id", "comicid", "page" }, "page>?",
-					new String[] {"-1" }, null, null, null);
-		}
-		if (cur.getCount() > MAX_NUMBER_BOOKMARKS) {
-			return null;
+			return db.rawQuery(sql + " WHERE b.comicid=? ORDER BY b.page",
+					new String[] {String.valueOf(comicid) });
 		}
-		BookmarkInfo[] ba = new BookmarkInfo[cur.getCount()];
-		if (!cur.moveToFirst()) {
-			return ba;
-		}
-		for (int i = 0; i < cur.getCount(); i++) {
-			BookmarkInfo b = new BookmarkInfo();
-			b.id = cur.getLong(cur.getColumnIndex("_id"));
-			b.comicid = cur.getLong(cur.getColumnIndex("comicid"));
-			b.page = cur.getInt(cur.getColumnIndex("page"));
-			ba[i] = b;
-			cur.moveToNext();
-		}
-		cur.close();
-		db.close();
-		return ba;
+		// return all bookmarks
+		return db.rawQuery(sql + " ORDER BY c.path, b.page", null);
 	}
-}
\ No newline at end of file
+}
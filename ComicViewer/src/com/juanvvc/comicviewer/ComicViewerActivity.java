@@ -1,9 +1,6 @@
 package com.juanvvc.comicviewer;
 
 import java.io.File;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Scanner;
 
@@ -15,7 +12,9 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
-import android.graphics.drawable.BitmapDrawable;
+import android.content.pm.ApplicationInfo;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -43,9 +42,16 @@ import android.widget.Toast;
 import android.widget.ToggleButton;
 import android.widget.ViewSwitcher.ViewFactory;
 
+import com.juanvvc.comicviewer.readers.BitmapPool;
 import com.juanvvc.comicviewer.readers.DrawingReader;
+import com.juanvvc.comicviewer.readers.PageCache;
+import com.juanvvc.comicviewer.readers.PagePrefetcher;
 import com.juanvvc.comicviewer.readers.Reader;
 import com.juanvvc.comicviewer.readers.ReaderException;
+import com.juanvvc.comicviewer.readers.RegionSource;
+import com.juanvvc.comicviewer.readers.TileBenchmark;
+import com.juanvvc.comicviewer.readers.TiledDrawable;
+import com.juanvvc.comicviewer.readers.ZoomDrawable;
 
 /**
  * Shows a comic on the screen.
@@ -53,11 +59,23 @@ import com.juanvvc.comicviewer.readers.ReaderException;
  *
  * @author juanvi
  */
-public class ComicViewerActivity extends Activity implements ViewFactory, OnTouchListener {
+public class ComicViewerActivity extends Activity implements ViewFactory, OnTouchListener, PagePrefetcher.OnPageLoadedListener {
 	/** The TAG constant for the MyLogger. */
 	private static final String TAG = "ComicViewerActivity";
-	/** A task to load pages on the background and free the main thread. */
-	private LoadNextPage nextFastPage = null;
+	/** The pages that were already decoded. */
+	private PageCache pageCache = null;
+	/** Loads pages on the background and free the main thread. */
+	private PagePrefetcher prefetcher = null;
+	/** The page that the user moved to, while it is loaded in the background. -1 if none. */
+	private int waitingPage = -1;
+	/** The direction of the last movement of the user. */
+	private boolean movingForward = true;
+	/** If set, the screen shows a placeholder of waitingPage. */
+	private boolean showingPlaceholder = false;
+	/** The placeholder of pages without a preview. Loaded when needed. */
+	private Bitmap loadingPlaceholder = null;
+	/** Times of the page turns. */
+	private final PageTurnMetrics metrics = new PageTurnMetrics();
 	/** A reference to the animations of the images. */
 	private Animation[] anims = {null, null, null, null };
 	/** The gestures library. */
@@ -73,6 +91,8 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 	public static final String DRAWDIR = ".draws";
 	/** In drawing mode, the drawing reader to save drawings. */
 	private DrawingReader drawingReader = null;
+	/** Saves the progress of the comics in the background. */
+	private ProgressJournal journal = null;
 
 	/** In loadComic(), if comifInfo.current == FIRST_PAGE, load the first page. */
 	private static final int FIRST_PAGE = 0;
@@ -81,6 +101,8 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 	 * cannot be trusted. Then, we use an arbitrary page number to force loadComic()
 	 * to move to the last page when the reader is available. */
 	private static final int LAST_PAGE = -100;
+	/** In loadComic(), if comifInfo.current == SAVED_PAGE, load the last page that the user read. */
+	private static final int SAVED_PAGE = -200;
 
 	// In these preferences, these are the default values if they are not
 	// set in SharedPreferences
@@ -92,6 +114,8 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 	private boolean DRAW_MODE_AVAILABLE = true;
 	/** The color for the background. */
 	public int BACK_COLOR = 0xffaaaaaa;
+	/** Number of pages to load in the background after the current page. If 0, automatic. */
+	private int PREFETCH_PAGES = 0;
 	
 	// The next variables are used to guess the remaining reading time
 	// number of MMILISECONDS from the last changePage()
@@ -110,6 +134,10 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 	@Override
 	public final void onCreate(final Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		this.pageCache = new PageCache(PageCache.defaultMaxBytes());
+		this.prefetcher = new PagePrefetcher(this.pageCache);
+		this.prefetcher.setOnPageLoadedListener(this);
+		this.journal = ProgressJournal.getInstance(this);
 		// sets the orientation portrait, mandatory
 		setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
 		setContentView(R.layout.comicvieweractivity);
@@ -150,24 +178,16 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 			}
 		}
 
-		// get the information of this Comic from the database
-		ComicDBHelper db = new ComicDBHelper(this);
-		long id = db.getComicID(uri, true);
-		info = db.getComicInfo(id);
-		db.close();
-		// if we still have no information of the comic, create it
-		// Note: info==null only after an error in the database. Possible, but rare
-		if (info == null) {
-			info = new ComicInfo();
-			info.page = 0;
-			info.uri = uri;
-		}
-
+		// the information of this comic is read from the database in loadComic()
+		info = new ComicInfo();
+		info.uri = uri;
 		// if savedPage is set, it has preference
 		// saved page is set when the activity is on pause, or was pased by the
 		// intent
 		if (savedPage > -1) {
 			info.page = savedPage;
+		} else {
+			info.page = SAVED_PAGE;
 		}
 
 		// load the comic, on the background
@@ -229,22 +249,20 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 	}
 
 	/**
-	 * Stops all AsyncTasks. These tasks perform useful things in the
-	 * background, such as loading the next page in memory to speed up changing
+	 * Stops all background jobs. These jobs perform useful things in the
+	 * background, such as loading the next pages in memory to speed up changing
 	 * pages. These processes are not really necessary, so they can be
 	 * interrupted at any time.
 	 */
 	private void stopThreads() {
-		// stop the AsyncTasks
-		if (this.nextFastPage != null) {
-			this.nextFastPage.cancel(true);
-			this.nextFastPage = null;
-		}
+		this.prefetcher.cancel();
+		this.waitingPage = -1;
+		this.showingPlaceholder = false;
 	}
 
 	/**
 	 * Closes the comic, freeing resources and saving current state on the
-	 * database. Typically, this is never called manually
+	 * database, in the background. Typically, this is never called manually
 	 */
 	public final void close() {
 		MyLog.i(TAG, "Closing the comic");
@@ -262,14 +280,14 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 
 		// If there is an open comic, close the reader, close the comic and update the info in the database
 		if (this.comicInfo != null && this.comicInfo.reader != null) {
-			if (this.comicInfo != null) {
-				ComicDBHelper db = new ComicDBHelper(this);
-				db.updateComicInfo(this.comicInfo);
-				db.close();
-			}
+			// the journal takes a snapshot now: the reader can be closed
+			this.journal.save(this.comicInfo);
 			this.comicInfo.reader.close();
 			this.comicInfo = null;
 		}
+
+		// the cached pages belong to the closed comic
+		this.pageCache.clear();
 		
 		// reset the guessing system
 		this.accumulatedPages = 0;
@@ -282,12 +300,10 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 		// update the information in the database (without closing the comic)
 		// Notice that this update could happen several times. For example, onStop() and then onDestroy()
 		if (this.comicInfo != null && this.comicInfo.reader != null) {
-			if (this.comicInfo != null) {
-				ComicDBHelper db = new ComicDBHelper(this);
-				db.updateComicInfo(this.comicInfo);
-				db.close();
-			}
+			this.journal.save(this.comicInfo);
 		}
+		// the process may be killed from now on: do not wait for more updates
+		this.journal.flush();
 		
 		super.onStop();
 	}
@@ -295,6 +311,12 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 	@Override
 	public final void onDestroy() {
 		this.close();
+		this.journal.flush();
+		this.prefetcher.stop();
+		MyLog.d(TAG, this.metrics.toString());
+		MyLog.d(TAG, BitmapPool.getStats());
+		// the pool keeps the tiles of the pages for the next pages: not needed anymore
+		BitmapPool.clear();
 		super.onDestroy();
 	}
 	
@@ -315,10 +337,19 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 		}
 		LOAD_NEXT_ISSUE = sharedPref.getBoolean("pref_load_next", LOAD_NEXT_ISSUE);
 		DRAW_MODE_AVAILABLE = sharedPref.getBoolean("pref_draw_mode", DRAW_MODE_AVAILABLE);
+		try {
+			PREFETCH_PAGES = Integer.parseInt(sharedPref.getString("pref_prefetch", null));
+		} catch (Exception e) {
+			MyLog.w(TAG, "Cannot read PREFETCH_PAGES from preferences, reverting to default value");
+		}
+		// one page behind for each two pages ahead
+		this.prefetcher.setWindow(PREFETCH_PAGES, (PREFETCH_PAGES + 1) / 2);
+		this.prefetcher.setTwoPass(sharedPref.getBoolean("pref_two_pass", true));
 		MyLog.d(TAG, "ANIMATION_DURATION=" + ANIMATION_DURATION);
 		MyLog.d(TAG, "BACK_COLOR=" + BACK_COLOR);
 		MyLog.d(TAG, "LOAD_NEXT_ISSUE=" + LOAD_NEXT_ISSUE);
 		MyLog.d(TAG, "DRAW_MODE_AVAILABLE=" + DRAW_MODE_AVAILABLE);
+		MyLog.d(TAG, "PREFETCH_PAGES=" + PREFETCH_PAGES);
 		// if set, keep if screen on
 		if (sharedPref.getBoolean("pref_screen_on", true)) {
 			this.findViewById(R.id.comicvieweractivity_layout).setKeepScreenOn(true);
@@ -354,6 +385,8 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 		img.setScaleType(ImageView.ScaleType.FIT_CENTER);
 		img.setLayoutParams(new ImageSwitcher.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
 		img.setBackgroundColor(BACK_COLOR);
+		// in zoom mode, the view gets all the events: taps come back here
+		img.setOnSingleTapListener(this);
 		return img;
 	}
 
@@ -393,34 +426,17 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 					}
 				}
 				
-				// reload current image (it may help in some large pages)
-				try {
-					this.stopThreads();
-					System.gc();
-
-					iv.setImageDrawable(this.comicInfo.reader.current());
-
-					// shows the position of the user in the comic on the screen
-					if (this.comicInfo != null && this.comicInfo.reader != null) {
-						this.showToast(
-								(this.comicInfo.reader.getCurrentPage() + 1)
-								+ "/" + this.comicInfo.reader.countPages(),
-								Toast.LENGTH_SHORT);
-					}
-				} catch (Exception e) {
-					MyLog.e(TAG, e.toString());
-					this.showToast(e.toString(), Toast.LENGTH_LONG);
-
-					try {
-						// try to load a scaled version
-						iv.setImageDrawable(new BitmapDrawable(
-								getResources(),
-								this.comicInfo.reader.getBitmapPage(this.comicInfo.reader.getCurrentPage(), 4)));
-					} catch (Exception e2) {
-						MyLog.e(TAG, e2.toString());
+				// show the current page again (it may help in some large pages)
+				if (this.comicInfo != null && this.comicInfo.reader != null) {
+					if (iv.getZoomDrawable() == null) {
+						this.reloadPage(iv);
 					}
+					// shows the position of the user in the comic on the screen
+					this.showToast(
+							(this.comicInfo.reader.getCurrentPage() + 1)
+							+ "/" + this.comicInfo.reader.countPages(),
+							Toast.LENGTH_SHORT);
 				}
-
 				break;
 			case 7: // center of footer. In landscape mode, advance a page
 			case 5: // right margin
@@ -517,9 +533,10 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 	 * and loads the comic.
 	 *
 	 * @param info
-	 *            The ComicInfo to load. info.bookmarks are set inside this
-	 *            method. The page to be shown is info.page. If info.page == FIRST_PAGE,
+	 *            The ComicInfo to load. info.id and info.bookmarks are set inside this
+	 *            method, in the background. The page to be shown is info.page. If info.page == FIRST_PAGE,
 	 *            go to the first page. If info.page == LAST_PAGE, go to last page.
+	 *            If info.page == SAVED_PAGE, go to the last page that the user read.
 	 */
 	public final void loadComic(final ComicInfo info) {
 		MyLog.i(TAG, "Loading comic " + info.uri + " at page " + info.page);
@@ -528,15 +545,6 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 
 		showToast(getText(R.string.loading) + info.uri, Toast.LENGTH_LONG);
 
-		// load information about the bookmarks from the database
-		ComicDBHelper db = new ComicDBHelper(this);
-		ComicInfo ci = db.getComicInfo(db.getComicID(info.uri, false));
-		if (ci != null) {
-			info.bookmarks = ci.bookmarks;
-		} else {
-			info.bookmarks = new ArrayList<Integer>();
-		}
-
 		// create a drawing reader for this comic
 		try {
 			// the constructor does nearly nothing, it is save to put this here.
@@ -548,12 +556,31 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 
 		// the comic is loaded in the background, since there is lots of things to do
 		(new AsyncTask<ComicInfo, Void, ComicInfo>() {
+			/** The thumbnail of the cover, used as a preview of the first page. */
+			private Bitmap cover = null;
+
 			@Override
 			protected ComicInfo doInBackground(final ComicInfo... params) {
 				ComicInfo info = params[0];
 				if (info.uri == null) {
 					return null;
 				}
+				// load information about the comic and its bookmarks from the database.
+				// Note that this call either insert the comic in the database... or returns the right id.
+				ComicDBHelper db = ComicDBHelper.getInstance(ComicViewerActivity.this);
+				info.id = db.getComicID(info.uri, true);
+				ComicInfo ci = db.getComicInfo(info.id);
+				// the progress that is not in the database yet is newer
+				ComicViewerActivity.this.journal.apply(ci);
+				// Note: ci==null only after an error in the database. Possible, but rare
+				if (ci != null) {
+					info.bookmarks = ci.bookmarks;
+				} else {
+					info.bookmarks = new ArrayList<Integer>();
+				}
+				if (info.page == SAVED_PAGE) {
+					info.page = ci != null ? ci.page : FIRST_PAGE;
+				}
 				try {
 					// chooses the right reader to use
 					info.reader = Reader.getReader(ComicViewerActivity.this, info.uri);
@@ -563,6 +590,10 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 					File colRoot = new File(info.uri).getParentFile();
 					info.collection = new ComicCollection(colRoot.getName()).populate(ComicViewerActivity.this, colRoot);
 					info.reader.countPages();
+					File th = GalleryExplorerActivity.getThumbnailFile(new File(info.uri));
+					if (th.exists()) {
+						this.cover = BitmapFactory.decodeFile(th.getAbsolutePath());
+					}
 					return info;
 				} catch (ReaderException e) {
 					MyLog.e(TAG, "Cannot load the comic: " + e.toString());
@@ -577,6 +608,7 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 					// TODO: probably, this is better set in MyImageView.onSizeChanged()
 					View v = ComicViewerActivity.this.findViewById(R.id.switcher);
 					info.reader.setViewportSize(v.getWidth(), v.getHeight());
+					ComicViewerActivity.this.pageCache.putPreview(info.reader, 0, this.cover);
 					// moves to the selected page
 					switch(info.page) {
 					case FIRST_PAGE:
@@ -612,6 +644,7 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 				this.comicInfo.bookmarks.add(cp);
 				this.findViewById(R.id.bookmark).setVisibility(View.VISIBLE);
 			}
+			this.journal.save(this.comicInfo);
 		}
 	}
 
@@ -666,95 +699,71 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 		}
 		myview.removeDrawing();
 		myview.setDrawMode(false, -1, -1);
-		try {
-			// set animations according to the movement of the user
-			this.setAnimations(forward);
-			if (forward) {
-				// check if we are at the last page
-				if (reader.getCurrentPage() >= reader.countPages() - 1) {
-					// load the next issue in the collection
-					MyLog.i(TAG, "At the end of the comic");
-					if (LOAD_NEXT_ISSUE && this.comicInfo.collection != null) {
-						MyLog.d(TAG, "Loading next issue");
-						ComicInfo nextIssue = this.comicInfo.collection.next(this.comicInfo);
-						if (nextIssue != null) {
-							MyLog.i(TAG, "Next issue: " + nextIssue.uri);
-							nextIssue.page = FIRST_PAGE; // we load the next issue at the first page. It is weird otherwise
-							this.loadComic(nextIssue);
-						} else {
-							MyLog.i(TAG, "Last comic in collection");
-						}
+		if (forward) {
+			// check if we are at the last page
+			if (reader.getCurrentPage() >= reader.countPages() - 1) {
+				// load the next issue in the collection
+				MyLog.i(TAG, "At the end of the comic");
+				if (LOAD_NEXT_ISSUE && this.comicInfo.collection != null) {
+					MyLog.d(TAG, "Loading next issue");
+					ComicInfo nextIssue = this.comicInfo.collection.next(this.comicInfo);
+					if (nextIssue != null) {
+						MyLog.i(TAG, "Next issue: " + nextIssue.uri);
+						nextIssue.page = FIRST_PAGE; // we load the next issue at the first page. It is weird otherwise
+						this.loadComic(nextIssue);
+					} else {
+						MyLog.i(TAG, "Last comic in collection");
 					}
-					return;
 				}
-
-				// if moving forward, we will check if we loaded the next page
-				// in the background
-				// We assume that this method is running in the UI thread
-				if (this.nextFastPage == null) {
-					// load the page from the filesystem
-					n = this.comicInfo.reader.next();
-					// Cache the next page in the background
-					this.nextFastPage = (LoadNextPage) new LoadNextPage().execute(reader.getCurrentPage() + 1);
-				} else {
-					// TODO: this blocks the UI thread!
-					// get the cached page.
-					n = this.nextFastPage.get();
-					// move to the next page "by hand"
-					this.comicInfo.reader.moveTo(reader.getCurrentPage() + 1);
-				}
-				// create a new thread to load the next page in the background.
-				// This supposes that the natural move is onward
-				if (this.comicInfo.reader.getCurrentPage() < this.comicInfo.reader.countPages() - 1) {
-					this.nextFastPage = (LoadNextPage) new LoadNextPage().execute(reader.getCurrentPage() + 1);
-				}
-			} else {
-				// Moving backwards
-				
-				this.stopThreads();
-
-				// check that we are not in the first page
-				if (reader.getCurrentPage() == 0) {
-					// load the next issue in the collection
-					MyLog.i(TAG, "First page of rhe comic");
-					if (LOAD_NEXT_ISSUE && this.comicInfo.collection != null) {
-						MyLog.d(TAG, "Loading prev issue");
-						ComicInfo prevIssue = this.comicInfo.collection.prev(this.comicInfo);
-						if (prevIssue != null) {
-							MyLog.i(TAG, "Prev issue: " + prevIssue.uri);
-							prevIssue.page = LAST_PAGE; // we load the last page of the prev issue. It is weird otherwise
-							this.loadComic(prevIssue);
-						} else {
-							MyLog.i(TAG, "First comic in collection");
-						}
+				return;
+			}
+			// move to the next page "by hand"
+			reader.moveTo(reader.getCurrentPage() + 1);
+		} else {
+			// check that we are not in the first page
+			if (reader.getCurrentPage() == 0) {
+				// load the next issue in the collection
+				MyLog.i(TAG, "First page of rhe comic");
+				if (LOAD_NEXT_ISSUE && this.comicInfo.collection != null) {
+					MyLog.d(TAG, "Loading prev issue");
+					ComicInfo prevIssue = this.comicInfo.collection.prev(this.comicInfo);
+					if (prevIssue != null) {
+						MyLog.i(TAG, "Prev issue: " + prevIssue.uri);
+						prevIssue.page = LAST_PAGE; // we load the last page of the prev issue. It is weird otherwise
+						this.loadComic(prevIssue);
+					} else {
+						MyLog.i(TAG, "First comic in collection");
 					}
-					return;
 				}
-				// move to the prev page "by hand".
-				// This is faster and safer than this.comicInfo.reader.prev()
-				// since we may be using scaled images
-				this.comicInfo.reader.moveTo(reader.getCurrentPage() - 1);
-				// TODO: this blocks the UI Thread!
-				n = this.comicInfo.reader.getPage(reader.getCurrentPage());
-				// and load the next page from the prev. That is, the currently
-				// displayed page.
-				// TODO: I'm sure that there is room for improvements here. This page is already loaded!
-				this.nextFastPage = (LoadNextPage) new LoadNextPage().execute(reader.getCurrentPage() + 1);
+				return;
 			}
-
-		} catch (Exception e) {
-			Writer result = new StringWriter();
-			PrintWriter printWriter = new PrintWriter(result);
-			e.printStackTrace(printWriter);
-
-			MyLog.e(TAG, e.toString() + result.toString());
-			n = getResources().getDrawable(R.drawable.outofmemory);
-			this.stopThreads();
+			// move to the prev page "by hand".
+			// This is faster and safer than this.comicInfo.reader.prev()
+			// since we may be using scaled images
+			reader.moveTo(reader.getCurrentPage() - 1);
 		}
+		this.movingForward = forward;
 
+		// if the page was decoded before, show it now. If not, show a placeholder
+		// and replace it when the prefetcher loads the page in the background.
+		// We never decode in the UI thread.
+		// We assume that this method is running in the UI thread
+		final int current = reader.getCurrentPage();
+		this.metrics.start(current);
+		n = this.pageCache.get(reader, current);
 		if (n != null) {
-			imgs.setImageDrawable(n);
+			this.waitingPage = -1;
+			this.showingPlaceholder = false;
+			this.showPage(n);
+			this.metrics.fullQuality(current);
+		} else {
+			this.waitingPage = current;
+			this.showingPlaceholder = true;
+			this.showPage(this.getPlaceholder(reader, current));
+			this.metrics.firstPixel(current);
 		}
+		// load the pages around the current one (and the current one, if not in the cache)
+		this.prefetcher.schedule(reader, reader.getCurrentPage(), forward);
 
 		// shows the position of the user in the comic on the screen
 		if (this.comicInfo != null && this.comicInfo.reader != null) {
@@ -796,6 +805,9 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 			tv.setText((new StringBuffer()).append(page).append(" of ").append(total).append(remTime).append(percent).append("%").toString());
 			ProgressBar pb = (ProgressBar) this.findViewById(R.id.progressBar);
 			pb.setProgress(percent);
+
+			// save the progress in the background, in case the process is killed
+			this.journal.save(this.comicInfo);
 		
 			// if the current page is bookmarked, show the bookmark
 			if (this.comicInfo.bookmarks != null && this.comicInfo.bookmarks.contains(this.comicInfo.reader.getCurrentPage())) {
@@ -803,19 +815,112 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 			} else {
 				this.findViewById(R.id.bookmark).setVisibility(View.GONE);
 			}
-			
-			// load the drawing, if any
-			if (this.drawingReader != null) {
-				MyImageView m = (MyImageView) imgs.getCurrentView();
-				try {
-					m.setCurrentDrawing(drawingReader.getBitmapPage(comicInfo.reader.getCurrentPage(), 1));
-				} catch (ReaderException e) {
-					MyLog.w(TAG, "Exception reading drawing: " + e.toString());
-				}
+		}
+	}
+
+	/**
+	 * Shows the current page on the screen, doing an animation.
+	 *
+	 * @param n The drawable of the current page
+	 */
+	private void showPage(final Drawable n) {
+		ImageSwitcher imgs = (ImageSwitcher) this.findViewById(R.id.switcher);
+		// set animations according to the movement of the user
+		this.setAnimations(this.movingForward);
+		imgs.setImageDrawable(n);
+
+		// load the drawing, if any
+		if (this.drawingReader != null && this.comicInfo != null && this.comicInfo.reader != null) {
+			MyImageView m = (MyImageView) imgs.getCurrentView();
+			try {
+				m.setCurrentDrawing(drawingReader.getBitmapPage(comicInfo.reader.getCurrentPage(), 1));
+			} catch (ReaderException e) {
+				MyLog.w(TAG, "Exception reading drawing: " + e.toString());
 			}
 		}
 	}
 
+	/**
+	 * Gets something cheap to show while a page is decoded.
+	 *
+	 * @param reader The reader of the page
+	 * @param page The index of the page
+	 * @return A preview of the page, if there is one in the cache. A generic "loading" image if not.
+	 */
+	private Drawable getPlaceholder(final Reader reader, final int page) {
+		TiledDrawable d = this.pageCache.getPreview(reader, page);
+		if (d != null) {
+			return d;
+		}
+		if (this.loadingPlaceholder == null) {
+			// our own copy of the resource: views recycle bitmaps, and resources are shared
+			this.loadingPlaceholder = BitmapFactory.decodeResource(this.getResources(), R.drawable.loading_cover);
+		}
+		d = new TiledDrawable(this.loadingPlaceholder);
+		// the activity owns the bitmap: views must not recycle it
+		d.setCached(true);
+		return d;
+	}
+
+	/**
+	 * The prefetcher loaded a page in the background. If the user is waiting for
+	 * this page, show it. If the screen shows a placeholder of the page, it is
+	 * replaced without an animation.
+	 *
+	 * @param reader The reader of the page
+	 * @param page The index of the page
+	 * @param d The decoded page, or null if there was an error
+	 * @param error The error, if any
+	 * @see com.juanvvc.comicviewer.readers.PagePrefetcher.OnPageLoadedListener#onPageLoaded
+	 */
+	public final void onPageLoaded(final Reader reader, final int page, final Drawable d, final Exception error) {
+		if (this.comicInfo == null || this.comicInfo.reader != reader || page != this.waitingPage) {
+			return;
+		}
+		Drawable n = d;
+		if (n == null) {
+			MyLog.e(TAG, "Cannot load page " + page + ": " + error);
+			n = getResources().getDrawable(R.drawable.outofmemory);
+		}
+		this.waitingPage = -1;
+		if (this.showingPlaceholder) {
+			// the placeholder already did the animation. Keep its drawing, if any
+			ImageSwitcher imgs = (ImageSwitcher) this.findViewById(R.id.switcher);
+			((MyImageView) imgs.getCurrentView()).setImageDrawable(n);
+			this.showingPlaceholder = false;
+		} else {
+			this.showPage(n);
+		}
+		this.metrics.fullQuality(page);
+		MyLog.v(TAG, "Page " + page + ": first pass " + this.prefetcher.getPreviewMillis()
+				+ "ms, second pass " + this.prefetcher.getRefineMillis() + "ms");
+	}
+
+	/**
+	 * The prefetcher decoded a quick preview of a page. If the screen shows the placeholder
+	 * of this page, the preview replaces it without an animation. The page replaces
+	 * the preview later, in onPageLoaded().
+	 *
+	 * @param reader The reader of the page
+	 * @param page The index of the page
+	 * @see com.juanvvc.comicviewer.readers.PagePrefetcher.OnPageLoadedListener#onPagePreview
+	 */
+	public final void onPagePreview(final Reader reader, final int page) {
+		if (this.comicInfo == null || this.comicInfo.reader != reader
+				|| page != this.waitingPage || !this.showingPlaceholder) {
+			return;
+		}
+		ImageSwitcher imgs = (ImageSwitcher) this.findViewById(R.id.switcher);
+		MyImageView iv = (MyImageView) imgs.getCurrentView();
+		if (iv.getZoomDrawable() != null) {
+			return;
+		}
+		TiledDrawable d = this.pageCache.getPreview(reader, page);
+		if (d != null) {
+			iv.setImageDrawable(d);
+		}
+	}
+
 	/**
 	 * Configures the animations of the ImageSwitcher.
 	 *
@@ -864,41 +969,13 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 		}
 	}
 
-	/**
-	 * This task is used to cache a page in a background thread and improve the
-	 * GUI response time. Use (page is an integer):
-	 *
-	 * page=new LoadNextPage().execute(page);
-	 * (when necessary)
-	 * Drawable newpage = page.get()
-	 *
-	 * @author juanvi
-	 */
-	private class LoadNextPage extends AsyncTask<Integer, Void, Drawable> {
-		@Override
-		protected Drawable doInBackground(final Integer... params) {
-			if (ComicViewerActivity.this.comicInfo == null) {
-				return null;
-			}
-			int page = params[0].intValue();
-			MyLog.d(TAG, "Buffering page " + page);
-			try {
-				return ComicViewerActivity.this.comicInfo.reader.getPage(page);
-			} catch (Exception e) {
-				return ComicViewerActivity.this.getResources().getDrawable(R.drawable.outofmemory);
-			}
-		}
-
-		protected void onPostExecute(final Drawable d) {
-			MyLog.d(TAG, "Next page loaded");
-		}
-	}
-
 	// //////////////////////////////MANAGE THE MENU
 	@Override
 	public final boolean onCreateOptionsMenu(final Menu menu) {
 		MenuInflater inflater = getMenuInflater();
 		inflater.inflate(R.menu.comicmenu, menu);
+		// the benchmark is only for debug builds
+		menu.findItem(R.id.benchmark).setVisible((this.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
 		return true;
 	}
 
@@ -934,18 +1011,9 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 			if (this.comicInfo != null) {
 				// first: if there are not bookmarks... why bother?
 				if (this.comicInfo.bookmarks.size() > 0) {
-					// the information of the current bookmarks must be updated in the database
-					ComicDBHelper db = new ComicDBHelper(this);
-					// first: if the comic is not in the database, insert
-					if (this.comicInfo.id == -1) {
-						// note that this call either insert the comic in
-						// the database... or returns the right id.
-						// comics cannot be inserted twice.
-						comicInfo.id = db.getComicID(comicInfo.uri, true);
-					}
-					// update the information
-					db.updateComicInfo(this.comicInfo);
-					db.close();
+					// the list writes the current bookmarks in the database before reading them.
+					// loadComic() already inserted the comic in the database
+					this.journal.save(this.comicInfo);
 					// show the bookmark list
 					Intent intent = new Intent(this, BookmarksExplorer.class);
 					intent.putExtra("comicid", this.comicInfo.id);
@@ -1019,6 +1087,14 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 				}
 			}
 			return true;
+		case R.id.zoom: // zoom and pan the current page
+			this.switchZoom();
+			return true;
+		case R.id.benchmark: // compares decoding times of the current page
+			if (this.comicInfo != null && this.comicInfo.reader != null) {
+				this.runBenchmark(this.comicInfo.uri, Math.max(0, this.comicInfo.reader.getCurrentPage()));
+			}
+			return true;
 		case R.id.settings:
 	        Intent intent = new Intent(this.getApplicationContext(), SettingsActivity.class);
 	        this.startActivity(intent);
@@ -1028,6 +1104,108 @@ public class ComicViewerActivity extends Activity implements ViewFactory, OnTouc
 		return super.onOptionsItemSelected(item);
 	}
 
+	/**
+	 * Shows the current page again in a view, without an animation. The page comes from
+	 * the cache or, if it is not there, a placeholder is shown until the prefetcher loads it.
+	 * Pages are never decoded in the UI thread.
+	 *
+	 * @param iv The view of the current page
+	 */
+	private void reloadPage(final MyImageView iv) {
+		final Reader reader = this.comicInfo.reader;
+		final int page = reader.getCurrentPage();
+		Drawable n = this.pageCache.get(reader, page);
+		if (n == null) {
+			this.waitingPage = page;
+			this.showingPlaceholder = true;
+			n = this.getPlaceholder(reader, page);
+			this.prefetcher.schedule(reader, page, this.movingForward);
+		}
+		iv.setImageDrawable(n);
+	}
+
+	/**
+	 * Switches the zoom mode of the current page.
+	 * In zoom mode, the current view shows a ZoomDrawable of the page, that is opened in the background.
+	 * When the zoom mode finishes, the view shows the page as usual.
+	 */
+	private void switchZoom() {
+		if (this.comicInfo == null || this.comicInfo.reader == null) {
+			return;
+		}
+		final Reader reader = this.comicInfo.reader;
+		final int page = reader.getCurrentPage();
+		final MyImageView iv = (MyImageView) ((ImageSwitcher) this.findViewById(R.id.switcher)).getCurrentView();
+		if (iv.getZoomDrawable() != null) {
+			this.reloadPage(iv);
+			return;
+		}
+		if (iv.isDrawMode()) {
+			return;
+		}
+		(new AsyncTask<Void, Void, Object>() {
+			@Override
+			protected Object doInBackground(final Void... params) {
+				try {
+					RegionSource source = reader.openRegionSource(page);
+					if (source == null) {
+						return null;
+					}
+					return new ZoomDrawable(source);
+				} catch (Exception e) {
+					return e;
+				} catch (OutOfMemoryError e) {
+					return null;
+				}
+			}
+
+			@Override
+			protected void onPostExecute(final Object result) {
+				if (!(result instanceof ZoomDrawable)) {
+					MyLog.w(TAG, "Cannot zoom page " + page + ": " + result);
+					showToast(getText(R.string.zoom_not_available).toString(), Toast.LENGTH_SHORT);
+					return;
+				}
+				ZoomDrawable z = (ZoomDrawable) result;
+				// the user may have moved to another page
+				if (comicInfo == null || comicInfo.reader != reader || reader.getCurrentPage() != page
+						|| ((ImageSwitcher) findViewById(R.id.switcher)).getCurrentView() != iv) {
+					z.close();
+					return;
+				}
+				iv.setImageDrawable(z);
+			}
+		}).execute();
+	}
+
+	/**
+	 * Runs the TileBenchmark in the background, and shows the results.
+	 * @param uri The comic to test
+	 * @param page The page to test
+	 */
+	private void runBenchmark(final String uri, final int page) {
+		final View v = this.findViewById(R.id.switcher);
+		showToast(this.getText(R.string.benchmark_running).toString(), Toast.LENGTH_SHORT);
+		(new AsyncTask<Void, Void, String>() {
+			@Override
+			protected String doInBackground(final Void... params) {
+				try {
+					return TileBenchmark.run(ComicViewerActivity.this, uri, page, v.getWidth(), v.getHeight());
+				} catch (ReaderException e) {
+					return e.toString();
+				}
+			}
+
+			@Override
+			protected void onPostExecute(final String result) {
+				new AlertDialog.Builder(ComicViewerActivity.this)
+						.setTitle(ComicViewerActivity.this.getText(R.string.benchmark))
+						.setMessage(result)
+						.setPositiveButton(android.R.string.ok, null).show();
+			}
+		}).execute();
+	}
+
 	/**
 	 * Gets the result of calling BookmarkExplorer.
 	 * The result is the page to show next
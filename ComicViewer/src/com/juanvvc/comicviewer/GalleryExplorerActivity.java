@@ -34,12 +34,15 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -59,6 +62,7 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.BaseAdapter;
+import android.widget.EditText;
 import android.widget.Gallery;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
@@ -100,6 +104,8 @@ public class GalleryExplorerActivity extends Activity implements OnItemClickList
 	private static final boolean DONATE_VERSION = false;
 	/** If true, it is the debug version */
 	private static final boolean DEBUG_VERSION = true;
+	/** The max number of results of a search. */
+	private static final int MAX_SEARCH_RESULTS = 100;
 
 
 	public void onCreate(final Bundle savedInstanceState) {
@@ -371,7 +377,7 @@ public class GalleryExplorerActivity extends Activity implements OnItemClickList
 		AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
 
 		// get the comicinfo of the selected item
-		ComicDBHelper db = new ComicDBHelper(this);
+		ComicDBHelper db = ComicDBHelper.getInstance(this);
 		CoverListAdapter comicAdapter = (CoverListAdapter) ((Gallery) info.targetView.getParent()).getAdapter();
 		String comicuri = ((ComicInfo) comicAdapter.getItem(info.position)).uri;
 		ComicInfo comicinfo = db.getComicInfo(db.getComicID(comicuri, true));
@@ -380,7 +386,6 @@ public class GalleryExplorerActivity extends Activity implements OnItemClickList
 		case R.id.switch_read: // switches the read status of a comic
 			comicinfo.read = !comicinfo.read;
 			db.updateComicInfo(comicinfo);
-			db.close();
 			comicAdapter.reloadCollection();
 
 			return true;
@@ -388,9 +393,9 @@ public class GalleryExplorerActivity extends Activity implements OnItemClickList
 			MyLog.i(TAG, "Removing comic");
 			File comicfile = new File(comicinfo.uri);
 			if (!comicfile.isDirectory()) {
-				// removes the comic from the database
+				// removes the comic from the database, and its progress that is not saved yet
+				ProgressJournal.getInstance(this).forget(comicinfo.id);
 				db.removeComic(comicinfo.id);
-				db.close();
 				// removes the comic from the filesystem
 				if (!comicfile.delete()) {
 					MyLog.w(TAG, "Comic couldn't be deleted. Secured filesystem?");
@@ -426,7 +431,7 @@ public class GalleryExplorerActivity extends Activity implements OnItemClickList
 	 * @param file The original comic file
 	 * @return The thumbnail for that file.
 	 */
-	private File getThumbnailFile(final File file) {
+	static File getThumbnailFile(final File file) {
 		String name = file.getName();
 		if (name.lastIndexOf(".") > 0) {
 			name = name.substring(0, name.lastIndexOf("."));
@@ -466,7 +471,7 @@ public class GalleryExplorerActivity extends Activity implements OnItemClickList
 				// TODO: automatic scan?
 			}
 			String uri = this.holder.file.getAbsolutePath();
-			File cachefile = GalleryExplorerActivity.this.getThumbnailFile(this.holder.file);
+			File cachefile = getThumbnailFile(this.holder.file);
 			try {
 				// First, try to load the file.
 				reader = Reader.getReader(GalleryExplorerActivity.this, uri);
@@ -484,15 +489,13 @@ public class GalleryExplorerActivity extends Activity implements OnItemClickList
 				// if we are here, the thumbnail was not found.. or not allowed
 				MyLog.v(TAG, "Cache not found, creating: " + cachefile.getName());
 
-				// Load the cover of the book
-				Bitmap page = reader.getCover();
+				// Load the cover of the book. It is already scaled while decoding
+				Bitmap s = reader.getCover();
 				// in case of fail, return the broken image
-				if (page == null) {
+				if (s == null) {
 					return new BitmapDrawable(getResources(), BitmapFactory.decodeResource(getResources(), R.drawable.broken));
 				}
-				// scale
-				Bitmap s = Bitmap.createScaledBitmap(page, 200, 300, true);
-				
+
 				if(reader.allowCoverCache()) {
 					try {
 						// save the cache file for the next time, if you can
@@ -533,6 +536,11 @@ public class GalleryExplorerActivity extends Activity implements OnItemClickList
 				MyLog.e(TAG, e.toString());
 				MyLog.e(TAG, stackTraceToString(e));
 				return new BitmapDrawable(getResources(), BitmapFactory.decodeResource(getResources(), R.drawable.broken));
+			} finally {
+				// readers keep files open (and PDF readers save their index)
+				if (reader != null) {
+					reader.close();
+				}
 			}
 		}
 
@@ -552,6 +560,8 @@ public class GalleryExplorerActivity extends Activity implements OnItemClickList
 	public final boolean onCreateOptionsMenu(final Menu menu) {
 		MenuInflater inflater = getMenuInflater();
 		inflater.inflate(R.menu.gallerymenu, menu);
+		// the benchmark is only for debug builds
+		menu.findItem(R.id.search_benchmark).setVisible((this.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
 		return true;
 	}
 
@@ -590,11 +600,81 @@ public class GalleryExplorerActivity extends Activity implements OnItemClickList
 		case R.id.show_usage:
 			ComicViewerActivity.showHelp(this);
 			return true;
+		case R.id.search: // search a comic (ask the user)
+			final EditText input = new EditText(this);
+			input.setSingleLine();
+			new AlertDialog.Builder(this)
+					.setTitle(this.getText(R.string.search))
+					.setView(input)
+					.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+						public void onClick(final DialogInterface dialog, final int which) {
+							search(input.getText().toString());
+						}
+					}).setNegativeButton(android.R.string.cancel, null).show();
+			return true;
+		case R.id.search_benchmark: // measures the search index
+			this.runSearchBenchmark();
+			return true;
 		default:
 			return super.onOptionsItemSelected(item);
 		}
 	}
 
+	/**
+	 * Searches comics in the SearchIndex in the background, and shows the results.
+	 * The user can open a comic from the results.
+	 * @param query The words to search
+	 */
+	private void search(final String query) {
+		(new AsyncTask<Void, Void, List<String>>() {
+			@Override
+			protected List<String> doInBackground(final Void... params) {
+				return SearchIndex.getInstance(GalleryExplorerActivity.this).search(query, MAX_SEARCH_RESULTS);
+			}
+
+			@Override
+			protected void onPostExecute(final List<String> results) {
+				if (results.isEmpty()) {
+					Toast.makeText(GalleryExplorerActivity.this, R.string.no_results, Toast.LENGTH_SHORT).show();
+					return;
+				}
+				String[] names = new String[results.size()];
+				for (int i = 0; i < names.length; i++) {
+					names[i] = new File(results.get(i)).getName();
+				}
+				new AlertDialog.Builder(GalleryExplorerActivity.this)
+						.setTitle(query)
+						.setItems(names, new DialogInterface.OnClickListener() {
+							public void onClick(final DialogInterface dialog, final int which) {
+								// start the comic viewer
+								Intent data = new Intent(GalleryExplorerActivity.this, ComicViewerActivity.class);
+								data.putExtra("uri", results.get(which));
+								startActivity(data);
+							}
+						}).show();
+			}
+		}).execute();
+	}
+
+	/** Runs the SearchBenchmark in the background, and shows the results. */
+	private void runSearchBenchmark() {
+		Toast.makeText(this, R.string.benchmark_running, Toast.LENGTH_SHORT).show();
+		(new AsyncTask<Void, Void, String>() {
+			@Override
+			protected String doInBackground(final Void... params) {
+				return SearchBenchmark.run(GalleryExplorerActivity.this);
+			}
+
+			@Override
+			protected void onPostExecute(final String result) {
+				new AlertDialog.Builder(GalleryExplorerActivity.this)
+						.setTitle(GalleryExplorerActivity.this.getText(R.string.search_benchmark))
+						.setMessage(result)
+						.setPositiveButton(android.R.string.ok, null).show();
+			}
+		}).execute();
+	}
+
 	/** Get the result of a called activity.
 	 * Currently, we use these subactivities: DirExplorer to get the comics directories,
 	 * BookmarkExplorer to show the current bookmarks and ComicViewer to show a comic.
@@ -657,7 +737,7 @@ public class GalleryExplorerActivity extends Activity implements OnItemClickList
 					int page = data.getIntExtra("page", 0);
 					// get the file name (we know that the item is going to be a
 					// file)
-					ComicDBHelper db = new ComicDBHelper(this);
+					ComicDBHelper db = ComicDBHelper.getInstance(this);
 					ComicInfo ci = db.getComicInfo(comicid);
 					if (ci == null) {
 						return;
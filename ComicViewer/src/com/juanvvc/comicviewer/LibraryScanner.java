@@ -0,0 +1,354 @@
+package com.juanvvc.comicviewer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.os.Process;
+
+import com.juanvvc.comicviewer.readers.DirReader;
+import com.juanvvc.comicviewer.readers.Reader;
+
+/** Finds the comics in a directory and all its subdirectories.
+ *
+ * Directories are scanned in parallel, and each entry of a directory is checked
+ * only once. The result of the scan is saved as a snapshot in the cache
+ * directory: for each directory, its modification time, its comics, its
+ * subdirectories and the number of images in it. The modification time of a
+ * directory changes when an entry is added, removed or renamed in it, so
+ * the next scan only lists the directories that changed since the last one.
+ * Directories that did not change are not listed, but their subdirectories
+ * are still checked. After each scan, the SearchIndex is updated.
+ *
+ * @author juanvi
+ */
+public class LibraryScanner {
+	/** A tag for logging. */
+	private static final String TAG = "LibraryScanner";
+	/** The name of the file of the snapshot, inside the cache directory. */
+	private static final String SNAPSHOT = "library.idx";
+	/** Change this number if the format of the snapshot or the filter of comics change. */
+	private static final int VERSION = 1;
+	/** Number of threads that scan directories. Scanning is limited by the storage, not the CPU. */
+	private static final int THREADS = 4;
+
+	/** What we know about a directory. */
+	private static final class DirSnapshot {
+		/** The modification time of the directory. */
+		private final long modified;
+		/** Names of the files that a reader manages. */
+		private final String[] comics;
+		/** Names of the subdirectories, without hidden directories. */
+		private final String[] subdirs;
+		/** Number of images in the directory. */
+		private final int images;
+
+		/**
+		 * @param m The modification time of the directory
+		 * @param c Names of the files that a reader manages
+		 * @param s Names of the subdirectories
+		 * @param i Number of images in the directory
+		 */
+		DirSnapshot(final long m, final String[] c, final String[] s, final int i) {
+			this.modified = m;
+			this.comics = c;
+			this.subdirs = s;
+			this.images = i;
+		}
+	}
+
+	/** The context of the application. */
+	private final Context context;
+	/** The root directory. */
+	private final File root;
+	/** The snapshot of the last scan, by path. */
+	private final Map<String, DirSnapshot> previous;
+	/** The snapshot of this scan, by path. */
+	private final ConcurrentHashMap<String, DirSnapshot> current = new ConcurrentHashMap<String, DirSnapshot>();
+	/** Number of directories that are pending or being scanned. */
+	private final AtomicInteger pending = new AtomicInteger(0);
+	/** Number of directories that were listed in this scan. */
+	private final AtomicInteger listed = new AtomicInteger(0);
+	/** Scans the directories. */
+	private ExecutorService executor = null;
+
+	/**
+	 * @param c The context of the application
+	 * @param r The root directory
+	 */
+	public LibraryScanner(final Context c, final File r) {
+		this.context = c;
+		this.root = r;
+		this.previous = this.loadSnapshot();
+	}
+
+	/**
+	 * Scans the root directory and its subdirectories, at any level.
+	 * Do not call this method from the UI thread.
+	 * @return The comics in each directory with comics, sorted by name
+	 */
+	public final Map<File, List<File>> scan() {
+		long start = System.currentTimeMillis();
+		this.current.clear();
+		this.listed.set(0);
+		this.executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			/** Number of created threads. */
+			private final AtomicInteger count = new AtomicInteger(0);
+			public Thread newThread(final Runnable runnable) {
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, TAG + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			this.submit(this.root);
+			synchronized (this.pending) {
+				while (this.pending.get() > 0) {
+					try {
+						this.pending.wait();
+					} catch (InterruptedException e) {
+						MyLog.w(TAG, "Interrupted");
+						break;
+					}
+				}
+			}
+		} finally {
+			this.executor.shutdownNow();
+			this.executor = null;
+		}
+		this.saveSnapshot();
+
+		HashMap<File, List<File>> result = new HashMap<File, List<File>>();
+		HashMap<String, Long> modified = new HashMap<String, Long>();
+		for (Map.Entry<String, DirSnapshot> e: this.current.entrySet()) {
+			List<File> comics = this.getComics(new File(e.getKey()), e.getValue());
+			if (!comics.isEmpty()) {
+				result.put(new File(e.getKey()), comics);
+			}
+			modified.put(e.getKey(), e.getValue().modified);
+		}
+		// the search index only reads the directories that changed, in the background
+		SearchIndex.getInstance(this.context).update(this.root, modified, result);
+		MyLog.i(TAG, "Scanned " + this.current.size() + " directories (" + this.listed.get() + " listed) in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return result;
+	}
+
+	/** Scans a directory in the background.
+	 * @param dir The directory */
+	private void submit(final File dir) {
+		this.pending.incrementAndGet();
+		this.executor.execute(new Runnable() {
+			public void run() {
+				try {
+					DirSnapshot s = scanDirectory(dir);
+					if (s != null) {
+						current.put(dir.getAbsolutePath(), s);
+						for (String name: s.subdirs) {
+							submit(new File(dir, name));
+						}
+					}
+				} catch (Exception e) {
+					MyLog.w(TAG, "Cannot scan " + dir.getAbsolutePath() + ": " + e.toString());
+				} finally {
+					if (pending.decrementAndGet() == 0) {
+						synchronized (pending) {
+							pending.notifyAll();
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets the snapshot of a directory: the previous one if the directory did not change,
+	 * or a new one.
+	 * @param dir The directory
+	 * @return The snapshot of the directory, or null if it is not a directory
+	 */
+	private DirSnapshot scanDirectory(final File dir) {
+		long modified = dir.lastModified();
+		DirSnapshot old = this.previous.get(dir.getAbsolutePath());
+		if (old != null && old.modified == modified && modified != 0) {
+			return old;
+		}
+		this.listed.incrementAndGet();
+		return list(dir, modified);
+	}
+
+	/**
+	 * Lists a directory. Each entry is checked only once.
+	 * @param dir The directory
+	 * @param modified The modification time of the directory
+	 * @return The snapshot of the directory, or null if it is not a directory
+	 */
+	private static DirSnapshot list(final File dir, final long modified) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return null;
+		}
+		ArrayList<String> comics = new ArrayList<String>();
+		ArrayList<String> subdirs = new ArrayList<String>();
+		int images = 0;
+		for (File f: files) {
+			String name = f.getName();
+			if (name.startsWith(".")) {
+				// hidden files and directories, and the thumbnails directory
+				continue;
+			}
+			if (f.isDirectory()) {
+				subdirs.add(name);
+			} else if (Reader.existsReaderForFile(name)) {
+				comics.add(name);
+			} else if (DirReader.isImage(name)) {
+				images++;
+			}
+		}
+		return new DirSnapshot(modified, comics.toArray(new String[comics.size()]),
+				subdirs.toArray(new String[subdirs.size()]), images);
+	}
+
+	/**
+	 * @param dir A directory
+	 * @param s The snapshot of the directory
+	 * @return The comics in the directory, sorted by name: files that a reader manages,
+	 * and subdirectories with images
+	 */
+	private List<File> getComics(final File dir, final DirSnapshot s) {
+		ArrayList<String> names = new ArrayList<String>();
+		for (String name: s.comics) {
+			names.add(name);
+		}
+		for (String name: s.subdirs) {
+			DirSnapshot sub = this.current.get(new File(dir, name).getAbsolutePath());
+			if (sub != null && sub.images >= DirReader.MIN_IMGS_NUMBER) {
+				names.add(name);
+			}
+		}
+		Collections.sort(names);
+		ArrayList<File> comics = new ArrayList<File>(names.size());
+		for (String name: names) {
+			comics.add(new File(dir, name));
+		}
+		return comics;
+	}
+
+	/**
+	 * Lists the comics of a single directory, without using the snapshot.
+	 * @param dir The directory
+	 * @return The comics in the directory, sorted by name: files that a reader manages,
+	 * and subdirectories with images. Null if dir is not a directory
+	 */
+	public static List<File> listComics(final File dir) {
+		DirSnapshot s = list(dir, dir.lastModified());
+		if (s == null) {
+			return null;
+		}
+		ArrayList<String> names = new ArrayList<String>();
+		for (String name: s.comics) {
+			names.add(name);
+		}
+		for (String name: s.subdirs) {
+			File sub = new File(dir, name);
+			if (DirReader.manages(sub.getAbsolutePath())) {
+				names.add(name);
+			}
+		}
+		Collections.sort(names);
+		ArrayList<File> comics = new ArrayList<File>(names.size());
+		for (String name: names) {
+			comics.add(new File(dir, name));
+		}
+		return comics;
+	}
+
+	/** @return The file of the snapshot */
+	private File getSnapshotFile() {
+		return new File(this.context.getCacheDir(), SNAPSHOT);
+	}
+
+	/** @return The snapshot of the last scan of the root directory. Empty if there is not a valid one */
+	private Map<String, DirSnapshot> loadSnapshot() {
+		HashMap<String, DirSnapshot> snapshot = new HashMap<String, DirSnapshot>();
+		File f = this.getSnapshotFile();
+		if (!f.exists()) {
+			return snapshot;
+		}
+		DataInputStream in = null;
+		try {
+			in = CacheFile.open(f);
+			if (in.readInt() != VERSION || !in.readUTF().equals(this.root.getAbsolutePath())) {
+				MyLog.d(TAG, "Snapshot of another library");
+				return snapshot;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long modified = in.readLong();
+				int images = in.readInt();
+				String[] comics = new String[in.readInt()];
+				for (int j = 0; j < comics.length; j++) {
+					comics[j] = in.readUTF();
+				}
+				String[] subdirs = new String[in.readInt()];
+				for (int j = 0; j < subdirs.length; j++) {
+					subdirs[j] = in.readUTF();
+				}
+				snapshot.put(path, new DirSnapshot(modified, comics, subdirs, images));
+			}
+		} catch (IOException e) {
+			MyLog.w(TAG, "Cannot read the snapshot: " + e.toString());
+			snapshot.clear();
+		} finally {
+			CacheFile.close(in);
+		}
+		return snapshot;
+	}
+
+	/** Saves the snapshot of this scan. Errors are logged and ignored. */
+	private void saveSnapshot() {
+		try {
+			CacheFile.write(this.getSnapshotFile(), new CacheFile.Content() {
+				public void write(final DataOutputStream out) throws IOException {
+					out.writeInt(VERSION);
+					out.writeUTF(root.getAbsolutePath());
+					out.writeInt(current.size());
+					for (Map.Entry<String, DirSnapshot> e: current.entrySet()) {
+						DirSnapshot s = e.getValue();
+						out.writeUTF(e.getKey());
+						out.writeLong(s.modified);
+						out.writeInt(s.images);
+						out.writeInt(s.comics.length);
+						for (String name: s.comics) {
+							out.writeUTF(name);
+						}
+						out.writeInt(s.subdirs.length);
+						for (String name: s.subdirs) {
+							out.writeUTF(name);
+						}
+					}
+				}
+			}, false);
+		} catch (IOException e) {
+			MyLog.w(TAG, "Cannot save the snapshot: " + e.toString());
+		}
+	}
+}
@@ -7,14 +7,19 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.view.GestureDetector;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.view.View.OnTouchListener;
 import android.widget.ImageView;
 
 import com.juanvvc.comicviewer.readers.TiledDrawable;
+import com.juanvvc.comicviewer.readers.ZoomDrawable;
 
 /** Custom ImageView to allow drawings on the images.
+ * If the image is a ZoomDrawable, the user zooms the image with two fingers,
+ * pans it with one finger, and double taps to see the whole image.
  * @author juanvi
  */
 public class MyImageView extends ImageView implements OnTouchListener {
@@ -34,6 +39,12 @@ public class MyImageView extends ImageView implements OnTouchListener {
 	private boolean edited = false;
 	/** If inner drawable is TiledDrawable, the mode of the TiledDrawable. */
 	private TiledDrawable.Mode tiledDrawableMode = TiledDrawable.Mode.CENTERED_FILL_SCREEN;
+	/** Detects the zoom gestures on a ZoomDrawable. */
+	private final ScaleGestureDetector scaleDetector;
+	/** Detects the pan and double tap gestures on a ZoomDrawable. */
+	private final GestureDetector gestureDetector;
+	/** Gets the single taps on a ZoomDrawable, since the parent views do not get them. */
+	private OnTouchListener tapListener = null;
 
 	/** Constructs a new MyImageView.
 	 * @param context The context of the application
@@ -55,6 +66,65 @@ public class MyImageView extends ImageView implements OnTouchListener {
 
 		  this.setOnTouchListener(this);
 
+		  this.scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+			  @Override
+			  public boolean onScale(final ScaleGestureDetector detector) {
+				  ZoomDrawable z = getZoomDrawable();
+				  if (z != null) {
+					  z.zoomBy(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+				  }
+				  return true;
+			  }
+		  });
+		  this.gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+			  @Override
+			  public boolean onScroll(final MotionEvent e1, final MotionEvent e2, final float dx, final float dy) {
+				  ZoomDrawable z = getZoomDrawable();
+				  if (z != null) {
+					  z.panBy(-dx, -dy);
+				  }
+				  return true;
+			  }
+
+			  @Override
+			  public boolean onDoubleTap(final MotionEvent e) {
+				  ZoomDrawable z = getZoomDrawable();
+				  if (z != null) {
+					  if (z.isZoomed()) {
+						  z.fit();
+					  } else {
+						  z.zoomBy(2, e.getX(), e.getY());
+					  }
+				  }
+				  return true;
+			  }
+
+			  @Override
+			  public boolean onSingleTapConfirmed(final MotionEvent e) {
+				  // the user can still turn pages and show the action bar while zoomed
+				  if (tapListener != null) {
+					  tapListener.onTouch(MyImageView.this, e);
+				  }
+				  return true;
+			  }
+		  });
+	}
+
+	/**
+	 * @param l Gets the single taps while a ZoomDrawable is shown, as an ACTION_DOWN event
+	 * on this view. The rest of the time, taps go to the parent views as usual. May be null
+	 */
+	public final void setOnSingleTapListener(final OnTouchListener l) {
+		this.tapListener = l;
+	}
+
+	/** @return The current drawable, if it is a ZoomDrawable. Null if not */
+	public final ZoomDrawable getZoomDrawable() {
+		Drawable d = this.getDrawable();
+		if (d instanceof ZoomDrawable) {
+			return (ZoomDrawable) d;
+		}
+		return null;
 	}
 
 	/**
@@ -140,11 +210,20 @@ public class MyImageView extends ImageView implements OnTouchListener {
 	/** Receives onTouch events.
 	 * @param v Current view (this)
 	 * @param event Motion event
-	 * @return true if the drawing is enabled, false otherwise. If drawing is enabled, parent views
-	 * are not going to get the event.
+	 * @return true if the drawing or the zoom is enabled, false otherwise. If drawing or zoom are enabled,
+	 * parent views are not going to get the event. In zoom mode, single taps go to the listener
+	 * of setOnSingleTapListener().
 	 * @see android.view.View.OnTouchListener#onTouch(android.view.View, android.view.MotionEvent)
 	 */
 	public final boolean onTouch(final View v, final MotionEvent event) {
+		if (!this.drawMode && this.getZoomDrawable() != null) {
+			// zoom mode: the parent views do not get the event
+			this.scaleDetector.onTouchEvent(event);
+			if (!this.scaleDetector.isInProgress()) {
+				this.gestureDetector.onTouchEvent(event);
+			}
+			return true;
+		}
 		if (!this.drawMode || this.buffer == null) {
 			return false;
 		}
@@ -217,8 +296,11 @@ public class MyImageView extends ImageView implements OnTouchListener {
 					MyLog.w(TAG, e.toString());
 				}
 			} else if (currentd instanceof TiledDrawable) {
-				MyLog.d(TAG, "Recycling old TiledDrawable");
-				((TiledDrawable) currentd).recycle();
+				MyLog.d(TAG, "Releasing old TiledDrawable");
+				((TiledDrawable) currentd).release();
+			} else if (currentd instanceof ZoomDrawable) {
+				MyLog.d(TAG, "Closing old ZoomDrawable");
+				((ZoomDrawable) currentd).close();
 			}
 			super.setImageDrawable(null);
 		}
@@ -0,0 +1,110 @@
+package com.juanvvc.comicviewer;
+
+import android.os.SystemClock;
+
+/** Measures how long the user waits after turning a page.
+ *
+ * Each turn has two times: the time to the first pixel (anything on the screen,
+ * such as a preview of the page) and the time to full quality (the decoded page
+ * on the screen). If the page was in the cache, both times are the same.
+ *
+ * Use this class only from the UI thread.
+ *
+ * @author juanvi
+ */
+public class PageTurnMetrics {
+	/** A tag for logging. */
+	private static final String TAG = "PageTurnMetrics";
+
+	/** The page of the current turn, or -1. */
+	private int page = -1;
+	/** When the current turn started. */
+	private long start = 0;
+	/** If set, something is on the screen in the current turn. */
+	private boolean firstPixel = false;
+	/** Number of finished turns. */
+	private int turns = 0;
+	/** Number of finished turns that showed a preview before the full page. */
+	private int previews = 0;
+	/** Accumulated milliseconds to the first pixel. */
+	private long totalFirstPixel = 0;
+	/** Accumulated milliseconds to full quality. */
+	private long totalFullQuality = 0;
+	/** The worst time to full quality, in milliseconds. */
+	private long maxFullQuality = 0;
+	/** Milliseconds to the first pixel in the last turn. */
+	private long lastFirstPixel = 0;
+	/** Milliseconds to full quality in the last turn. */
+	private long lastFullQuality = 0;
+
+	/** The user turned to a page.
+	 * A turn that didn't finish is forgotten.
+	 * @param p The page the user turned to */
+	public final void start(final int p) {
+		this.page = p;
+		this.start = SystemClock.uptimeMillis();
+		this.firstPixel = false;
+	}
+
+	/** Something of the page is on the screen: a preview or the page itself.
+	 * @param p The page on the screen */
+	public final void firstPixel(final int p) {
+		if (p != this.page || this.firstPixel) {
+			return;
+		}
+		this.firstPixel = true;
+		this.lastFirstPixel = SystemClock.uptimeMillis() - this.start;
+	}
+
+	/** The decoded page is on the screen. This finishes the turn.
+	 * @param p The page on the screen */
+	public final void fullQuality(final int p) {
+		if (p != this.page) {
+			return;
+		}
+		if (this.firstPixel) {
+			this.previews++;
+		} else {
+			this.firstPixel(p);
+		}
+		this.lastFullQuality = SystemClock.uptimeMillis() - this.start;
+		this.turns++;
+		this.totalFirstPixel += this.lastFirstPixel;
+		this.totalFullQuality += this.lastFullQuality;
+		this.maxFullQuality = Math.max(this.maxFullQuality, this.lastFullQuality);
+		this.page = -1;
+		MyLog.v(TAG, "Page " + p + ": first pixel " + this.lastFirstPixel + "ms, full quality " + this.lastFullQuality + "ms");
+	}
+
+	/** @return Milliseconds to the first pixel in the last turn. */
+	public final long getLastFirstPixel() {
+		return this.lastFirstPixel;
+	}
+
+	/** @return Milliseconds to full quality in the last turn. */
+	public final long getLastFullQuality() {
+		return this.lastFullQuality;
+	}
+
+	/** @return The average milliseconds to the first pixel, or 0 if no turns. */
+	public final long getAverageFirstPixel() {
+		return this.turns == 0 ? 0 : this.totalFirstPixel / this.turns;
+	}
+
+	/** @return The average milliseconds to full quality, or 0 if no turns. */
+	public final long getAverageFullQuality() {
+		return this.turns == 0 ? 0 : this.totalFullQuality / this.turns;
+	}
+
+	/** @return Number of finished turns. */
+	public final int getTurns() {
+		return this.turns;
+	}
+
+	@Override
+	public final String toString() {
+		return "PageTurnMetrics: " + this.turns + " turns (" + this.previews + " with preview), first pixel avg "
+				+ this.getAverageFirstPixel() + "ms, full quality avg " + this.getAverageFullQuality()
+				+ "ms, max " + this.maxFullQuality + "ms";
+	}
+}
@@ -0,0 +1,357 @@
+package com.juanvvc.comicviewer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/** Saves the reading progress of the comics in the background.
+ *
+ * The viewer saves the current page and the bookmarks of a comic each time
+ * they change. Saving is only a snapshot of the values in memory: the database is
+ * updated later by a background thread, in a single transaction for all the comics
+ * that changed. Repeated updates of the same comic are coalesced and only the last
+ * one is written.
+ *
+ * The snapshots that are not in the database yet are also written to a small
+ * journal file, which is much faster than a transaction. The journal has its own
+ * thread, so it is written right after each snapshot even if a transaction is running.
+ * If the process dies before the database is updated, the journal is replayed
+ * the next time the journal is used.
+ *
+ * Only the progress of a comic is saved: the last page, the number of pages and the
+ * bookmarks. The "read" mark is managed by the gallery and it is never overwritten.
+ *
+ * This class is thread safe.
+ *
+ * @author juanvi
+ */
+public final class ProgressJournal {
+	/** A tag for logging. */
+	private static final String TAG = "ProgressJournal";
+	/** The name of the journal file, inside the files directory. */
+	private static final String JOURNAL = "progress.journal";
+	/** Change this number if the format of the journal changes. */
+	private static final int VERSION = 1;
+	/** Milliseconds to wait for more updates before writing to the database. */
+	private static final long FLUSH_DELAY = 5000;
+
+	/** The only instance of the journal. */
+	private static ProgressJournal instance = null;
+
+	/** The context of the application. */
+	private final Context context;
+	/** The snapshots that are not in the database yet, by comic id, in order of arrival. */
+	private final LinkedHashMap<Long, ComicInfo> unsaved = new LinkedHashMap<Long, ComicInfo>();
+	/** Runs the writes to the database. */
+	private final Handler handler;
+	/** Runs the writes to the journal file. */
+	private final Handler journalHandler;
+	/** Opened after the journal of the last process was loaded. */
+	private final CountDownLatch replayed = new CountDownLatch(1);
+	/** If set, a write of the journal file is pending. Guarded by unsaved. */
+	private boolean journalPending = false;
+	/** If set, a write of the database is pending. Guarded by unsaved. */
+	private boolean flushPending = false;
+
+	/** Writes the journal file with the current snapshots. */
+	private final Runnable writeJournal = new Runnable() {
+		public void run() {
+			writeJournal();
+		}
+	};
+
+	/** Writes the snapshots in the database. */
+	private final Runnable flushDatabase = new Runnable() {
+		public void run() {
+			flushDatabase();
+		}
+	};
+
+	/**
+	 * Loads the journal, and replays it if the last process did not update the database.
+	 * @param c The context of the application
+	 */
+	private ProgressJournal(final Context c) {
+		this.context = c;
+		HandlerThread thread = new HandlerThread(TAG + ".db", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		this.handler = new Handler(thread.getLooper());
+		HandlerThread journalThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		journalThread.start();
+		this.journalHandler = new Handler(journalThread.getLooper());
+		// the journal is loaded before it is written again
+		this.journalHandler.post(new Runnable() {
+			public void run() {
+				replay();
+			}
+		});
+	}
+
+	/**
+	 * @param context Any context. The journal keeps the context of the application
+	 * @return The journal of the application
+	 */
+	public static synchronized ProgressJournal getInstance(final Context context) {
+		if (instance == null) {
+			instance = new ProgressJournal(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	/**
+	 * Saves the progress of a comic in the background. Call this method from the
+	 * thread that manages the reader of the comic: it only takes a snapshot
+	 * and it never waits for the database.
+	 * @param info The comic. Ignored if it is not in the database
+	 */
+	public void save(final ComicInfo info) {
+		if (info == null || info.id == -1) {
+			return;
+		}
+		ComicInfo s = new ComicInfo();
+		s.id = info.id;
+		s.uri = info.uri;
+		if (info.reader != null) {
+			s.page = info.reader.getCurrentPage();
+			s.countpages = info.reader.countPages();
+		} else {
+			s.page = info.page;
+			s.countpages = info.countpages;
+		}
+		if (info.bookmarks != null) {
+			s.bookmarks = new ArrayList<Integer>(info.bookmarks);
+		} else {
+			s.bookmarks = new ArrayList<Integer>();
+		}
+		synchronized (this.unsaved) {
+			// the comic moves to the end: the order of the journal is the order of the updates
+			this.unsaved.remove(s.id);
+			this.unsaved.put(s.id, s);
+			this.scheduleJournal();
+			if (!this.flushPending) {
+				this.flushPending = true;
+				this.handler.postDelayed(this.flushDatabase, FLUSH_DELAY);
+			}
+		}
+	}
+
+	/**
+	 * Updates a comic read from the database with the progress that was not written yet.
+	 * This method may wait for the journal of the last process: do not call it from the UI thread.
+	 * @param info A comic from the database. May be null
+	 */
+	public void apply(final ComicInfo info) {
+		if (info == null) {
+			return;
+		}
+		try {
+			this.replayed.await();
+		} catch (InterruptedException e) {
+			MyLog.w(TAG, "Interrupted while loading the journal");
+		}
+		synchronized (this.unsaved) {
+			ComicInfo s = this.unsaved.get(info.id);
+			if (s != null) {
+				info.page = s.page;
+				info.countpages = s.countpages;
+				info.bookmarks = new ArrayList<Integer>(s.bookmarks);
+			}
+		}
+	}
+
+	/**
+	 * Discards the progress of a comic that is not in the database yet.
+	 * Call this method when a comic is removed from the database.
+	 * @param id The id of the comic
+	 */
+	public void forget(final long id) {
+		synchronized (this.unsaved) {
+			if (this.unsaved.remove(id) != null) {
+				this.scheduleJournal();
+			}
+		}
+	}
+
+	/** Writes the pending snapshots to the database now, in the background. */
+	public void flush() {
+		synchronized (this.unsaved) {
+			if (this.unsaved.isEmpty()) {
+				return;
+			}
+			this.handler.removeCallbacks(this.flushDatabase);
+			this.flushPending = true;
+			this.handler.post(this.flushDatabase);
+		}
+	}
+
+	/**
+	 * Writes the pending snapshots to the database and waits until they are written.
+	 * Use this method only before another component reads the database directly.
+	 */
+	public void sync() {
+		this.flush();
+		final CountDownLatch done = new CountDownLatch(1);
+		this.handler.post(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		});
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			MyLog.w(TAG, "Interrupted while waiting for the database");
+		}
+	}
+
+	/** Writes the pending snapshots to the database, in a single transaction.
+	 * Runs in the thread of the database. */
+	private void flushDatabase() {
+		ArrayList<ComicInfo> snapshots;
+		synchronized (this.unsaved) {
+			this.flushPending = false;
+			snapshots = new ArrayList<ComicInfo>(this.unsaved.values());
+		}
+		if (snapshots.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		try {
+			ComicDBHelper.getInstance(this.context).updateProgress(snapshots);
+		} catch (Exception e) {
+			// the journal keeps the snapshots, and they are written in the next flush
+			MyLog.e(TAG, "Cannot update the database: " + e.toString());
+			return;
+		}
+		synchronized (this.unsaved) {
+			for (ComicInfo s: snapshots) {
+				// a newer snapshot of the same comic may have arrived during the transaction
+				if (this.unsaved.get(s.id) == s) {
+					this.unsaved.remove(s.id);
+				}
+			}
+		}
+		MyLog.d(TAG, "Saved the progress of " + snapshots.size() + " comics in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		synchronized (this.unsaved) {
+			this.scheduleJournal();
+		}
+	}
+
+	/** Writes the journal file in its thread, if it is not going to be written yet.
+	 * Call this method holding the lock of unsaved. */
+	private void scheduleJournal() {
+		if (!this.journalPending) {
+			this.journalPending = true;
+			this.journalHandler.post(this.writeJournal);
+		}
+	}
+
+	/** @return The journal file */
+	private File getJournalFile() {
+		return new File(this.context.getFilesDir(), JOURNAL);
+	}
+
+	/** Writes the snapshots that are not in the database to the journal file.
+	 * If there is none, the journal is removed. Errors are logged and ignored.
+	 * Runs in the thread of the journal. */
+	private void writeJournal() {
+		final ArrayList<ComicInfo> snapshots;
+		synchronized (this.unsaved) {
+			this.journalPending = false;
+			snapshots = new ArrayList<ComicInfo>(this.unsaved.values());
+		}
+		File f = this.getJournalFile();
+		if (snapshots.isEmpty()) {
+			if (f.exists() && !f.delete()) {
+				MyLog.w(TAG, "Cannot delete the journal");
+			}
+			return;
+		}
+		try {
+			CacheFile.write(f, new CacheFile.Content() {
+				public void write(final DataOutputStream out) throws IOException {
+					out.writeInt(VERSION);
+					out.writeInt(snapshots.size());
+					for (ComicInfo s: snapshots) {
+						out.writeLong(s.id);
+						out.writeUTF(s.uri == null ? "" : s.uri);
+						out.writeInt(s.page);
+						out.writeInt(s.countpages);
+						out.writeInt(s.bookmarks.size());
+						for (Integer b: s.bookmarks) {
+							out.writeInt(b);
+						}
+					}
+				}
+			}, true);
+		} catch (IOException e) {
+			MyLog.w(TAG, "Cannot write the journal: " + e.toString());
+		}
+	}
+
+	/** Loads the journal file of the last process and writes it to the database.
+	 * Runs in the thread of the journal. */
+	private void replay() {
+		try {
+			this.load();
+		} finally {
+			this.replayed.countDown();
+		}
+		this.flush();
+	}
+
+	/** Loads the journal file of the last process into the pending snapshots. */
+	private void load() {
+		File f = this.getJournalFile();
+		if (!f.exists()) {
+			return;
+		}
+		LinkedHashMap<Long, ComicInfo> snapshots = new LinkedHashMap<Long, ComicInfo>();
+		DataInputStream in = null;
+		try {
+			in = CacheFile.open(f);
+			if (in.readInt() != VERSION) {
+				MyLog.w(TAG, "Unknown version of the journal");
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				ComicInfo s = new ComicInfo();
+				s.id = in.readLong();
+				s.uri = in.readUTF();
+				s.page = in.readInt();
+				s.countpages = in.readInt();
+				int bookmarks = in.readInt();
+				s.bookmarks = new ArrayList<Integer>(bookmarks);
+				for (int j = 0; j < bookmarks; j++) {
+					s.bookmarks.add(in.readInt());
+				}
+				snapshots.put(s.id, s);
+			}
+		} catch (IOException e) {
+			MyLog.w(TAG, "Cannot read the journal: " + e.toString());
+			return;
+		} finally {
+			CacheFile.close(in);
+		}
+		MyLog.i(TAG, "Replaying the progress of " + snapshots.size() + " comics");
+		synchronized (this.unsaved) {
+			for (Map.Entry<Long, ComicInfo> e: snapshots.entrySet()) {
+				// snapshots of this process are newer
+				if (!this.unsaved.containsKey(e.getKey())) {
+					this.unsaved.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package com.juanvvc.comicviewer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+/** Measures the time to build the SearchIndex and the latency of the queries,
+ * with synthetic libraries of 1k, 10k and 100k comics.
+ *
+ * Comics are named after a random vocabulary: "series issue", in a directory of
+ * the publisher and the series, and with some metadata. The index is built in a
+ * temporary database in the cache directory. The queries are prefixes, whole words,
+ * two words and words with a typo (two letters swapped).
+ *
+ * This is a tool for debugging: it is slow and uses lots of disk.
+ * Do not run it in the UI thread.
+ *
+ * @author juanvi
+ */
+public final class SearchBenchmark {
+	/** A tag for logging. */
+	private static final String TAG = "SearchBenchmark";
+	/** The name of the temporary database, inside the cache directory. */
+	private static final String DATABASE = "search_benchmark.db";
+	/** The sizes of the libraries. */
+	private static final int[] SIZES = {1000, 10000, 100000};
+	/** Number of comics that are created and indexed at once. */
+	private static final int BATCH = 5000;
+	/** Number of queries of each kind. */
+	private static final int QUERIES = 20;
+	/** The max number of results of a query, as in the search dialog. */
+	private static final int LIMIT = 100;
+	/** Syllables of the random vocabulary. */
+	private static final String[] SYLLABLES = {"ba", "ka", "ma", "to", "ri", "su", "ne", "lo", "zar",
+		"man", "der", "ven", "thor", "gal", "mon", "pi", "stor", "qua", "bel", "nix"};
+
+	/** Do not create instances of this class. */
+	private SearchBenchmark() {
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * @param context The context of the application
+	 * @return A report of the benchmark, some lines for each size of the library
+	 */
+	public static String run(final Context context) {
+		StringBuffer report = new StringBuffer();
+		for (int size: SIZES) {
+			File f = new File(context.getCacheDir(), DATABASE);
+			f.delete();
+			SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(f, null);
+			try {
+				run(db, size, report);
+			} finally {
+				db.close();
+				f.delete();
+			}
+		}
+		MyLog.i(TAG, report.toString());
+		return report.toString();
+	}
+
+	/**
+	 * Builds an index and runs the queries.
+	 * @param db An empty database
+	 * @param size The number of comics
+	 * @param report The results are appended here
+	 */
+	private static void run(final SQLiteDatabase db, final int size, final StringBuffer report) {
+		Random random = new Random(size);
+		// about one word for each ten comics, as in a real library
+		String[] vocabulary = new String[Math.max(50, size / 10)];
+		for (int i = 0; i < vocabulary.length; i++) {
+			vocabulary[i] = word(random);
+		}
+		SearchIndex.createTables(db);
+
+		long start = System.nanoTime();
+		for (int done = 0; done < size; done += BATCH) {
+			ArrayList<SearchIndex.Entry> entries = new ArrayList<SearchIndex.Entry>();
+			for (int i = done; i < Math.min(size, done + BATCH); i++) {
+				entries.add(entry(random, vocabulary, i));
+			}
+			HashMap<String, Integer> deltas = new HashMap<String, Integer>();
+			db.beginTransaction();
+			try {
+				SearchIndex.insert(db, entries, deltas);
+				SearchIndex.updateTerms(db, deltas);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+		long build = (System.nanoTime() - start) / 1000000;
+		report.append(size).append(" comics: build ").append(build).append("ms");
+		if (build > 0) {
+			report.append(" (").append(size * 1000L / build).append(" comics/s)");
+		}
+		report.append("\n");
+
+		String[] prefixes = new String[QUERIES];
+		String[] words = new String[QUERIES];
+		String[] pairs = new String[QUERIES];
+		String[] typos = new String[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			String w = vocabulary[random.nextInt(vocabulary.length)];
+			prefixes[i] = w.substring(0, 3);
+			words[i] = w;
+			pairs[i] = w + " " + vocabulary[random.nextInt(vocabulary.length)];
+			// swap two letters, but not the first one
+			int p = 1 + random.nextInt(w.length() - 2);
+			typos[i] = w.substring(0, p) + w.charAt(p + 1) + w.charAt(p) + w.substring(p + 2);
+		}
+		query(db, "prefix", prefixes, report);
+		query(db, "word", words, report);
+		query(db, "two words", pairs, report);
+		query(db, "typo", typos, report);
+	}
+
+	/**
+	 * Runs some queries and reports the latency.
+	 * @param db The index
+	 * @param kind The kind of the queries, for the report
+	 * @param queries The queries
+	 * @param report The results are appended here
+	 */
+	private static void query(final SQLiteDatabase db, final String kind, final String[] queries, final StringBuffer report) {
+		// warm up: the first query reads the index from the disk
+		SearchIndex.search(db, queries[0], LIMIT);
+		long[] times = new long[queries.length];
+		int results = 0;
+		for (int i = 0; i < queries.length; i++) {
+			long start = System.nanoTime();
+			List<String> r = SearchIndex.search(db, queries[i], LIMIT);
+			times[i] = System.nanoTime() - start;
+			results += r.size();
+		}
+		Arrays.sort(times);
+		report.append("  ").append(kind).append(": median ").append(millis(times[times.length / 2]))
+			.append("ms, max ").append(millis(times[times.length - 1]))
+			.append("ms, ").append(results / queries.length).append(" results\n");
+	}
+
+	/** @param nanos A time in nanoseconds
+	 * @return The time in milliseconds, with one decimal */
+	private static double millis(final long nanos) {
+		return Math.round(nanos / 100000.0) / 10.0;
+	}
+
+	/** @param random A random generator
+	 * @return A random word of 2 to 4 syllables */
+	private static String word(final Random random) {
+		StringBuilder w = new StringBuilder();
+		int syllables = 2 + random.nextInt(3);
+		for (int i = 0; i < syllables; i++) {
+			w.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+		}
+		return w.toString();
+	}
+
+	/**
+	 * @param random A random generator
+	 * @param vocabulary The words of the library
+	 * @param n The number of the comic
+	 * @return A random comic
+	 */
+	private static SearchIndex.Entry entry(final Random random, final String[] vocabulary, final int n) {
+		String series = vocabulary[random.nextInt(vocabulary.length)] + " " + vocabulary[random.nextInt(vocabulary.length)];
+		String publisher = vocabulary[random.nextInt(Math.min(20, vocabulary.length))];
+		String dir = "/sdcard/comics/" + publisher + "/" + series;
+		String name = series + " " + (1 + n % 100);
+		String meta = series + " " + vocabulary[random.nextInt(vocabulary.length)] + " " + publisher;
+		return new SearchIndex.Entry(dir + "/" + name + ".cbz", dir, name, "/" + publisher + "/" + series, meta);
+	}
+}
@@ -0,0 +1,587 @@
+package com.juanvvc.comicviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Xml;
+
+import com.juanvvc.comicviewer.readers.ArchiveEntry;
+import com.juanvvc.comicviewer.readers.ZipDirectory;
+
+/** A full text index of the comics of the library.
+ *
+ * The index has the name of each comic, the names of the directories between
+ * the root of the library and the comic, and the metadata of the comic
+ * (ComicInfo.xml inside CBZ files). It is a FTS3 table in its own database:
+ * it can be rebuilt from the library at any moment.
+ *
+ * The LibraryScanner updates the index after each scan. Only the directories
+ * whose modification time changed since they were indexed are indexed again.
+ *
+ * Queries are tokenized as the FTS3 "simple" tokenizer does. Each word of
+ * the query is a prefix, and words that are not the prefix of any word of
+ * the library are replaced by the most similar words of the library. The
+ * words of the library are in the table "terms".
+ *
+ * @author juanvi
+ */
+public final class SearchIndex extends SQLiteOpenHelper {
+	/** A tag for logging. */
+	private static final String TAG = "SearchIndex";
+	/** The name of this database. */
+	private static final String DATABASE_NAME = "search.db";
+	/** The version of this database. */
+	private static final int DATABASE_VERSION = 1;
+	/** Words shorter than this are never corrected. */
+	private static final int MIN_TYPO_LENGTH = 3;
+	/** Max number of corrections of a word. */
+	private static final int MAX_CORRECTIONS = 8;
+	/** Max size of the metadata file, in bytes. */
+	private static final int MAX_METADATA_SIZE = 64 * 1024;
+	/** The name of the metadata file inside CBZ files. */
+	private static final String METADATA = "ComicInfo.xml";
+	/** The fields of the metadata file that are indexed. */
+	private static final String[] METADATA_FIELDS = {"Title", "Series", "Number", "Volume", "Writer",
+		"Penciller", "Publisher", "Imprint", "Genre", "Characters", "Teams"};
+
+	/** The index of the application. */
+	private static SearchIndex instance = null;
+	/** Runs the updates of the index. */
+	private final Handler handler;
+
+	/** A comic to index. */
+	static final class Entry {
+		/** The path of the comic. */
+		private final String path;
+		/** The path of the directory of the comic. */
+		private final String dir;
+		/** The name of the comic, without extension. */
+		private final String name;
+		/** The names of the directories between the root and the comic. */
+		private final String folder;
+		/** The metadata of the comic. */
+		private final String meta;
+
+		/**
+		 * @param p The path of the comic
+		 * @param d The path of the directory of the comic
+		 * @param n The name of the comic, without extension
+		 * @param f The names of the directories between the root and the comic
+		 * @param m The metadata of the comic
+		 */
+		Entry(final String p, final String d, final String n, final String f, final String m) {
+			this.path = p;
+			this.dir = d;
+			this.name = n;
+			this.folder = f;
+			this.meta = m;
+		}
+	}
+
+	/** Creates this helper.
+	 * @param context The context of the application
+	 */
+	private SearchIndex(final Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		this.handler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * @param context Any context of the application
+	 * @return The index of the application
+	 */
+	public static synchronized SearchIndex getInstance(final Context context) {
+		if (instance == null) {
+			instance = new SearchIndex(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	@Override
+	public void onCreate(final SQLiteDatabase db) {
+		createTables(db);
+	}
+
+	@Override
+	public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+		MyLog.w(TAG, "Updating the index from " + oldVersion + " to " + newVersion);
+		// the index is rebuilt in the next scan
+		db.execSQL("DROP TABLE IF EXISTS dirs");
+		db.execSQL("DROP TABLE IF EXISTS entries");
+		db.execSQL("DROP TABLE IF EXISTS search");
+		db.execSQL("DROP TABLE IF EXISTS terms");
+		createTables(db);
+	}
+
+	/** Creates the tables of the index.
+	 * @param db The database */
+	static void createTables(final SQLiteDatabase db) {
+		// the indexed directories, and their modification time when they were indexed
+		db.execSQL("CREATE TABLE dirs(path TEXT PRIMARY KEY, modified INTEGER NOT NULL);");
+		// the comics. The docid of the search table is the _id of the comic
+		db.execSQL("CREATE TABLE entries(_id INTEGER PRIMARY KEY, path TEXT NOT NULL, dir TEXT NOT NULL);");
+		db.execSQL("CREATE INDEX entries_dir ON entries(dir);");
+		db.execSQL("CREATE VIRTUAL TABLE search USING fts3(name, folder, meta);");
+		// the words in the search table, and the number of times they are used
+		db.execSQL("CREATE TABLE terms(term TEXT PRIMARY KEY, count INTEGER NOT NULL);");
+	}
+
+	/**
+	 * Updates the index in the background with the result of a scan of the library.
+	 * Directories that are not in the scan are removed from the index.
+	 * @param root The root directory of the library
+	 * @param dirs The modification time of each scanned directory, by path
+	 * @param comics The comics of each directory with comics
+	 */
+	public void update(final File root, final Map<String, Long> dirs, final Map<File, List<File>> comics) {
+		this.handler.post(new Runnable() {
+			public void run() {
+				try {
+					updateNow(root, dirs, comics);
+				} catch (Exception e) {
+					MyLog.e(TAG, "Cannot update the index: " + e.toString());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Updates the index. Metadata files are read only from the directories that changed.
+	 * @param root The root directory of the library
+	 * @param dirs The modification time of each scanned directory, by path
+	 * @param comics The comics of each directory with comics
+	 */
+	private void updateNow(final File root, final Map<String, Long> dirs, final Map<File, List<File>> comics) {
+		long start = System.currentTimeMillis();
+		SQLiteDatabase db = this.getWritableDatabase();
+		HashMap<String, Long> indexed = new HashMap<String, Long>();
+		Cursor cur = db.rawQuery("SELECT path, modified FROM dirs", null);
+		while (cur.moveToNext()) {
+			indexed.put(cur.getString(0), cur.getLong(1));
+		}
+		cur.close();
+
+		ArrayList<String> removed = new ArrayList<String>();
+		for (String path: indexed.keySet()) {
+			if (!dirs.containsKey(path)) {
+				removed.add(path);
+			}
+		}
+		ArrayList<String> changed = new ArrayList<String>();
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		String rootPath = root.getAbsolutePath();
+		for (Map.Entry<String, Long> e: dirs.entrySet()) {
+			Long modified = indexed.get(e.getKey());
+			if (modified != null && modified.longValue() == e.getValue().longValue() && modified.longValue() != 0) {
+				continue;
+			}
+			changed.add(e.getKey());
+			List<File> files = comics.get(new File(e.getKey()));
+			if (files == null) {
+				continue;
+			}
+			String folder = e.getKey().startsWith(rootPath) ? e.getKey().substring(rootPath.length()) : e.getKey();
+			for (File f: files) {
+				entries.add(new Entry(f.getAbsolutePath(), e.getKey(), stripExtension(f.getName()),
+						folder, readMetadata(f)));
+			}
+		}
+		if (removed.isEmpty() && changed.isEmpty()) {
+			return;
+		}
+
+		HashMap<String, Integer> deltas = new HashMap<String, Integer>();
+		db.beginTransaction();
+		try {
+			ArrayList<String> cleared = new ArrayList<String>(removed);
+			cleared.addAll(changed);
+			for (String dir: cleared) {
+				removeDirectory(db, dir, deltas);
+			}
+			insert(db, entries, deltas);
+			updateTerms(db, deltas);
+			SQLiteStatement st = db.compileStatement("INSERT OR REPLACE INTO dirs(path, modified) VALUES (?, ?)");
+			for (String dir: changed) {
+				st.bindString(1, dir);
+				st.bindLong(2, dirs.get(dir));
+				st.executeInsert();
+			}
+			st.close();
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		MyLog.i(TAG, "Indexed " + changed.size() + " directories (" + entries.size() + " comics) and removed "
+				+ removed.size() + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Removes the comics of a directory from the index.
+	 * @param db The database, in a transaction
+	 * @param dir The path of the directory
+	 * @param deltas The changes of the count of each word are added here
+	 */
+	private static void removeDirectory(final SQLiteDatabase db, final String dir, final Map<String, Integer> deltas) {
+		String[] args = new String[] {dir };
+		Cursor cur = db.rawQuery("SELECT name, folder, meta FROM search WHERE docid IN (SELECT _id FROM entries WHERE dir=?)", args);
+		while (cur.moveToNext()) {
+			for (int i = 0; i < 3; i++) {
+				countTerms(cur.getString(i), -1, deltas);
+			}
+		}
+		cur.close();
+		db.execSQL("DELETE FROM search WHERE docid IN (SELECT _id FROM entries WHERE dir=?)", args);
+		db.execSQL("DELETE FROM entries WHERE dir=?", args);
+		db.execSQL("DELETE FROM dirs WHERE path=?", args);
+	}
+
+	/**
+	 * Adds comics to the index.
+	 * @param db The database, in a transaction
+	 * @param entries The comics
+	 * @param deltas The changes of the count of each word are added here
+	 */
+	static void insert(final SQLiteDatabase db, final List<Entry> entries, final Map<String, Integer> deltas) {
+		SQLiteStatement entry = db.compileStatement("INSERT INTO entries(path, dir) VALUES (?, ?)");
+		SQLiteStatement search = db.compileStatement("INSERT INTO search(docid, name, folder, meta) VALUES (?, ?, ?, ?)");
+		try {
+			for (Entry e: entries) {
+				entry.bindString(1, e.path);
+				entry.bindString(2, e.dir);
+				long id = entry.executeInsert();
+				search.bindLong(1, id);
+				search.bindString(2, e.name);
+				search.bindString(3, e.folder);
+				search.bindString(4, e.meta);
+				search.executeInsert();
+				countTerms(e.name, 1, deltas);
+				countTerms(e.folder, 1, deltas);
+				countTerms(e.meta, 1, deltas);
+			}
+		} finally {
+			entry.close();
+			search.close();
+		}
+	}
+
+	/**
+	 * Applies the changes of the count of the words.
+	 * @param db The database, in a transaction
+	 * @param deltas The change of the count of each word
+	 */
+	static void updateTerms(final SQLiteDatabase db, final Map<String, Integer> deltas) {
+		SQLiteStatement update = db.compileStatement("UPDATE terms SET count=count+? WHERE term=?");
+		SQLiteStatement insert = db.compileStatement("INSERT INTO terms(term, count) VALUES (?, ?)");
+		try {
+			for (Map.Entry<String, Integer> e: deltas.entrySet()) {
+				if (e.getValue() == 0) {
+					continue;
+				}
+				update.bindLong(1, e.getValue());
+				update.bindString(2, e.getKey());
+				if (update.executeUpdateDelete() == 0 && e.getValue() > 0) {
+					insert.bindString(1, e.getKey());
+					insert.bindLong(2, e.getValue());
+					insert.executeInsert();
+				}
+			}
+		} finally {
+			update.close();
+			insert.close();
+		}
+		db.execSQL("DELETE FROM terms WHERE count<=0");
+	}
+
+	/**
+	 * Counts the words of a text.
+	 * @param text The text. May be null
+	 * @param count The count of each word of the text
+	 * @param deltas The count is added to the words here
+	 */
+	private static void countTerms(final String text, final int count, final Map<String, Integer> deltas) {
+		for (String term: new HashSet<String>(tokenize(text))) {
+			Integer old = deltas.get(term);
+			deltas.put(term, old == null ? count : old + count);
+		}
+	}
+
+	/**
+	 * Splits a text in words as the FTS3 "simple" tokenizer does: words are the
+	 * sequences of ASCII letters, digits and non ASCII characters, and only ASCII
+	 * letters are lowercased.
+	 * @param text The text. May be null
+	 * @return The words of the text
+	 */
+	static List<String> tokenize(final String text) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		if (text == null) {
+			return tokens;
+		}
+		StringBuilder token = new StringBuilder();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				token.append((char) (c - 'A' + 'a'));
+			} else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c >= 0x80) {
+				token.append(c);
+			} else if (token.length() > 0) {
+				tokens.add(token.toString());
+				token.setLength(0);
+			}
+		}
+		if (token.length() > 0) {
+			tokens.add(token.toString());
+		}
+		return tokens;
+	}
+
+	/** @param name A file name
+	 * @return The name without the extension */
+	private static String stripExtension(final String name) {
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Reads the metadata of a comic. Currently, only ComicInfo.xml inside CBZ files.
+	 * @param f The comic
+	 * @return The indexed fields of the metadata, separated by spaces. Empty if there is no metadata
+	 */
+	private static String readMetadata(final File f) {
+		String ext = f.getName().toLowerCase(Locale.US);
+		if (!ext.endsWith(".cbz") && !ext.endsWith(".zip")) {
+			return "";
+		}
+		ZipDirectory zip = null;
+		try {
+			zip = new ZipDirectory(f);
+			for (ArchiveEntry e: zip.getEntries()) {
+				if (e.getName().equalsIgnoreCase(METADATA) && e.getSize() < MAX_METADATA_SIZE) {
+					return parseMetadata(zip.read(e));
+				}
+			}
+		} catch (Exception e) {
+			MyLog.d(TAG, "Cannot read the metadata of " + f.getName() + ": " + e.toString());
+		} finally {
+			if (zip != null) {
+				zip.close();
+			}
+		}
+		return "";
+	}
+
+	/**
+	 * @param data The contents of a ComicInfo.xml file
+	 * @return The indexed fields, separated by spaces
+	 * @throws Exception If the file cannot be parsed
+	 */
+	private static String parseMetadata(final byte[] data) throws Exception {
+		XmlPullParser parser = Xml.newPullParser();
+		parser.setInput(new ByteArrayInputStream(data), null);
+		StringBuilder meta = new StringBuilder();
+		boolean indexed = false;
+		for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+			if (event == XmlPullParser.START_TAG) {
+				indexed = false;
+				for (String field: METADATA_FIELDS) {
+					if (field.equals(parser.getName())) {
+						indexed = true;
+						break;
+					}
+				}
+			} else if (event == XmlPullParser.END_TAG) {
+				indexed = false;
+			} else if (event == XmlPullParser.TEXT && indexed) {
+				meta.append(parser.getText()).append(' ');
+			}
+		}
+		return meta.toString().trim();
+	}
+
+	/**
+	 * Searches comics in the index. Do not call this method from the UI thread.
+	 * @param query The words to search. The last word may be incomplete, and words may have typos
+	 * @param limit The max number of results
+	 * @return The paths of the comics that match all the words, sorted by name
+	 */
+	public List<String> search(final String query, final int limit) {
+		return search(this.getReadableDatabase(), query, limit);
+	}
+
+	/**
+	 * Searches comics in an index.
+	 * @param db The database of the index
+	 * @param query The words to search
+	 * @param limit The max number of results
+	 * @return The paths of the comics that match all the words, sorted by name
+	 */
+	static List<String> search(final SQLiteDatabase db, final String query, final int limit) {
+		ArrayList<String> results = new ArrayList<String>();
+		String match = buildMatch(db, query);
+		if (match == null) {
+			return results;
+		}
+		Cursor cur = db.rawQuery("SELECT path FROM entries WHERE _id IN (SELECT docid FROM search WHERE search MATCH ? LIMIT ?)",
+				new String[] {match, String.valueOf(limit) });
+		while (cur.moveToNext()) {
+			results.add(cur.getString(0));
+		}
+		cur.close();
+		Collections.sort(results, new Comparator<String>() {
+			public int compare(final String a, final String b) {
+				return new File(a).getName().compareToIgnoreCase(new File(b).getName());
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * Builds the MATCH expression of a query. Each word is a prefix. If a word is
+	 * not the prefix of any word of the library, it is replaced by its corrections.
+	 * In the FTS3 syntax, OR has a higher precedence than the implicit AND:
+	 * "batman* OR batmen spider*" means "(batman* OR batmen) AND spider*".
+	 * @param db The database of the index
+	 * @param query The words to search
+	 * @return The MATCH expression, or null if some word has no match
+	 */
+	static String buildMatch(final SQLiteDatabase db, final String query) {
+		List<String> tokens = tokenize(query);
+		if (tokens.isEmpty()) {
+			return null;
+		}
+		StringBuilder match = new StringBuilder();
+		for (String token: tokens) {
+			if (match.length() > 0) {
+				match.append(' ');
+			}
+			if (token.length() < MIN_TYPO_LENGTH || isPrefix(db, token)) {
+				match.append(token).append('*');
+				continue;
+			}
+			List<String> corrections = correct(db, token);
+			if (corrections.isEmpty()) {
+				return null;
+			}
+			for (int i = 0; i < corrections.size(); i++) {
+				if (i > 0) {
+					match.append(" OR ");
+				}
+				match.append(corrections.get(i));
+			}
+		}
+		return match.toString();
+	}
+
+	/**
+	 * @param db The database of the index
+	 * @param token A word
+	 * @return True if the word is the prefix of a word of the library
+	 */
+	private static boolean isPrefix(final SQLiteDatabase db, final String token) {
+		Cursor cur = db.rawQuery("SELECT 1 FROM terms WHERE term>=? AND term<? LIMIT 1",
+				new String[] {token, token + Character.MAX_VALUE });
+		try {
+			return cur.moveToFirst();
+		} finally {
+			cur.close();
+		}
+	}
+
+	/**
+	 * Finds the words of the library that are similar to a word: the word, or its
+	 * beginning, is at one edit (two edits for long words) of the word.
+	 * The first letter must be right: this keeps the number of candidates low.
+	 * @param db The database of the index
+	 * @param token A word
+	 * @return The corrections, from the most to the least similar and used
+	 */
+	static List<String> correct(final SQLiteDatabase db, final String token) {
+		final int max = token.length() > 6 ? 2 : 1;
+		String first = token.substring(0, 1);
+		Cursor cur = db.rawQuery("SELECT term, count FROM terms WHERE term>=? AND term<? AND length(term)>=?",
+				new String[] {first, first + Character.MAX_VALUE, String.valueOf(token.length() - max) });
+		final HashMap<String, int[]> found = new HashMap<String, int[]>();
+		while (cur.moveToNext()) {
+			String term = cur.getString(0);
+			// compare with the whole word and with its beginning: the user may be still writing
+			int d = distance(token, term, max);
+			if (term.length() > token.length()) {
+				d = Math.min(d, distance(token, term.substring(0, token.length()), max));
+			}
+			if (d <= max) {
+				found.put(term, new int[] {d, cur.getInt(1) });
+			}
+		}
+		cur.close();
+		ArrayList<String> corrections = new ArrayList<String>(found.keySet());
+		Collections.sort(corrections, new Comparator<String>() {
+			public int compare(final String a, final String b) {
+				int[] fa = found.get(a);
+				int[] fb = found.get(b);
+				if (fa[0] != fb[0]) {
+					return fa[0] - fb[0];
+				}
+				return fb[1] - fa[1];
+			}
+		});
+		if (corrections.size() > MAX_CORRECTIONS) {
+			return new ArrayList<String>(corrections.subList(0, MAX_CORRECTIONS));
+		}
+		return corrections;
+	}
+
+	/**
+	 * The edit distance between two words, counting transpositions as one edit.
+	 * @param a A word
+	 * @param b Another word
+	 * @param max Distances over this number are not exact
+	 * @return The number of edits to change a into b, or any number over max
+	 */
+	static int distance(final String a, final String b, final int max) {
+		if (Math.abs(a.length() - b.length()) > max) {
+			return max + 1;
+		}
+		int[][] d = new int[a.length() + 1][b.length() + 1];
+		for (int i = 0; i <= a.length(); i++) {
+			d[i][0] = i;
+		}
+		for (int j = 0; j <= b.length(); j++) {
+			d[0][j] = j;
+		}
+		for (int i = 1; i <= a.length(); i++) {
+			int best = Integer.MAX_VALUE;
+			for (int j = 1; j <= b.length(); j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+				if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+					d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+				}
+				best = Math.min(best, d[i][j]);
+			}
+			if (best > max) {
+				return max + 1;
+			}
+		}
+		return d[a.length()][b.length()];
+	}
+}
@@ -0,0 +1,70 @@
+package com.juanvvc.comicviewer.readers;
+
+/** An entry of an archive: a ZIP or a RAR file.
+ * The meaning of method and offset depends on the type of the archive.
+ * @author juanvi
+ */
+public final class ArchiveEntry {
+	/** The name of the entry. */
+	private final String name;
+	/** The compression method. */
+	private final int method;
+	/** The compressed size. */
+	private final long compressedSize;
+	/** The uncompressed size. */
+	private final long size;
+	/** The offset of the header of the entry in the archive. */
+	private final long headerOffset;
+	/** The offset of the data of the entry, or -1 if not known yet. Used by ZipDirectory. */
+	long dataOffset = -1;
+
+	/**
+	 * @param n The name of the entry
+	 * @param m The compression method
+	 * @param cs The compressed size
+	 * @param s The uncompressed size
+	 * @param h The offset of the header of the entry in the archive
+	 */
+	public ArchiveEntry(final String n, final int m, final long cs, final long s, final long h) {
+		this.name = n;
+		this.method = m;
+		this.compressedSize = cs;
+		this.size = s;
+		this.headerOffset = h;
+	}
+
+	/** @return The name of the entry */
+	public String getName() {
+		return this.name;
+	}
+
+	/** @return The compression method */
+	public int getMethod() {
+		return this.method;
+	}
+
+	/** @return The compressed size */
+	public long getCompressedSize() {
+		return this.compressedSize;
+	}
+
+	/** @return The uncompressed size */
+	public long getSize() {
+		return this.size;
+	}
+
+	/** @return The offset of the header of the entry in the archive */
+	public long getHeaderOffset() {
+		return this.headerOffset;
+	}
+
+	/** @return True if the entry is a directory */
+	public boolean isDirectory() {
+		return this.name.endsWith("/");
+	}
+
+	@Override
+	public String toString() {
+		return this.name;
+	}
+}
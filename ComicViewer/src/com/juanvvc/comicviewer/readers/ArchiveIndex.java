@@ -0,0 +1,111 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+
+import com.juanvvc.comicviewer.CacheFile;
+import com.juanvvc.comicviewer.MyLog;
+
+/** A persistent index of the pages of an archive.
+ *
+ * Opening an archive means reading all its headers, removing the files that
+ * are not images and sorting them. This is done every time a comic is opened
+ * and for every cover in the gallery. The index saves the sorted list of pages
+ * of an archive in the cache directory of the application, so the next time
+ * the archive is opened it is a single small read.
+ *
+ * An index is valid while the path, size and modification time of the archive
+ * do not change.
+ *
+ * @author juanvi
+ */
+public final class ArchiveIndex {
+	/** A tag for logging. */
+	private static final String TAG = "ArchiveIndex";
+	/** The name of the directory of the indexes, inside the cache directory. */
+	private static final String DIRECTORY = "archive_index";
+	/** Change this number if the format of the index or the filter of pages change. */
+	private static final int VERSION = 1;
+
+	/** Do not create instances of this class. */
+	private ArchiveIndex() {
+	}
+
+	/**
+	 * @param context The context of the application
+	 * @param archive The archive
+	 * @return The file of the index of the archive
+	 */
+	private static File getIndexFile(final Context context, final File archive) {
+		return CacheFile.getFile(new File(context.getCacheDir(), DIRECTORY), archive, ".idx");
+	}
+
+	/**
+	 * Loads the index of an archive.
+	 * @param context The context of the application
+	 * @param archive The archive
+	 * @return The sorted pages of the archive, or null if there is not a valid index
+	 */
+	public static ArrayList<ArchiveEntry> load(final Context context, final File archive) {
+		File f = getIndexFile(context, archive);
+		if (!f.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = CacheFile.open(f);
+			if (!CacheFile.checkHeader(in, VERSION, archive)) {
+				MyLog.d(TAG, "Stale index of " + archive.getName());
+				return null;
+			}
+			int count = in.readInt();
+			ArrayList<ArchiveEntry> entries = new ArrayList<ArchiveEntry>(count);
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				int method = in.readInt();
+				long compressedSize = in.readLong();
+				long size = in.readLong();
+				long offset = in.readLong();
+				entries.add(new ArchiveEntry(name, method, compressedSize, size, offset));
+			}
+			return entries;
+		} catch (IOException e) {
+			MyLog.w(TAG, "Cannot read the index of " + archive.getName() + ": " + e.toString());
+			return null;
+		} finally {
+			CacheFile.close(in);
+		}
+	}
+
+	/**
+	 * Saves the index of an archive. Errors are logged and ignored.
+	 * @param context The context of the application
+	 * @param archive The archive
+	 * @param entries The sorted pages of the archive
+	 */
+	public static void save(final Context context, final File archive, final List<ArchiveEntry> entries) {
+		try {
+			CacheFile.write(getIndexFile(context, archive), new CacheFile.Content() {
+				public void write(final DataOutputStream out) throws IOException {
+					CacheFile.writeHeader(out, VERSION, archive);
+					out.writeInt(entries.size());
+					for (ArchiveEntry e: entries) {
+						out.writeUTF(e.getName());
+						out.writeInt(e.getMethod());
+						out.writeLong(e.getCompressedSize());
+						out.writeLong(e.getSize());
+						out.writeLong(e.getHeaderOffset());
+					}
+				}
+			}, false);
+		} catch (IOException e) {
+			MyLog.w(TAG, "Cannot save the index of " + archive.getName() + ": " + e.toString());
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.util.LinkedList;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+/** A pool of bitmaps to reuse the memory of the tiles.
+ *
+ * The tiles of a page are almost always of the same size (they are bounded
+ * by Reader.MAX_BITMAP_SIZE) so, instead of creating new bitmaps for each page,
+ * the tiles of the pages that leave the PageCache return to this pool and the next
+ * page is decoded into them. BitmapRegionDecoder can decode into an existing
+ * bitmap (inBitmap) from Android 4.1. In older versions, only the PDF reader
+ * reuses bitmaps.
+ *
+ * Bitmaps are reused only if they have exactly the same size and configuration.
+ * The pool keeps at most MAX_BYTES: the bitmaps that were not used for a longer time
+ * are recycled first.
+ *
+ * This class is thread safe.
+ *
+ * @author juanvi
+ */
+public final class BitmapPool {
+	/** Max number of bytes in the pool. */
+	private static final long MAX_BYTES = Runtime.getRuntime().maxMemory() / 8;
+	/** Pooled bitmaps, from the least to the most recently released. */
+	private static final LinkedList<Bitmap> POOL = new LinkedList<Bitmap>();
+	/** Number of bytes in the pool. */
+	private static long bytes = 0;
+	/** Number of requests of a bitmap. */
+	private static int requests = 0;
+	/** Number of requests that reused a bitmap of the pool. */
+	private static int hits = 0;
+	/** Number of bytes of the bitmaps created because the pool had none. */
+	private static long allocatedBytes = 0;
+	/** Number of bitmaps recycled because the pool was full. */
+	private static int evictions = 0;
+
+	/** Do not create instances of this class. */
+	private BitmapPool() {
+	}
+
+	/** @param b A bitmap
+	 * @return The number of bytes of the bitmap */
+	private static long sizeOf(final Bitmap b) {
+		return ((long) b.getRowBytes()) * b.getHeight();
+	}
+
+	/** @param config A configuration
+	 * @return The number of bytes of a pixel */
+	private static int bytesPerPixel(final Bitmap.Config config) {
+		return config == Bitmap.Config.ARGB_8888 ? 4 : 2;
+	}
+
+	/**
+	 * Takes a bitmap from the pool. The contents of the bitmap are undefined.
+	 * @param width The width of the bitmap
+	 * @param height The height of the bitmap
+	 * @param config The configuration of the bitmap
+	 * @return A mutable bitmap from the pool, or null if there is not any of this size.
+	 * The caller creates a new bitmap: this is counted as an allocation
+	 */
+	public static Bitmap take(final int width, final int height, final Bitmap.Config config) {
+		synchronized (POOL) {
+			requests++;
+			// the most recently released bitmaps are at the end of the list
+			for (int i = POOL.size() - 1; i >= 0; i--) {
+				Bitmap b = POOL.get(i);
+				if (b.getWidth() == width && b.getHeight() == height && b.getConfig() == config) {
+					POOL.remove(i);
+					bytes -= sizeOf(b);
+					hits++;
+					return b;
+				}
+			}
+			allocatedBytes += ((long) width) * height * bytesPerPixel(config);
+		}
+		return null;
+	}
+
+	/**
+	 * Gets a bitmap from the pool, or creates a new one.
+	 * The contents of the bitmap are undefined.
+	 * @param width The width of the bitmap
+	 * @param height The height of the bitmap
+	 * @param config The configuration of the bitmap
+	 * @return A mutable bitmap
+	 */
+	public static Bitmap acquire(final int width, final int height, final Bitmap.Config config) {
+		Bitmap b = take(width, height, config);
+		if (b == null) {
+			b = Bitmap.createBitmap(width, height, config);
+		}
+		return b;
+	}
+
+	/**
+	 * Decodes a region into a bitmap of the pool, if possible.
+	 * @param bd The decoder
+	 * @param rect The region to decode
+	 * @param config The configuration of the bitmap
+	 * @return The decoded region, or null if it cannot be decoded
+	 */
+	public static Bitmap decodeRegion(final BitmapRegionDecoder bd, final Rect rect, final Bitmap.Config config) {
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inPreferredConfig = config;
+		// a mutable bitmap can return to the pool later
+		opts.inMutable = true;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			return decodeRegionInto(bd, rect, opts);
+		}
+		countAllocation(rect.width(), rect.height(), config);
+		return bd.decodeRegion(rect, opts);
+	}
+
+	/** Decodes a region using inBitmap. Only from Android 4.1.
+	 * @param bd The decoder
+	 * @param rect The region to decode
+	 * @param opts The options of the decoder
+	 * @return The decoded region, or null if it cannot be decoded */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static Bitmap decodeRegionInto(final BitmapRegionDecoder bd, final Rect rect,
+			final BitmapFactory.Options opts) {
+		opts.inBitmap = take(rect.width(), rect.height(), opts.inPreferredConfig);
+		try {
+			return bd.decodeRegion(rect, opts);
+		} catch (IllegalArgumentException e) {
+			// the decoder cannot use the bitmap (for example, a PNG with a different configuration)
+			Bitmap b = opts.inBitmap;
+			if (b == null) {
+				throw e;
+			}
+			opts.inBitmap = null;
+			release(b);
+			synchronized (POOL) {
+				hits--;
+			}
+			countAllocation(rect.width(), rect.height(), opts.inPreferredConfig);
+			return bd.decodeRegion(rect, opts);
+		}
+	}
+
+	/** Counts a bitmap that was created outside the pool.
+	 * @param width The width of the bitmap
+	 * @param height The height of the bitmap
+	 * @param config The configuration of the bitmap */
+	private static void countAllocation(final int width, final int height, final Bitmap.Config config) {
+		synchronized (POOL) {
+			allocatedBytes += ((long) width) * height * bytesPerPixel(config);
+		}
+	}
+
+	/**
+	 * Returns a bitmap to the pool. Immutable bitmaps cannot be reused, and they are recycled.
+	 * If the pool is full, the least recently released bitmaps are recycled.
+	 * @param b The bitmap. Do not use it after calling this method. May be null
+	 */
+	public static void release(final Bitmap b) {
+		if (b == null || b.isRecycled()) {
+			return;
+		}
+		if (!b.isMutable() || sizeOf(b) > MAX_BYTES) {
+			b.recycle();
+			return;
+		}
+		synchronized (POOL) {
+			POOL.addLast(b);
+			bytes += sizeOf(b);
+			while (bytes > MAX_BYTES) {
+				Bitmap old = POOL.removeFirst();
+				bytes -= sizeOf(old);
+				evictions++;
+				old.recycle();
+			}
+		}
+	}
+
+	/** Recycles all the bitmaps in the pool. */
+	public static void clear() {
+		synchronized (POOL) {
+			for (Bitmap b: POOL) {
+				b.recycle();
+			}
+			POOL.clear();
+			bytes = 0;
+		}
+	}
+
+	/** @return The ratio of requests that reused a bitmap, from 0 to 1 */
+	public static float getReuseRate() {
+		synchronized (POOL) {
+			return requests == 0 ? 0 : ((float) hits) / requests;
+		}
+	}
+
+	/** @return The number of bytes of the bitmaps that were created outside the pool */
+	public static long getAllocatedBytes() {
+		synchronized (POOL) {
+			return allocatedBytes;
+		}
+	}
+
+	/** @return A summary of the usage of the pool, for logging */
+	public static String getStats() {
+		synchronized (POOL) {
+			return "BitmapPool: " + POOL.size() + " bitmaps, " + (bytes / 1024) + "KB, "
+					+ hits + "/" + requests + " reused (" + Math.round(100 * getReuseRate()) + "%), "
+					+ (allocatedBytes / 1024) + "KB allocated, " + evictions + " evicted";
+		}
+	}
+}
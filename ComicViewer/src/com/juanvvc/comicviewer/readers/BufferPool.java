@@ -0,0 +1,63 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.util.ArrayList;
+
+/** A small pool of byte arrays to read compressed images.
+ *
+ * Reading a page needs a temporary buffer of the size of the image file.
+ * Instead of creating a new buffer for each page, buffers are returned to this
+ * pool and used again. Only a few buffers are kept, and very large buffers
+ * are not kept at all: the pool must not keep lots of memory forever.
+ *
+ * This class is thread safe.
+ *
+ * @author juanvi
+ */
+public final class BufferPool {
+	/** Max number of buffers in the pool. */
+	private static final int MAX_POOLED = 2;
+	/** Larger buffers are not kept in the pool. */
+	private static final int MAX_POOLED_SIZE = 4 * 1024 * 1024;
+	/** Pooled buffers. */
+	private static final ArrayList<byte[]> POOL = new ArrayList<byte[]>();
+
+	/** Do not create instances of this class. */
+	private BufferPool() {
+	}
+
+	/** @param size The minimum size of the buffer
+	 * @return A buffer from the pool, or a new buffer if there is not any large enough */
+	public static byte[] acquire(final int size) {
+		synchronized (POOL) {
+			for (int i = 0; i < POOL.size(); i++) {
+				if (POOL.get(i).length >= size) {
+					return POOL.remove(i);
+				}
+			}
+		}
+		return new byte[size];
+	}
+
+	/** @param b A buffer to return to the pool. Do not use it after calling this method */
+	public static void release(final byte[] b) {
+		if (b == null || b.length > MAX_POOLED_SIZE) {
+			return;
+		}
+		synchronized (POOL) {
+			if (POOL.size() < MAX_POOLED) {
+				POOL.add(b);
+			} else {
+				// keep the largest buffers
+				int smallest = 0;
+				for (int i = 1; i < POOL.size(); i++) {
+					if (POOL.get(i).length < POOL.get(smallest).length) {
+						smallest = i;
+					}
+				}
+				if (POOL.get(smallest).length < b.length) {
+					POOL.set(smallest, b);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.InvalidMarkException;
+
+/** An input stream that reads from a ByteBuffer, without copying it.
+ * The buffer may be a memory-mapped region of a file.
+ * @author juanvi
+ */
+public class ByteBufferInputStream extends InputStream {
+	/** The buffer to read from. */
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param b The buffer to read from. It is read from its position to its limit.
+	 * The position of the buffer changes while reading: use b.duplicate() if needed.
+	 */
+	public ByteBufferInputStream(final ByteBuffer b) {
+		this.buffer = b;
+	}
+
+	@Override
+	public final int read() {
+		if (!this.buffer.hasRemaining()) {
+			return -1;
+		}
+		return this.buffer.get() & 0xff;
+	}
+
+	@Override
+	public final int read(final byte[] b, final int off, final int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!this.buffer.hasRemaining()) {
+			return -1;
+		}
+		int n = Math.min(len, this.buffer.remaining());
+		this.buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public final long skip(final long n) {
+		int s = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+		this.buffer.position(this.buffer.position() + s);
+		return s;
+	}
+
+	@Override
+	public final int available() {
+		return this.buffer.remaining();
+	}
+
+	@Override
+	public final boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public final synchronized void mark(final int readlimit) {
+		this.buffer.mark();
+	}
+
+	@Override
+	public final synchronized void reset() throws IOException {
+		try {
+			this.buffer.reset();
+		} catch (InvalidMarkException e) {
+			throw new IOException("Mark not set");
+		}
+	}
+}
@@ -1,16 +1,12 @@
 
 package com.juanvvc.comicviewer.readers;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.List;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -18,20 +14,21 @@ import android.graphics.drawable.Drawable;
 
 import com.juanvvc.comicviewer.MyLog;
 
-import de.innosystec.unrar.Archive;
-import de.innosystec.unrar.exception.RarException;
 import de.innosystec.unrar.rarfile.FileHeader;
 
 /** A reader for RAR files.
  *
  * Comics in ZIP usually have the extension .cbr
+ *
+ * JunRAR loads the entire file of a page into memory. This is a restriction
+ * of the library and large images may create OutOfMemoryErrors.
  * @author juanvi
  */
 public class CBRReader extends Reader {
-	/** The RAR archive to manage. */
-	private Archive archive = null;
+	/** Extracts files from the RAR archive. Opened when needed. */
+	private RarExtractor archive = null;
 	/** Entries in the RAR archive, sorted. */
-	private List<? extends FileHeader> entries = null;
+	private ArrayList<ArchiveEntry> entries = null;
 
 	/** Create a new CBRReader from a uri.
 	 * @param context Context of the application
@@ -49,38 +46,26 @@ public class CBRReader extends Reader {
 	public final void load(final String uri) throws ReaderException {
 		super.load(uri);
 		MyLog.i(TAG, "Loading URI" + uri);
-		// tries to open the RAR file
-		try {
-			this.archive = new Archive(new File(uri));
-		} catch (Exception e) {
-			throw new ReaderException(e.getMessage());
-		}
-		// throws an exception if the file is encrypted
-		try {
-			if (this.archive.isEncrypted()) {
-				this.archive = null;
-				throw new ReaderException(getContext().getString(com.juanvvc.comicviewer.R.string.encrypted_file));
-			}
-		} catch (NullPointerException e) {
-			// Two users reported that the last line throws sometimes a null pointer exception, not sure about the reason
-			// just managed this exception
-			throw new ReaderException(getContext().getString(com.juanvvc.comicviewer.R.string.cannot_read));
+		File file = new File(uri);
+		// if the archive was opened before, the sorted entries are in the index
+		this.entries = ArchiveIndex.load(this.getContext(), file);
+		if (this.entries != null) {
+			return;
 		}
-		this.entries = this.archive.getFileHeaders();
+		this.entries = new ArrayList<ArchiveEntry>();
 		// removes files that are not .jpg or .png
-		Iterator<? extends FileHeader> itr = this.entries.iterator();
-		while (itr.hasNext()) {
-			FileHeader e = itr.next();
+		for (FileHeader e: this.getArchive().getFileHeaders()) {
 			String name = e.getFileNameString().toLowerCase();
-			if (e.isDirectory() || !(name.endsWith(".jpg") || name.endsWith(".png"))) {
-				itr.remove();
+			if (!e.isDirectory() && (name.endsWith(".jpg") || name.endsWith(".png"))) {
+				this.entries.add(new ArchiveEntry(e.getFileNameString(), e.getUnpMethod(),
+						e.getFullPackSize(), e.getFullUnpackSize(), e.getPositionInFile()));
 			}
 		}
 		// sort the names alphabetically
-		Collections.sort(this.entries, new Comparator<FileHeader>() {
-			public int compare(final FileHeader lhs, final FileHeader rhs) {
-				String n1 = lhs.getFileNameString();
-				String n2 = rhs.getFileNameString();
+		Collections.sort(this.entries, new Comparator<ArchiveEntry>() {
+			public int compare(final ArchiveEntry lhs, final ArchiveEntry rhs) {
+				String n1 = lhs.getName();
+				String n2 = rhs.getName();
 				if (IGNORE_CASE) {
 					n1 = n1.toLowerCase();
 					n2 = n2.toLowerCase();
@@ -89,47 +74,119 @@ public class CBRReader extends Reader {
 			}
 
 		});
+		ArchiveIndex.save(this.getContext(), file, this.entries);
+	}
+
+	/** @return The extractor of the archive. The archive is opened if needed.
+	 * @throws ReaderException If the archive cannot be opened, or it is encrypted */
+	private synchronized RarExtractor getArchive() throws ReaderException {
+		if (this.archive != null) {
+			return this.archive;
+		}
+		if (this.getURI() == null) {
+			throw new ReaderException("Reader closed");
+		}
+		// tries to open the RAR file
+		RarExtractor a;
+		try {
+			a = new RarExtractor(new File(this.getURI()));
+		} catch (Exception e) {
+			throw new ReaderException(e.getMessage());
+		}
+		// throws an exception if the file is encrypted
+		try {
+			if (a.isEncrypted()) {
+				a.close();
+				throw new ReaderException(getContext().getString(com.juanvvc.comicviewer.R.string.encrypted_file));
+			}
+		} catch (NullPointerException e) {
+			// Two users reported that the last line throws sometimes a null pointer exception, not sure about the reason
+			// just managed this exception
+			a.close();
+			throw new ReaderException(getContext().getString(com.juanvvc.comicviewer.R.string.cannot_read));
+		}
+		this.archive = a;
+		return a;
 	}
 
 	@Override
 	public final void close() {
 		super.close();
+		synchronized (this) {
+			if (this.archive != null) {
+				this.archive.close();
+			}
+			this.archive = null;
+		}
+	}
+
+	@Override
+	public final Drawable getPage(final int page) throws ReaderException {
+		if (page < 0 || page >= this.countPages()) {
+			return null;
+		}
 		try {
-			this.archive.close();
+			// an array of the exact size of the image, shared by all the decoders of the page
+			return this.bytesToTiledDrawable(this.getArchive().extract(this.entries.get(page).getName()));
 		} catch (IOException e) {
-			MyLog.e(TAG, e.toString());
+			throw new ReaderException(getContext().getString(com.juanvvc.comicviewer.R.string.cannot_read) + ": " + e.getMessage());
+		} catch (OutOfMemoryError err) {
+			throw new ReaderException(getContext().getString(com.juanvvc.comicviewer.R.string.outofmemory));
 		}
-		this.archive = null;
-
 	}
 
 	@Override
-	public final Drawable getPage(final int page) throws ReaderException {
+	public final RegionSource openRegionSource(final int page) throws ReaderException {
 		if (page < 0 || page >= this.countPages()) {
 			return null;
 		}
 		try {
-			return this.streamToTiledDrawable(this.extractToInputStream(this.entries.get(page)));
-		} catch (Exception e) {
-			MyLog.e(TAG, "Cannot read page: " + e.toString());
+			return bytesToRegionSource(this.getArchive().extract(this.entries.get(page).getName()));
+		} catch (IOException e) {
+			throw new ReaderException(getContext().getString(com.juanvvc.comicviewer.R.string.cannot_read) + ": " + e.getMessage());
 		} catch (OutOfMemoryError err) {
 			throw new ReaderException(getContext().getString(com.juanvvc.comicviewer.R.string.outofmemory));
 		}
-		return null;
 	}
+
 	@Override
 	public final Bitmap getBitmapPage(final int page, final int initialscale) throws ReaderException {
 		if (page < 0 || page >= this.countPages()) {
 			return null;
 		}
 		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			// sometimes, a outofmemory is triggered here. Try to save as much memory as possible
-			System.gc();
-			this.archive.extractFile(this.entries.get(page), baos);
-			baos.close();
-			return this.byteArrayToBitmap(baos.toByteArray(), initialscale);
-		} catch (Exception e) {
+			RarExtractor a = this.getArchive();
+			String name = this.entries.get(page).getName();
+			byte[] data = BufferPool.acquire(a.getSize(name));
+			try {
+				int size = a.extract(name, data);
+				return this.byteBufferToBitmap(ByteBuffer.wrap(data, 0, size), initialscale);
+			} finally {
+				BufferPool.release(data);
+			}
+		} catch (IOException e) {
+			throw new ReaderException("Cannot read page: " + e.getMessage());
+		} catch (OutOfMemoryError err) {
+			throw new ReaderException(getContext().getString(com.juanvvc.comicviewer.R.string.outofmemory));
+		}
+	}
+
+	@Override
+	public final Bitmap getBitmapPage(final int page, final int targetWidth, final int targetHeight) throws ReaderException {
+		if (page < 0 || page >= this.countPages()) {
+			return null;
+		}
+		try {
+			RarExtractor a = this.getArchive();
+			String name = this.entries.get(page).getName();
+			byte[] data = BufferPool.acquire(a.getSize(name));
+			try {
+				int size = a.extract(name, data);
+				return this.byteBufferToBitmap(ByteBuffer.wrap(data, 0, size), targetWidth, targetHeight);
+			} finally {
+				BufferPool.release(data);
+			}
+		} catch (IOException e) {
 			throw new ReaderException("Cannot read page: " + e.getMessage());
 		} catch (OutOfMemoryError err) {
 			throw new ReaderException(getContext().getString(com.juanvvc.comicviewer.R.string.outofmemory));
@@ -159,49 +216,4 @@ public class CBRReader extends Reader {
 		}
 		return this.entries.size();
 	}
-
-	/**
-	 * Returns an {@link InputStream} that will allow to read the file and
-	 * stream it. Please note that this method will create a new Thread and an a
-	 * pair of Pipe streams.
-	 * TODO: This method load the entire file into memory. This is a restriction of
-	 * the current RAR library (JunRAR) and with large images creates OutOfMemoryError.
-	 * I cannot fix this issue without rewriting JunRAR, something that I'm not going
-	 * to do. Either wait for a better alternative, switch to a native library or just
-	 * do not use CBRs (for example, convert CBRs to CBZs in a computer, something that
-	 * takes under a second)
-	 *
-	 * (From: https://github.com/edmund-wagner/junrar/blob/master/unrar/src/main/java/com/github/junrar/Archive.java)
-	 *
-	 * @param hd the header to be extracted
-	 * @throws IOException if any IO error occurs
-	 * @return The input stream of the entry
-	 */
-	public final InputStream extractToInputStream(final FileHeader hd) throws IOException {
-		final PipedInputStream in = new PipedInputStream(32 * 1024);
-		final PipedOutputStream out = new PipedOutputStream(in);
-
-		// creates a new thread that will write data to the pipe. Data will be
-		// available in another InputStream, connected to the OutputStream.
-		// Warning: using this method, we cannot handle exceptions!
-		new Thread(new Runnable() {
-			public void run() {
-				try {
-					archive.extractFile(hd, out);
-				} catch (RarException e) {
-					MyLog.e(TAG, e.toString());
-				} catch (OutOfMemoryError e) {
-					MyLog.e(TAG, e.toString());
-				} finally {
-					try {
-						out.close();
-					} catch (IOException e) {
-						MyLog.e(TAG, e.toString());
-					}
-				}
-			}
-		}).start();
-
-		return in;
-	}
 }
@@ -1,15 +1,12 @@
 package com.juanvvc.comicviewer.readers;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -25,10 +22,12 @@ import com.juanvvc.comicviewer.MyLog;
  * @author juanvi
  */
 public class CBZReader extends Reader {
-	/** The ZIP file archive. */
-	private ZipFile archive = null;
+	/** The ZIP file archive. Opened when needed. */
+	private ZipDirectory archive = null;
 	/** Entries in the archive, sorted. */
-	private ArrayList<? extends ZipEntry> entries = null;
+	private ArrayList<ArchiveEntry> entries = null;
+	/** The file to read, if it is not the file of the uri. */
+	private final File file;
 
 	/** Create a new CBRReader from a uri.
 	 * @param context Context of the application
@@ -36,32 +35,60 @@ public class CBZReader extends Reader {
 	 * @throws ReaderException If the file cannot be loaded
 	 */
 	public CBZReader(final Context context, final String uri) throws ReaderException {
+		this(context, uri, null);
+	}
+
+	/** Create a new CBZReader that reads a file for a different uri.
+	 * This is used to read CBR files converted by the TranscodeCache: the uri of
+	 * the reader (and then, bookmarks and last read page) is still the CBR file.
+	 * @param context Context of the application
+	 * @param uri The uri of the comic
+	 * @param f The ZIP file to read. If null, the file of the uri
+	 * @throws ReaderException If the file cannot be loaded
+	 */
+	public CBZReader(final Context context, final String uri, final File f) throws ReaderException {
 		super(context, uri);
+		this.file = f;
 		if (uri != null) {
 			this.load(uri);
 		}
 	}
 
+	/** @param uri The uri of the comic
+	 * @return The file to read for this uri */
+	private File getFile(final String uri) {
+		if (this.file != null) {
+			return this.file;
+		}
+		return new File(uri);
+	}
+
 	@Override
 	public final void load(final String uri) throws ReaderException {
 		try {
 			super.load(uri);
 			MyLog.i(TAG, "Loading URI" + uri);
-			this.archive = new ZipFile(uri);
+			File zip = this.getFile(uri);
+			// if the archive was opened before, the sorted entries are in the index
+			this.entries = ArchiveIndex.load(this.getContext(), zip);
+			if (this.entries != null) {
+				return;
+			}
+			this.archive = new ZipDirectory(zip);
 			// get the entries of the file and sort them alphabetically
-			this.entries = Collections.list(this.archive.entries());
+			this.entries = new ArrayList<ArchiveEntry>(this.archive.getEntries());
 			// removes files that are not .jpg or .png
-			Iterator<? extends ZipEntry> itr = this.entries.iterator();
+			Iterator<ArchiveEntry> itr = this.entries.iterator();
 			while (itr.hasNext()) {
-				ZipEntry e = itr.next();
+				ArchiveEntry e = itr.next();
 				String name = e.getName().toLowerCase();
 				if (e.isDirectory() || !(name.endsWith(".jpg") || name.endsWith(".png"))) {
 					itr.remove();
 				}
 			}
 			// sort the names alphabetically
-			Collections.sort(this.entries, new Comparator<ZipEntry>() {
-				public int compare(final ZipEntry lhs, final ZipEntry rhs) {
+			Collections.sort(this.entries, new Comparator<ArchiveEntry>() {
+				public int compare(final ArchiveEntry lhs, final ArchiveEntry rhs) {
 					String n1 = lhs.getName();
 					String n2 = rhs.getName();
 					if (IGNORE_CASE) {
@@ -72,7 +99,7 @@ public class CBZReader extends Reader {
 				}
 
 			});
-			super.load(uri);
+			ArchiveIndex.save(this.getContext(), zip, this.entries);
 		} catch (IOException e) {
 			throw new ReaderException("ZipFile cannot be read: " + e.toString());
 		}
@@ -81,12 +108,26 @@ public class CBZReader extends Reader {
 	@Override
 	public final void close() {
 		super.close();
-		try {
-			this.archive.close();
-		} catch (IOException e) {
-			MyLog.e(TAG, e.toString());
+		synchronized (this) {
+			if (this.archive != null) {
+				this.archive.close();
+			}
+			this.archive = null;
 		}
-		this.archive = null;
+		this.entries = null;
+	}
+
+	/** @return The archive. It is opened the first time it is needed
+	 * @throws IOException If the archive cannot be opened */
+	private synchronized ZipDirectory getArchive() throws IOException {
+		if (this.archive == null) {
+			if (this.getURI() == null) {
+				throw new IOException("Reader closed");
+			}
+			// we know the entries: do not read the central directory again
+			this.archive = new ZipDirectory(this.getFile(this.getURI()), false);
+		}
+		return this.archive;
 	}
 
 	@Override
@@ -96,14 +137,29 @@ public class CBZReader extends Reader {
 //		}
 //		return this.getDrawableFromZipEntry(res, this.entries.get(page), 1);
 		try {
-			InputStream is = this.archive.getInputStream(this.entries.get(page));
-			return this.streamToTiledDrawable(is);
+			// an array of the exact size of the image, shared by all the decoders of the page
+			return this.bytesToTiledDrawable(this.getArchive().read(this.entries.get(page)));
 		} catch (IOException e) {
 			MyLog.e(TAG, e.toString());
 		}
 		return null;
 	}
 
+	@Override
+	public final RegionSource openRegionSource(final int page) throws ReaderException {
+		if (page < 0 || page >= this.countPages()) {
+			return null;
+		}
+		try {
+			return bytesToRegionSource(this.getArchive().read(this.entries.get(page)));
+		} catch (IOException e) {
+			throw new ReaderException(e.getMessage());
+		} catch (OutOfMemoryError err) {
+			throw new ReaderException(
+					getContext().getString(com.juanvvc.comicviewer.R.string.outofmemory));
+		}
+	}
+
 	@Override
 	public final Bitmap getBitmapPage(final int page, final int initialscale) throws ReaderException {
 		if (page < 0 || page >= this.countPages()) {
@@ -114,18 +170,16 @@ public class CBZReader extends Reader {
 			// Drawable.createFromStream(this.archive.getInputStream(entry),
 			// entry.getName());
 			// this will trigger lots of OutOfMemory errors.
-			// see Reader.byteArrayBitmap for an explanation.
-			InputStream is = this.archive.getInputStream(this.entries.get(page));
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			byte[] tmp = new byte[4096];
-			int ret = 0;
-
-			while ((ret = is.read(tmp)) > 0) {
-				bos.write(tmp, 0, ret);
+			// see Reader.byteBufferToBitmap for an explanation.
+			// Stored entries are mapped from the file, deflated entries use a pooled buffer
+			ZipDirectory zip = this.getArchive();
+			ByteBuffer buffer = zip.getBuffer(this.entries.get(page));
+			try {
+				return this.byteBufferToBitmap(buffer, initialscale);
+			} finally {
+				zip.release(buffer);
 			}
 
-			return this.byteArrayToBitmap(bos.toByteArray(), initialscale);
-
 		} catch (Exception ex) {
 			throw new ReaderException(ex.getMessage());
 		} catch (OutOfMemoryError err) {
@@ -134,9 +188,30 @@ public class CBZReader extends Reader {
 		}
 	}
 
+	@Override
+	public final Bitmap getBitmapPage(final int page, final int targetWidth, final int targetHeight) throws ReaderException {
+		if (page < 0 || page >= this.countPages()) {
+			return null;
+		}
+		try {
+			ZipDirectory zip = this.getArchive();
+			ByteBuffer buffer = zip.getBuffer(this.entries.get(page));
+			try {
+				return this.byteBufferToBitmap(buffer, targetWidth, targetHeight);
+			} finally {
+				zip.release(buffer);
+			}
+		} catch (IOException ex) {
+			throw new ReaderException(ex.getMessage());
+		} catch (OutOfMemoryError err) {
+			throw new ReaderException(
+					getContext().getString(com.juanvvc.comicviewer.R.string.outofmemory));
+		}
+	}
+
 	@Override
 	public final int countPages() {
-		if (this.archive != null) {
+		if (this.entries != null) {
 			return this.entries.size();
 		} else {
 			return NOFILE;
@@ -1,9 +1,11 @@
 package com.juanvvc.comicviewer.readers;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -28,7 +30,7 @@ public class DirReader extends Reader {
 	/** The entries in this directory, sorted. */
 	private ArrayList<File> entries;
 	/** The minimum number of images in the directory to consider it "manageable". */
-	private static final int MIN_IMGS_NUMBER = 1;
+	public static final int MIN_IMGS_NUMBER = 1;
 
 	/** Create a new DirReader from a uri.
 	 * @param newContext Context of the application
@@ -92,6 +94,21 @@ public class DirReader extends Reader {
 		}
 	}
 
+	@Override
+	public final RegionSource openRegionSource(final int page) throws ReaderException {
+		if (page < 0 || page >= this.countPages()) {
+			return null;
+		}
+		try {
+			return bytesToRegionSource(readFully(new FileInputStream(this.entries.get(page))));
+		} catch (IOException e) {
+			throw new ReaderException(e.getMessage());
+		} catch (OutOfMemoryError err) {
+			throw new ReaderException(
+					this.getContext().getString(com.juanvvc.comicviewer.R.string.outofmemory));
+		}
+	}
+
 	@Override
 	public final Bitmap getBitmapPage(final int page, final int initialscale) throws ReaderException {
 		try {
@@ -103,19 +120,16 @@ public class DirReader extends Reader {
 			// Drawable.createFromStream(this.archive.getInputStream(entry),
 			// entry.getName());
 			// this will trigger lots of OutOfMemory errors.
-			// see Reader.byteArrayBitmap for an explanation.
-			InputStream is = new FileInputStream(this.entries.get(page));
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			byte[] tmp = new byte[4096];
-			int ret = 0;
-
-			while ((ret = is.read(tmp)) > 0) {
-				bos.write(tmp, 0, ret);
+			// see Reader.byteBufferToBitmap for an explanation.
+			// The file is mapped in memory, without copying it
+			FileInputStream is = new FileInputStream(this.entries.get(page));
+			try {
+				FileChannel channel = is.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				return this.byteBufferToBitmap(buffer, initialscale);
+			} finally {
+				is.close();
 			}
-			
-			is.close();
-
-			return this.byteArrayToBitmap(bos.toByteArray(), initialscale);
 
 		} catch (Exception ex) {
 			throw new ReaderException(ex.getMessage());
@@ -125,6 +139,28 @@ public class DirReader extends Reader {
 		}
 	}
 
+	@Override
+	public final Bitmap getBitmapPage(final int page, final int targetWidth, final int targetHeight) throws ReaderException {
+		try {
+			if (page < 0 || page >= this.countPages()) {
+				return null;
+			}
+			FileInputStream is = new FileInputStream(this.entries.get(page));
+			try {
+				FileChannel channel = is.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				return this.byteBufferToBitmap(buffer, targetWidth, targetHeight);
+			} finally {
+				is.close();
+			}
+		} catch (IOException ex) {
+			throw new ReaderException(ex.getMessage());
+		} catch (OutOfMemoryError err) {
+			throw new ReaderException(
+					this.getContext().getString(com.juanvvc.comicviewer.R.string.outofmemory));
+		}
+	}
+
 	@Override
 	public final int countPages() {
 		if (this.entries == null) {
@@ -153,11 +189,19 @@ public class DirReader extends Reader {
 			if (contents[i].isDirectory()) {
 				continue;
 			}
-			String name = contents[i].getName().toLowerCase(Locale.US);
-			if (name.endsWith(".jpg") || name.endsWith(".png")) {
+			if (isImage(contents[i].getName())) {
 				numimgs++;
 			}
 		}
 		return numimgs >= MIN_IMGS_NUMBER;
 	}
+
+	/**
+	 * @param name The name of a file
+	 * @return True if the file is an image that this reader shows. The filesystem is not checked
+	 */
+	public static boolean isImage(final String name) {
+		String lname = name.toLowerCase(Locale.US);
+		return lname.endsWith(".jpg") || lname.endsWith(".png");
+	}
 }
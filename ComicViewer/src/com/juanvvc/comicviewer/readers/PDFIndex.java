@@ -0,0 +1,158 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+
+import com.juanvvc.comicviewer.CacheFile;
+import com.juanvvc.comicviewer.MyLog;
+
+/** A persistent index of the number of pages and the size of the pages of a PDF file.
+ *
+ * Parsing a PDF file is slow, and the gallery, the page counter and the tiles
+ * of a page only need to know its layout. The index saves the layout in the cache
+ * directory of the application, so a PDF file is parsed only when a page is rendered.
+ * The size of a page is known after the page is used for the first time: the
+ * index is saved again when it learns new sizes.
+ *
+ * An index is valid while the path, size and modification time of the file
+ * do not change.
+ *
+ * This class is thread safe.
+ *
+ * @author juanvi
+ */
+public final class PDFIndex {
+	/** A tag for logging. */
+	private static final String TAG = "PDFIndex";
+	/** The name of the directory of the indexes, inside the cache directory. */
+	private static final String DIRECTORY = "pdf_index";
+	/** Change this number if the format of the index changes. */
+	private static final int VERSION = 1;
+
+	/** The width of each page at 100%, or 0 if unknown. */
+	private final int[] widths;
+	/** The height of each page at 100%, or 0 if unknown. */
+	private final int[] heights;
+	/** If set, the index learnt something since it was saved. */
+	private boolean dirty = false;
+
+	/** Creates an index of a file with unknown page sizes.
+	 * @param pages The number of pages of the file */
+	public PDFIndex(final int pages) {
+		this.widths = new int[Math.max(0, pages)];
+		this.heights = new int[Math.max(0, pages)];
+		this.dirty = true;
+	}
+
+	/** @return The number of pages of the file */
+	public int getPageCount() {
+		return this.widths.length;
+	}
+
+	/**
+	 * @param page The index of a page
+	 * @param size Where the size of the page at 100% is saved, if known
+	 * @return True if the size of the page is known
+	 */
+	public synchronized boolean getPageSize(final int page, final int[] size) {
+		if (page < 0 || page >= this.widths.length || this.widths[page] <= 0) {
+			return false;
+		}
+		size[0] = this.widths[page];
+		size[1] = this.heights[page];
+		return true;
+	}
+
+	/**
+	 * @param page The index of a page
+	 * @param width The width of the page at 100%
+	 * @param height The height of the page at 100%
+	 */
+	public synchronized void setPageSize(final int page, final int width, final int height) {
+		if (page < 0 || page >= this.widths.length || width <= 0 || height <= 0) {
+			return;
+		}
+		if (this.widths[page] != width || this.heights[page] != height) {
+			this.widths[page] = width;
+			this.heights[page] = height;
+			this.dirty = true;
+		}
+	}
+
+	/**
+	 * @param context The context of the application
+	 * @param pdf The PDF file
+	 * @return The file of the index of the PDF file
+	 */
+	private static File getIndexFile(final Context context, final File pdf) {
+		return CacheFile.getFile(new File(context.getCacheDir(), DIRECTORY), pdf, ".idx");
+	}
+
+	/**
+	 * Loads the index of a PDF file.
+	 * @param context The context of the application
+	 * @param pdf The PDF file
+	 * @return The index, or null if there is not a valid index
+	 */
+	public static PDFIndex load(final Context context, final File pdf) {
+		File f = getIndexFile(context, pdf);
+		if (!f.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = CacheFile.open(f);
+			if (!CacheFile.checkHeader(in, VERSION, pdf)) {
+				MyLog.d(TAG, "Stale index of " + pdf.getName());
+				return null;
+			}
+			int count = in.readInt();
+			if (count <= 0) {
+				return null;
+			}
+			PDFIndex index = new PDFIndex(count);
+			for (int i = 0; i < count; i++) {
+				index.widths[i] = in.readInt();
+				index.heights[i] = in.readInt();
+			}
+			index.dirty = false;
+			return index;
+		} catch (IOException e) {
+			MyLog.w(TAG, "Cannot read the index of " + pdf.getName() + ": " + e.toString());
+			return null;
+		} finally {
+			CacheFile.close(in);
+		}
+	}
+
+	/**
+	 * Saves the index of a PDF file, if it learnt something since it was saved.
+	 * Errors are logged and ignored.
+	 * @param context The context of the application
+	 * @param pdf The PDF file
+	 */
+	public synchronized void save(final Context context, final File pdf) {
+		if (!this.dirty) {
+			return;
+		}
+		try {
+			CacheFile.write(getIndexFile(context, pdf), new CacheFile.Content() {
+				public void write(final DataOutputStream out) throws IOException {
+					CacheFile.writeHeader(out, VERSION, pdf);
+					out.writeInt(widths.length);
+					for (int i = 0; i < widths.length; i++) {
+						out.writeInt(widths[i]);
+						out.writeInt(heights[i]);
+					}
+				}
+			}, false);
+			this.dirty = false;
+		} catch (IOException e) {
+			MyLog.w(TAG, "Cannot save the index of " + pdf.getName() + ": " + e.toString());
+		}
+	}
+}
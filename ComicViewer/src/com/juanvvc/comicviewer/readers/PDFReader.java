@@ -1,34 +1,70 @@
 package com.juanvvc.comicviewer.readers;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.LinkedList;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.preference.PreferenceManager;
 
+import com.juanvvc.comicviewer.CacheFile;
 import com.juanvvc.comicviewer.MyLog;
 import com.juanvvc.comicviewer.R;
 
 import cx.hell.android.lib.pdf.PDF;
 
 /**
- * A reader for ZIP files.
+ * A reader for PDF files.
  *
- * Comics in ZIP usually have the extension .cbz
+ * A PDF object renders one page at a time. To render tiles and pages in parallel,
+ * the reader opens the file several times: each thread that renders takes its own handle,
+ * and returns it when it finishes. Handles are opened when needed, up to MAX_HANDLES.
+ * The first handle (file) is used for the size of the pages and, if there are not more
+ * handles, to render. If the native library is too old to render in parallel,
+ * file is the only handle.
+ *
+ * A handle is freed only when nobody uses it: close() frees the idle handles and marks
+ * the reader as closed, and the handles in use are freed when they are released.
+ * Every render checks that its handle is still valid.
+ *
+ * The number of pages and their sizes are read from a PDFIndex, so the file
+ * is parsed only when a page is rendered for the first time.
+ *
+ * getPage(), getBitmapPage() and the region sources can be used from several threads.
  *
  * @author juanvi
  */
 public class PDFReader extends Reader {
-	/** The PDF file. */
+	/** The PDF file. Opened when needed. */
 	private PDF file = null;
+	/** The PDF file in the filesystem, or null if closed. */
+	private File path = null;
+	/** The layout of the pages. */
+	private PDFIndex index = null;
 	/** In MuPDF library, the zoom level that corresponds to 100%. */
 	private static final int ZOOM100 = 1000;
+	/** Max number of handles, besides file. */
+	private static final int MAX_HANDLES = Math.min(4, Runtime.getRuntime().availableProcessors());
+	/** The number of handles that can be opened besides file, or -1 if unknown yet. */
+	private static int maxHandles = -1;
+	/** Handles that are not in use. */
+	private final LinkedList<PDF> idleHandles = new LinkedList<PDF>();
+	/** Number of open handles, besides file. */
+	private int openHandles = 0;
+	/** Number of threads using file. Guarded by idleHandles. */
+	private int fileUsers = 0;
+	/** If set, the reader was closed: handles are freed when released. Guarded by idleHandles. */
+	private boolean closed = false;
+	/** The number of pages. */
+	private volatile int pageCount = NOFILE;
+	/** If set, the native library renders into bitmaps. */
+	private static volatile boolean directRender = true;
 
 	///// TODO: make this options configurable
 	/** If not set, returns a generic image in getBitmapPage(0).
@@ -60,38 +96,212 @@ public class PDFReader extends Reader {
 	public final void load(final String uri) throws ReaderException {
 		super.load(uri);
 		MyLog.i(TAG, "Loading URI" + uri);
+		synchronized (this.idleHandles) {
+			closed = false;
+			path = new File(uri);
+		}
+		index = PDFIndex.load(this.getContext(), path);
+		if (index != null) {
+			// the file is opened when a page is rendered
+			pageCount = index.getPageCount();
+			return;
+		}
+		PDF f = this.acquireFile();
+		if (f == null) {
+			pageCount = NOFILE;
+			return;
+		}
 		try {
-			file = new PDF(new File(uri), 1);
-		} catch (UnsatisfiedLinkError e) {
-			MyLog.e(TAG, "PDF library not available");
-			file = null;
+			synchronized (f) {
+				index = new PDFIndex(f.isValid() ? f.getPageCount() : 0);
+			}
+		} finally {
+			this.releaseHandle(f);
+		}
+		index.save(this.getContext(), path);
+		pageCount = index.getPageCount();
+	}
+
+	/** Takes the PDF file, and opens it if it was not. Release it after using it.
+	 * @return The PDF file. Null if it cannot be opened or the reader is closed */
+	private PDF acquireFile() {
+		synchronized (this.idleHandles) {
+			if (this.closed) {
+				return null;
+			}
+			if (this.file == null && this.path != null) {
+				try {
+					MyLog.d(TAG, "Opening " + this.path.getName());
+					this.file = new PDF(this.path, 1);
+				} catch (UnsatisfiedLinkError e) {
+					MyLog.e(TAG, "PDF library not available");
+					this.file = null;
+				}
+			}
+			if (this.file != null) {
+				this.fileUsers++;
+			}
+			return this.file;
+		}
+	}
+
+	/** Gets the size of a page at 100%, from the index or from the file.
+	 * @param page The index of the page
+	 * @param size Where the size is saved
+	 * @return True if the size is known */
+	private boolean getPageSize(final int page, final PDF.Size size) {
+		PDFIndex i = this.index;
+		if (i == null) {
+			return false;
+		}
+		int[] s = new int[2];
+		if (i.getPageSize(page, s)) {
+			size.width = s[0];
+			size.height = s[1];
+			return true;
 		}
+		PDF f = this.acquireFile();
+		if (f == null) {
+			return false;
+		}
+		try {
+			synchronized (f) {
+				if (!f.isValid() || f.getPageSize(page, size) != 0) {
+					return false;
+				}
+			}
+		} finally {
+			this.releaseHandle(f);
+		}
+		i.setPageSize(page, size.width, size.height);
+		return true;
 	}
 
 	@Override
 	public final void close() {
-		if (file != null) {
-			file.finalize();
-			file = null;
+		LinkedList<PDF> free = new LinkedList<PDF>();
+		final PDFIndex i;
+		final File f;
+		synchronized (this.idleHandles) {
+			this.closed = true;
+			free.addAll(this.idleHandles);
+			this.openHandles -= this.idleHandles.size();
+			this.idleHandles.clear();
+			// if a thread is using file, it is freed when released
+			if (this.file != null && this.fileUsers == 0) {
+				free.add(this.file);
+				this.file = null;
+			}
+			i = index;
+			f = path;
+			path = null;
+			index = null;
 		}
+		for (PDF h: free) {
+			h.finalize();
+		}
+		// save the sizes of the pages that we learnt. This method is called from the UI thread
+		if (i != null && f != null) {
+			final Context c = this.getContext();
+			CacheFile.execute(new Runnable() {
+				public void run() {
+					i.save(c, f);
+				}
+			});
+		}
+		pageCount = NOFILE;
 		super.close();
 	}
 
+	/** @return The number of handles that can be opened besides file. 0 if the native library
+	 * cannot render from several threads */
+	private static synchronized int getMaxHandles() {
+		if (maxHandles == -1) {
+			try {
+				maxHandles = PDF.isThreadSafe() ? MAX_HANDLES : 0;
+			} catch (UnsatisfiedLinkError e) {
+				MyLog.w(TAG, "The PDF library cannot render in parallel");
+				maxHandles = 0;
+			}
+		}
+		return maxHandles;
+	}
+
+	/** Takes a handle to render. Release it after rendering.
+	 * @return An idle handle, a new handle, or file if no more handles can be opened.
+	 * Null if the reader is closed */
+	private PDF acquireHandle() {
+		final File uri;
+		synchronized (this.idleHandles) {
+			if (this.closed) {
+				return null;
+			}
+			if (!this.idleHandles.isEmpty()) {
+				return this.idleHandles.removeFirst();
+			}
+			uri = this.path;
+			if (uri == null || this.openHandles >= getMaxHandles()) {
+				// file renders one page at a time: threads using it wait for each other
+				return this.acquireFile();
+			}
+			this.openHandles++;
+		}
+		PDF h = null;
+		try {
+			h = new PDF(uri, 1);
+		} catch (UnsatisfiedLinkError e) {
+			h = null;
+		}
+		if (h == null || !h.isValid()) {
+			MyLog.w(TAG, "Cannot open a new handle");
+			synchronized (this.idleHandles) {
+				this.openHandles--;
+			}
+			return this.acquireFile();
+		}
+		MyLog.v(TAG, "Opened handle " + this.openHandles);
+		return h;
+	}
+
+	/** Returns a handle after rendering. If the reader was closed and
+	 * nobody else uses the handle, it is freed.
+	 * @param h A handle from acquireHandle() or acquireFile(). May be null */
+	private void releaseHandle(final PDF h) {
+		if (h == null) {
+			return;
+		}
+		synchronized (this.idleHandles) {
+			if (h == this.file) {
+				this.fileUsers--;
+				if (!this.closed || this.fileUsers > 0) {
+					return;
+				}
+				this.file = null;
+			} else if (!this.closed) {
+				this.idleHandles.addFirst(h);
+				return;
+			} else {
+				this.openHandles--;
+			}
+		}
+		h.finalize();
+	}
+
 	@Override
 	public final Drawable getPage(final int page) throws ReaderException {
 		// check limits
-		if (this.file == null || page < 0 || page >= this.file.getPageCount()) {
+		if (page < 0 || page >= this.pageCount) {
 			return null;
 		}
 
-		ArrayList<Bitmap> tiles = new ArrayList<Bitmap>();
-
 		int zoom = ZOOM100; // 1000 means 100%
 
 		// Should we rotate the bitmaps?
 		boolean rotate = false;
 		PDF.Size size = new PDF.Size();
-		file.getPageSize(page, size);
+		if (!this.getPageSize(page, size)) {
+			throw new ReaderException("Cannot read the size of page " + page);
+		}
 
 		int cols = 2;
 		int rows = 2;
@@ -150,35 +360,126 @@ public class PDFReader extends Reader {
 		}
 
 		// Get the final tiles width and height
-		int tw = ow / cols;
-		int th = oh / rows;
-
-		for (int i = 0; i < rows; i++) {
-			for (int j = 0; j < cols; j++) {
-				if (rotate) {
-					int left = th * i;
-					int top = tw * (cols - j - 1);
-
-					PDF.Size tilesize = new PDF.Size(th, tw);
-					int[] pixels = file.renderPage(page, zoom, left, top, 0, false, tilesize);
-					Bitmap b = Bitmap.createBitmap(pixels, tilesize.width, tilesize.height, Bitmap.Config.RGB_565);
-
-					Matrix matrix = new Matrix();
-					matrix.postRotate(90);
-					tiles.add(Bitmap.createBitmap(b, 0, 0, b.getWidth(), b.getHeight(), matrix, true));
-					b.recycle();
-				} else {
-					int left = tw * j;
-					int top = th * i;
+		final int tw = ow / cols;
+		final int th = oh / rows;
+		final int c = cols;
+		final int z = zoom;
+		final boolean r = rotate;
 
-					PDF.Size tilesize = new PDF.Size(tw, th);
-					int[] pixels = file.renderPage(page, zoom, left, top, 0, false, tilesize);
-					Bitmap b = Bitmap.createBitmap(pixels, tilesize.width, tilesize.height, Bitmap.Config.RGB_565);
-					tiles.add(b);
+		// render the tiles in parallel and in order. Each worker renders with its own handle
+		TiledDrawable d = new TiledDrawable(cols, rows, tw, th, Bitmap.Config.RGB_565, rotate);
+		int[] order = new int[cols * rows];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		try {
+			this.getTilePool().decode(d, order, order.length, new TilePool.TileSource() {
+				public TilePool.TileWorker newWorker() throws IOException {
+					final PDF h = acquireHandle();
+					if (h == null) {
+						throw new IOException("Reader closed");
+					}
+					return new TilePool.TileWorker() {
+						public Bitmap decode(final int tile) throws IOException {
+							return renderTile(h, page, z, tile / c, tile % c, c, tw, th, r);
+						}
+						public void close() {
+							releaseHandle(h);
+						}
+					};
 				}
+			});
+		} catch (IOException e) {
+			throw new ReaderException(e.toString());
+		}
+		return d;
+	}
+
+	/** Renders a tile of a page.
+	 * @param pdf The handle to render with
+	 * @param page The index of the page
+	 * @param zoom The zoom level
+	 * @param i The row of the tile
+	 * @param j The column of the tile
+	 * @param cols The number of columns
+	 * @param tw The width of a tile, after rotation
+	 * @param th The height of a tile, after rotation
+	 * @param rotate If set, the page is rotated: return the region of the page before the rotation.
+	 * The drawable rotates it while drawing
+	 * @return The tile
+	 * @throws IOException If the handle was freed
+	 */
+	private static Bitmap renderTile(final PDF pdf, final int page, final int zoom, final int i, final int j, final int cols,
+			final int tw, final int th, final boolean rotate) throws IOException {
+		if (rotate) {
+			int left = th * i;
+			int top = tw * (cols - j - 1);
+
+			// the drawable rotates the tile while drawing
+			return render(pdf, page, zoom, left, top, th, tw);
+		} else {
+			int left = tw * j;
+			int top = th * i;
+
+			return render(pdf, page, zoom, left, top, tw, th);
+		}
+	}
+
+	/** The max zoom of the regions of a page, over 100%. PDF pages are vectors: they are sharp at any zoom. */
+	private static final int MAX_REGION_ZOOM = 4;
+
+	/** Renders regions of a page of the PDF file, with its own handle.
+	 * The full resolution of the page is MAX_REGION_ZOOM times its size at 100%. */
+	private final class PDFRegionSource implements RegionSource {
+		/** The index of the page. */
+		private final int page;
+		/** The size of the page at full resolution. */
+		private final PDF.Size size = new PDF.Size();
+		/** The handle of this source, or null if closed. */
+		private PDF handle;
+
+		/** @param p The index of the page
+		 * @param h The handle to render with */
+		PDFRegionSource(final int p, final PDF h) {
+			this.page = p;
+			this.handle = h;
+			getPageSize(p, this.size);
+			this.size.width *= MAX_REGION_ZOOM;
+			this.size.height *= MAX_REGION_ZOOM;
+		}
+
+		public int getWidth() {
+			return this.size.width;
+		}
+
+		public int getHeight() {
+			return this.size.height;
+		}
+
+		public Bitmap decodeRegion(final Rect region, final int sample) throws IOException {
+			if (this.handle == null) {
+				throw new IOException("Reader closed");
 			}
+			return render(this.handle, this.page, ZOOM100 * MAX_REGION_ZOOM / sample, region.left / sample, region.top / sample,
+					Math.max(1, region.width() / sample), Math.max(1, region.height() / sample));
+		}
+
+		public void close() {
+			releaseHandle(this.handle);
+			this.handle = null;
 		}
-		return new TiledDrawable(tiles, cols, rows);
+	}
+
+	@Override
+	public final RegionSource openRegionSource(final int page) throws ReaderException {
+		if (page < 0 || page >= this.pageCount) {
+			return null;
+		}
+		PDF h = this.acquireHandle();
+		if (h == null) {
+			return null;
+		}
+		return new PDFRegionSource(page, h);
 	}
 
 	/** Returns a page as a bitmap.
@@ -191,18 +492,101 @@ public class PDFReader extends Reader {
 	public final Bitmap getBitmapPage(final int page, final int initialscale) throws ReaderException {
 		Drawable d = this.getPage(page);
 		PDF.Size size = new PDF.Size();
-		file.getPageSize(page, size);
+		if (!this.getPageSize(page, size)) {
+			throw new ReaderException("Cannot read the size of page " + page);
+		}
 		Bitmap b = Bitmap.createBitmap(size.width, size.height, Bitmap.Config.RGB_565);
 		d.draw(new Canvas(b));
 		return b;
 	}
 	
+	/** Renders a page in a single call to the native library, at the zoom level that fits in a size.
+	 * @param page The number of the page to load
+	 * @param targetWidth The max width of the bitmap
+	 * @param targetHeight The max height of the bitmap
+	 * @throws ReaderException if anything went wrong
+	 * @return The bitmap of the selected page
+	 */
+	@Override
+	public final Bitmap getBitmapPage(final int page, final int targetWidth, final int targetHeight) throws ReaderException {
+		if (page < 0 || page >= this.pageCount) {
+			return null;
+		}
+		PDF.Size size = new PDF.Size();
+		if (!this.getPageSize(page, size)) {
+			throw new ReaderException("Cannot read the size of page " + page);
+		}
+		boolean rotate = AUTOMATIC_ROTATION && size.width > size.height;
+		int w = rotate ? size.height : size.width;
+		int h = rotate ? size.width : size.height;
+		float scale = Math.min(1f * targetWidth / w, 1f * targetHeight / h);
+		int zoom = (int) (ZOOM100 * Math.min(scale, 1));
+		PDF pdf = this.acquireHandle();
+		if (pdf == null) {
+			return null;
+		}
+		try {
+			Bitmap b = render(pdf, page, zoom, 0, 0,
+					Math.max(1, size.width * zoom / ZOOM100), Math.max(1, size.height * zoom / ZOOM100));
+			return fitBitmap(b, rotate, targetWidth, targetHeight);
+		} catch (IOException e) {
+			throw new ReaderException(e.toString());
+		} catch (OutOfMemoryError err) {
+			throw new ReaderException(getContext().getString(R.string.outofmemory));
+		} finally {
+			this.releaseHandle(pdf);
+		}
+	}
+
+	/** Renders a region of a page into a bitmap of the BitmapPool.
+	 * The native library writes the pixels straight into the bitmap, in its format.
+	 * Old versions of the library cannot do that: then, the pixels are copied from an array.
+	 * @param pdf The handle to render with
+	 * @param page The index of the page
+	 * @param zoom The zoom level
+	 * @param left The left side of the region, at this zoom level
+	 * @param top The top side of the region, at this zoom level
+	 * @param width The width of the region
+	 * @param height The height of the region
+	 * @return A RGB_565 bitmap with the region, or null if it cannot be rendered
+	 * @throws IOException If the handle was freed */
+	private static Bitmap render(final PDF pdf, final int page, final int zoom, final int left, final int top,
+			final int width, final int height) throws IOException {
+		// the handle is freed holding its monitor: it cannot be freed during the render
+		synchronized (pdf) {
+			if (!pdf.isValid()) {
+				throw new IOException("Reader closed");
+			}
+			Bitmap b = BitmapPool.acquire(width, height, Bitmap.Config.RGB_565);
+			if (directRender) {
+				try {
+					if (pdf.renderPageToBitmap(page, zoom, left, top, 0, false, b) == 0) {
+						return b;
+					}
+					BitmapPool.release(b);
+					return null;
+				} catch (UnsatisfiedLinkError e) {
+					MyLog.w(TAG, "The PDF library cannot render into bitmaps");
+					directRender = false;
+				}
+			}
+			PDF.Size size = new PDF.Size(width, height);
+			int[] pixels = pdf.renderPage(page, zoom, left, top, 0, false, size);
+			if (pixels == null) {
+				BitmapPool.release(b);
+				return null;
+			}
+			b.setPixels(pixels, 0, size.width, 0, 0, Math.min(width, size.width), Math.min(height, size.height));
+			return b;
+		}
+	}
+
 	 /** Loading a cover may be slow for the PDF library. Hence, to speed up the process for covers,
 	 * if USE_GENERIC_COVER is set, this method returns R.drawable.pdf_cover */
 	@Override
 	public final Bitmap getCover() throws ReaderException {
 		if ( USE_GENERIC_COVER ) {
-			return BitmapFactory.decodeResource(this.getContext().getResources(), R.drawable.pdf_cover);
+			return scaleToCover(BitmapFactory.decodeResource(this.getContext().getResources(), R.drawable.pdf_cover));
 		} else {
 			return super.getCover();
 		}
@@ -216,11 +600,7 @@ public class PDFReader extends Reader {
 
 	@Override
 	public final int countPages() {
-		if (this.file != null) {
-			return file.getPageCount();
-		} else {
-			return NOFILE;
-		}
+		return this.pageCount;
 	}
 
 	/**
@@ -0,0 +1,341 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+
+import com.juanvvc.comicviewer.MyLog;
+
+/** A cache of decoded pages.
+ *
+ * Decoding a page means reading the file from the archive and creating all
+ * the tiles of a TiledDrawable, and this is the slowest thing that the viewer does.
+ * This cache keeps several decoded pages in memory, so moving back and forth
+ * does not decode the same page again and again.
+ *
+ * The cache is limited by the total size in bytes of the bitmaps, not by the number
+ * of pages: a double page spread may use as much memory as four normal pages.
+ * Pages are evicted in LRU order.
+ *
+ * Warning: this class is not thread safe. Use it only from the UI thread: the
+ * background tasks decode the pages and the UI thread puts them in the cache.
+ * This way, a page that is evicted is never on its way to the screen.
+ *
+ * When a page is evicted, a small preview of the page is kept. Previews
+ * are shown while the full page is decoded, so the user sees something at once.
+ *
+ * @author juanvi
+ */
+public class PageCache {
+	/** A tag for logging. */
+	private static final String TAG = "PageCache";
+	/** The default fraction of the heap that the cache may use. */
+	private static final int HEAP_FRACTION = 4;
+	/** The max width or height of a preview. */
+	public static final int PREVIEW_SIZE = 256;
+	/** The max number of previews. A preview uses PREVIEW_SIZE^2 * 2 bytes, at most. */
+	private static final int MAX_PREVIEWS = 24;
+
+	/** The cached pages, in access order. */
+	private final LinkedHashMap<Key, TiledDrawable> pages = new LinkedHashMap<Key, TiledDrawable>(16, 0.75f, true);
+	/** Small versions of the pages, in access order. They are never recycled:
+	 * a preview may be on the screen when it leaves this map. */
+	private final LinkedHashMap<Key, Bitmap> previews = new LinkedHashMap<Key, Bitmap>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Key, Bitmap> eldest) {
+			return this.size() > MAX_PREVIEWS;
+		}
+	};
+	/** The max number of bytes of the bitmaps in the cache. */
+	private long maxBytes;
+	/** The current number of bytes of the bitmaps in the cache. */
+	private long currentBytes = 0;
+	/** Number of calls to get() that found the page. */
+	private int hits = 0;
+	/** Number of calls to get() that didn't find the page. */
+	private int misses = 0;
+
+	/** Identifies a page in the cache.
+	 * The same page is decoded differently for different viewports, so the
+	 * size of the viewport and the rotation are part of the key. */
+	public static final class Key {
+		/** The URI of the reader. */
+		private final String uri;
+		/** The index of the page. */
+		private final int page;
+		/** The width of the viewport. */
+		private final int width;
+		/** The height of the viewport. */
+		private final int height;
+		/** Whether landscape pages are rotated. */
+		private final boolean rotation;
+
+		/**
+		 * @param u The URI of the reader
+		 * @param p The index of the page
+		 * @param w The width of the viewport
+		 * @param h The height of the viewport
+		 * @param r Whether landscape pages are rotated
+		 */
+		public Key(final String u, final int p, final int w, final int h, final boolean r) {
+			this.uri = u;
+			this.page = p;
+			this.width = w;
+			this.height = h;
+			this.rotation = r;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return this.page == k.page && this.width == k.width && this.height == k.height
+					&& this.rotation == k.rotation
+					&& (this.uri == null ? k.uri == null : this.uri.equals(k.uri));
+		}
+
+		@Override
+		public int hashCode() {
+			int h = (this.uri == null ? 0 : this.uri.hashCode());
+			h = 31 * h + this.page;
+			h = 31 * h + this.width;
+			h = 31 * h + this.height;
+			return 31 * h + (this.rotation ? 1 : 0);
+		}
+
+		@Override
+		public String toString() {
+			return uri + "#" + page + " (" + width + "x" + height + (rotation ? ", rotated)" : ")");
+		}
+	}
+
+	/** Creates a new cache.
+	 * @param max The max number of bytes of the bitmaps in the cache.
+	 */
+	public PageCache(final long max) {
+		this.maxBytes = max;
+	}
+
+	/** @return A sensible size for the cache, according to the available heap. */
+	public static long defaultMaxBytes() {
+		return Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+	}
+
+	/**
+	 * @param reader The reader of the page
+	 * @param page The index of the page
+	 * @return The key of the page, using the current viewport of the reader.
+	 */
+	public static Key key(final Reader reader, final int page) {
+		return new Key(reader.getURI(), page, reader.getWidth(), reader.getHeight(), Reader.AUTOMATIC_ROTATION);
+	}
+
+	/**
+	 * @param reader The reader of the page
+	 * @param page The index of the page
+	 * @return The cached page, or null if it is not in the cache.
+	 */
+	public final TiledDrawable get(final Reader reader, final int page) {
+		return this.get(key(reader, page));
+	}
+
+	/**
+	 * @param key The key of the page
+	 * @return The cached page, or null if it is not in the cache.
+	 */
+	public final TiledDrawable get(final Key key) {
+		TiledDrawable d = this.pages.get(key);
+		if (d != null && d.isRecycled()) {
+			// this shouldn't happen, but a recycled page is worse than no page
+			this.remove(key);
+			d = null;
+		}
+		if (d == null) {
+			this.misses++;
+		} else {
+			this.hits++;
+		}
+		return d;
+	}
+
+	/**
+	 * @param reader The reader of the page
+	 * @param page The index of the page
+	 * @return True if the page is in the cache. This method does not change hits or misses.
+	 */
+	public final boolean contains(final Reader reader, final int page) {
+		return this.pages.containsKey(key(reader, page));
+	}
+
+	/** Puts a page in the cache.
+	 * Drawables that are not TiledDrawables are not cached.
+	 * If the cache grows over its limit, the least recently used pages are evicted.
+	 * The last inserted page is never evicted, even if it is larger than the cache.
+	 * @param reader The reader of the page
+	 * @param page The index of the page
+	 * @param d The decoded page
+	 */
+	public final void put(final Reader reader, final int page, final Drawable d) {
+		if (d instanceof TiledDrawable) {
+			this.put(key(reader, page), (TiledDrawable) d);
+		}
+	}
+
+	/** Puts a page in the cache.
+	 * @param key The key of the page
+	 * @param d The decoded page
+	 * @see #put(Reader, int, Drawable)
+	 */
+	public final void put(final Key key, final TiledDrawable d) {
+		if (d == null || d.isRecycled()) {
+			return;
+		}
+		TiledDrawable old = this.pages.put(key, d);
+		if (old == d) {
+			return;
+		}
+		if (old != null) {
+			this.currentBytes -= old.getByteCount();
+			this.evicted(old);
+		}
+		d.setCached(true);
+		this.currentBytes += d.getByteCount();
+		this.trim(key);
+	}
+
+	/** Evicts pages until the cache is under its limit.
+	 * @param keep A key that is not evicted. May be null
+	 */
+	private void trim(final Key keep) {
+		Iterator<Map.Entry<Key, TiledDrawable>> itr = this.pages.entrySet().iterator();
+		while (this.currentBytes > this.maxBytes && itr.hasNext()) {
+			Map.Entry<Key, TiledDrawable> e = itr.next();
+			if (e.getKey().equals(keep)) {
+				continue;
+			}
+			MyLog.v(TAG, "Evicting " + e.getKey());
+			this.currentBytes -= e.getValue().getByteCount();
+			itr.remove();
+			this.savePreview(e.getKey(), e.getValue());
+			this.evicted(e.getValue());
+		}
+	}
+
+	/** Removes a page from the cache.
+	 * @param key The key of the page */
+	private void remove(final Key key) {
+		TiledDrawable d = this.pages.remove(key);
+		if (d != null) {
+			this.currentBytes -= d.getByteCount();
+			this.evicted(d);
+		}
+	}
+
+	/** A page left the cache. Recycle its tiles, unless the page is on the screen.
+	 * In that case, the view will recycle the page when it is replaced.
+	 * @param d The page that left the cache */
+	private void evicted(final TiledDrawable d) {
+		d.setCached(false);
+		if (d.getCallback() == null) {
+			d.recycle();
+		}
+	}
+
+	/** Saves a small version of a page that is leaving the cache.
+	 * @param key The key of the page
+	 * @param d The page */
+	private void savePreview(final Key key, final TiledDrawable d) {
+		if (d.isRecycled() || !d.isComplete() || this.previews.containsKey(key)) {
+			return;
+		}
+		try {
+			this.previews.put(key, d.createPreview(PREVIEW_SIZE));
+		} catch (OutOfMemoryError e) {
+			// previews are nice to have, but not important
+			MyLog.w(TAG, "No memory for a preview of " + key);
+		}
+	}
+
+	/** Saves a preview of a page, such as the thumbnail of the cover.
+	 * @param reader The reader of the page
+	 * @param page The index of the page
+	 * @param b The preview. It must not be recycled by the caller.
+	 */
+	public final void putPreview(final Reader reader, final int page, final Bitmap b) {
+		if (b != null) {
+			this.previews.put(key(reader, page), b);
+		}
+	}
+
+	/** @param reader The reader of a page
+	 * @param page The index of the page
+	 * @return True if there is a preview of the page */
+	public final boolean containsPreview(final Reader reader, final int page) {
+		Bitmap b = this.previews.get(key(reader, page));
+		return b != null && !b.isRecycled();
+	}
+
+	/** Gets a placeholder of a page that is not in the cache.
+	 * @param reader The reader of the page
+	 * @param page The index of the page
+	 * @return A small version of the page, or null if there is not any. The drawable is
+	 * owned by the cache: views may release() it, but it won't be recycled.
+	 */
+	public final TiledDrawable getPreview(final Reader reader, final int page) {
+		Bitmap b = this.previews.get(key(reader, page));
+		if (b == null || b.isRecycled()) {
+			return null;
+		}
+		TiledDrawable d = new TiledDrawable(b);
+		d.setCached(true);
+		return d;
+	}
+
+	/** Removes all pages and previews from the cache. */
+	public final void clear() {
+		MyLog.d(TAG, this.toString());
+		for (TiledDrawable d: this.pages.values()) {
+			this.evicted(d);
+		}
+		this.pages.clear();
+		this.previews.clear();
+		this.currentBytes = 0;
+	}
+
+	/** @return The number of pages in the cache. */
+	public final int size() {
+		return this.pages.size();
+	}
+
+	/** @return The current number of bytes of the bitmaps in the cache. */
+	public final long getCurrentBytes() {
+		return this.currentBytes;
+	}
+
+	/** @return The max number of bytes of the bitmaps in the cache. */
+	public final long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/** @return Number of calls to get() that found the page. */
+	public final int getHits() {
+		return this.hits;
+	}
+
+	/** @return Number of calls to get() that didn't find the page. */
+	public final int getMisses() {
+		return this.misses;
+	}
+
+	@Override
+	public final String toString() {
+		return "PageCache: " + this.pages.size() + " pages, " + (this.currentBytes / 1024) + "/" + (this.maxBytes / 1024)
+				+ "KB, " + this.previews.size() + " previews, hits=" + this.hits + ", misses=" + this.misses;
+	}
+}
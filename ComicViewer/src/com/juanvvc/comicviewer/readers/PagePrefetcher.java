@@ -0,0 +1,385 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.juanvvc.comicviewer.MyLog;
+
+/** Decodes pages in a background thread and saves them in a PageCache.
+ *
+ * The prefetcher keeps a window of pages around the current page: some pages
+ * ahead and some pages behind. Pages in the direction of the movement of the
+ * user are decoded first. Each call to schedule() replaces the pending pages,
+ * so jumps to a far page cancel the pages that are not useful anymore.
+ *
+ * Readers are not thread safe, so there is a single worker thread. Pages are
+ * saved in the cache and the listener is called from the UI thread, the
+ * same thread that must call the public methods of this class.
+ *
+ * In two-pass mode, if the user is waiting for a page without a preview, the page is
+ * decoded twice: first, a heavily subsampled version that is saved as the preview
+ * of the page in the cache, and then the full quality version. If the user moves
+ * to another page before the second pass starts, the second pass is cancelled
+ * and the page waits in the queue with the rest of the window.
+ *
+ * @author juanvi
+ */
+public class PagePrefetcher implements Runnable {
+	/** A tag for logging. */
+	private static final String TAG = "PagePrefetcher";
+	/** The max number of pages ahead in the automatic window. */
+	private static final int MAX_AUTO_AHEAD = 4;
+	/** The first pass decodes pages to fit in the viewport divided by this number. */
+	private static final int PREVIEW_DIVISOR = 4;
+
+	/** Receives the pages that the prefetcher decoded. */
+	public interface OnPageLoadedListener {
+		/** A page was decoded and saved in the cache.
+		 * This method is called from the UI thread.
+		 * @param reader The reader of the page
+		 * @param page The index of the page
+		 * @param d The decoded page, or null if there was an error
+		 * @param error The error, if d is null. It may be null
+		 */
+		void onPageLoaded(Reader reader, int page, Drawable d, Exception error);
+
+		/** The first pass of a page was decoded and saved in the cache as its preview.
+		 * The page is still not in the cache.
+		 * This method is called from the UI thread.
+		 * @param reader The reader of the page
+		 * @param page The index of the page
+		 */
+		void onPagePreview(Reader reader, int page);
+	}
+
+	/** The cache to save the pages. */
+	private final PageCache cache;
+	/** Runs code on the UI thread. */
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	/** The listener of decoded pages. May be null. */
+	private OnPageLoadedListener listener = null;
+	/** Number of pages to load after the current page. If 0, use the size of the cache. */
+	private int ahead = 0;
+	/** Number of pages to load before the current page. If 0, use the size of the cache. */
+	private int behind = 0;
+	/** The largest page that we decoded, in bytes. Used to guess the automatic window. */
+	private long pageBytes = 0;
+	/** If set, decode the page that the user is waiting for in two passes. */
+	private boolean twoPass = true;
+	/** Milliseconds of the last first pass, or -1. */
+	private volatile long previewMillis = -1;
+	/** Milliseconds of the last full quality decoding, or -1. */
+	private volatile long refineMillis = -1;
+
+	/** Protects queue, queueReader, runningPage and stopped. */
+	private final Object lock = new Object();
+	/** The pages to decode, in order. */
+	private final LinkedList<Integer> queue = new LinkedList<Integer>();
+	/** The reader of the pages in the queue. */
+	private Reader queueReader = null;
+	/** The page that the worker is decoding now, or -1. */
+	private int runningPage = -1;
+	/** The page that needs a first pass, or -1. */
+	private int previewPage = -1;
+	/** If set, the worker is decoding the first pass of runningPage. */
+	private boolean runningPreview = false;
+	/** If set, the worker must not run the second pass of runningPage. */
+	private boolean refineCancelled = false;
+	/** If set, the worker thread finishes. */
+	private boolean stopped = false;
+	/** The worker thread. */
+	private Thread worker = null;
+
+	/**
+	 * @param c The cache to save the decoded pages.
+	 */
+	public PagePrefetcher(final PageCache c) {
+		this.cache = c;
+	}
+
+	/** @param l The listener of the decoded pages. May be null */
+	public final void setOnPageLoadedListener(final OnPageLoadedListener l) {
+		this.listener = l;
+	}
+
+	/** Sets the size of the window of pages around the current page.
+	 * @param a Number of pages to load after the current page. If 0, use the size of the cache
+	 * @param b Number of pages to load before the current page. If 0, use the size of the cache
+	 */
+	public final void setWindow(final int a, final int b) {
+		this.ahead = Math.max(0, a);
+		this.behind = Math.max(0, b);
+	}
+
+	/** @param t If set, decode the page that the user is waiting for in two passes:
+	 * a quick preview, and then the full quality page */
+	public final void setTwoPass(final boolean t) {
+		this.twoPass = t;
+	}
+
+	/** @return Milliseconds to decode the last first pass, or -1 */
+	public final long getPreviewMillis() {
+		return this.previewMillis;
+	}
+
+	/** @return Milliseconds to decode the last page at full quality, or -1 */
+	public final long getRefineMillis() {
+		return this.refineMillis;
+	}
+
+	/** @return The number of pages to load after the current page. */
+	public final int getAhead() {
+		if (this.ahead > 0) {
+			return this.ahead;
+		}
+		// two pages ahead for each page behind
+		return Math.min(MAX_AUTO_AHEAD, Math.max(1, 2 * this.autoWindow() / 3));
+	}
+
+	/** @return The number of pages to load before the current page. */
+	public final int getBehind() {
+		if (this.behind > 0) {
+			return this.behind;
+		}
+		return Math.max(1, this.autoWindow() - this.getAhead());
+	}
+
+	/** @return The number of pages that fit in the cache, besides the current page. */
+	private int autoWindow() {
+		if (this.pageBytes <= 0) {
+			// we know nothing about the size of the pages yet
+			return 2;
+		}
+		return (int) Math.max(2, this.cache.getMaxBytes() / this.pageBytes - 1);
+	}
+
+	/** Loads the pages around the current page.
+	 * Pages that are already in the cache are not loaded again. If the current
+	 * page is not in the cache, it is the first page to load.
+	 * Pending pages from previous calls are cancelled.
+	 *
+	 * @param reader The reader of the pages
+	 * @param current The current page
+	 * @param forward The direction of the movement of the user
+	 */
+	public final void schedule(final Reader reader, final int current, final boolean forward) {
+		LinkedList<Integer> pages = new LinkedList<Integer>();
+		int total = reader.countPages();
+		int a = this.getAhead();
+		int b = this.getBehind();
+		this.addPage(pages, reader, current, total);
+		if (forward) {
+			for (int i = 1; i <= a; i++) {
+				this.addPage(pages, reader, current + i, total);
+			}
+			for (int i = 1; i <= b; i++) {
+				this.addPage(pages, reader, current - i, total);
+			}
+		} else {
+			for (int i = 1; i <= b; i++) {
+				this.addPage(pages, reader, current - i, total);
+			}
+			for (int i = 1; i <= a; i++) {
+				this.addPage(pages, reader, current + i, total);
+			}
+		}
+		// the user is waiting for the current page: show something soon
+		boolean preview = this.twoPass && reader.getWidth() > 0 && !pages.isEmpty()
+				&& pages.getFirst().intValue() == current && !this.cache.containsPreview(reader, current);
+		synchronized (this.lock) {
+			this.queue.clear();
+			this.queueReader = reader;
+			this.previewPage = preview ? current : -1;
+			// the page in its first pass is not the current page anymore: do not run its second pass
+			if (this.runningPreview && this.runningPage != current) {
+				this.refineCancelled = true;
+			}
+			for (Integer p: pages) {
+				if (p.intValue() != this.runningPage || this.refineCancelled) {
+					this.queue.add(p);
+				}
+			}
+			if (this.worker == null) {
+				this.stopped = false;
+				this.worker = new Thread(this, TAG);
+				this.worker.start();
+			}
+			this.lock.notifyAll();
+		}
+		MyLog.v(TAG, "Window of " + b + "/" + a + " pages around " + current + ". Pending: " + pages);
+	}
+
+	/** Adds a page to a list, if it is a valid page not in the cache.
+	 * @param pages The list
+	 * @param reader The reader of the page
+	 * @param page The page
+	 * @param total The number of pages in the reader */
+	private void addPage(final LinkedList<Integer> pages, final Reader reader, final int page, final int total) {
+		if (page >= 0 && page < total && !this.cache.contains(reader, page)) {
+			pages.add(Integer.valueOf(page));
+		}
+	}
+
+	/** Cancels all pending pages.
+	 * The page that is being decoded right now cannot be cancelled, but it is discarded
+	 * if the reader is not the current one anymore.
+	 */
+	public final void cancel() {
+		synchronized (this.lock) {
+			this.queue.clear();
+			this.queueReader = null;
+		}
+	}
+
+	/** Cancels all pending pages and finishes the worker thread. */
+	public final void stop() {
+		synchronized (this.lock) {
+			this.queue.clear();
+			this.queueReader = null;
+			this.stopped = true;
+			this.worker = null;
+			this.lock.notifyAll();
+		}
+	}
+
+	/** @param page The page to check
+	 * @return True if the page is pending or being decoded. */
+	public final boolean isPending(final int page) {
+		synchronized (this.lock) {
+			return this.runningPage == page || this.queue.contains(Integer.valueOf(page));
+		}
+	}
+
+	/** The worker thread. Do not call this method directly. */
+	public final void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		while (true) {
+			final Reader reader;
+			final int page;
+			final boolean preview;
+			synchronized (this.lock) {
+				while (!this.stopped && this.queue.isEmpty()) {
+					try {
+						this.lock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (this.stopped || this.worker != Thread.currentThread()) {
+					return;
+				}
+				reader = this.queueReader;
+				page = this.queue.removeFirst().intValue();
+				this.runningPage = page;
+				this.refineCancelled = false;
+				preview = page == this.previewPage;
+				this.runningPreview = preview;
+				this.previewPage = -1;
+			}
+
+			if (preview) {
+				this.decodePreview(reader, page);
+				synchronized (this.lock) {
+					this.runningPreview = false;
+					if (this.refineCancelled) {
+						MyLog.v(TAG, "Second pass of page " + page + " cancelled");
+						this.runningPage = -1;
+						continue;
+					}
+				}
+			}
+
+			Drawable d = null;
+			Exception error = null;
+			try {
+				MyLog.d(TAG, "Buffering page " + page);
+				long start = SystemClock.uptimeMillis();
+				d = reader.getPage(page);
+				this.refineMillis = SystemClock.uptimeMillis() - start;
+			} catch (Exception e) {
+				error = e;
+			} catch (OutOfMemoryError e) {
+				error = new ReaderException(e.toString());
+			}
+			synchronized (this.lock) {
+				this.runningPage = -1;
+			}
+			this.deliver(reader, page, d, error);
+		}
+	}
+
+	/** Decodes a quick version of a page, and saves it as the preview of the page in the UI thread.
+	 * Errors are ignored: the second pass will find them again.
+	 * @param reader The reader of the page
+	 * @param page The index of the page */
+	private void decodePreview(final Reader reader, final int page) {
+		final Bitmap b;
+		try {
+			long start = SystemClock.uptimeMillis();
+			b = reader.getBitmapPage(page, reader.getWidth() / PREVIEW_DIVISOR, reader.getHeight() / PREVIEW_DIVISOR);
+			this.previewMillis = SystemClock.uptimeMillis() - start;
+			MyLog.v(TAG, "First pass of page " + page + ": " + this.previewMillis + "ms");
+		} catch (Exception e) {
+			MyLog.w(TAG, "Cannot decode the first pass of page " + page + ": " + e.toString());
+			return;
+		} catch (OutOfMemoryError e) {
+			MyLog.w(TAG, "Cannot decode the first pass of page " + page + ": " + e.toString());
+			return;
+		}
+		if (b == null) {
+			return;
+		}
+		this.handler.post(new Runnable() {
+			public void run() {
+				boolean current;
+				synchronized (lock) {
+					current = !stopped && queueReader == reader;
+				}
+				if (!current || cache.contains(reader, page)) {
+					b.recycle();
+					return;
+				}
+				cache.putPreview(reader, page, b);
+				if (listener != null) {
+					listener.onPagePreview(reader, page);
+				}
+			}
+		});
+	}
+
+	/** Saves a page in the cache and informs the listener, in the UI thread.
+	 * @param reader The reader of the page
+	 * @param page The index of the page
+	 * @param d The decoded page, or null
+	 * @param error The error, if any */
+	private void deliver(final Reader reader, final int page, final Drawable d, final Exception error) {
+		this.handler.post(new Runnable() {
+			public void run() {
+				boolean current;
+				synchronized (lock) {
+					current = !stopped && queueReader == reader;
+				}
+				if (!current) {
+					// nobody is interested in this page anymore
+					if (d instanceof TiledDrawable) {
+						((TiledDrawable) d).recycle();
+					}
+					return;
+				}
+				if (d instanceof TiledDrawable) {
+					pageBytes = Math.max(pageBytes, ((TiledDrawable) d).getByteCount());
+				}
+				cache.put(reader, page, d);
+				if (listener != null) {
+					listener.onPageLoaded(reader, page, d, error);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,267 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.juanvvc.comicviewer.MyLog;
+
+import de.innosystec.unrar.Archive;
+import de.innosystec.unrar.exception.RarException;
+import de.innosystec.unrar.rarfile.FileHeader;
+
+/** Extracts files from a RAR archive, keeping the state between extractions.
+ *
+ * In a solid archive, a file can only be decompressed after all the previous
+ * files of its solid block: JunRAR does not reset the decompressor for solid
+ * files, so extracting files out of order returns garbage or CRC errors.
+ * This class remembers the last extracted file. Reading the next file
+ * continues from there, and reading a file far ahead decompresses (and discards)
+ * only the files in between. Going back restarts at the beginning of the
+ * solid block, or reopens the archive if there is no block to restart.
+ *
+ * Files are extracted in the calling thread, into arrays of their exact size.
+ * Errors are thrown as exceptions, and a failed extraction reopens the archive
+ * the next time. After close(), the archive is never opened again and
+ * extractions throw an IOException.
+ *
+ * @author juanvi
+ */
+public class RarExtractor {
+	/** A tag for logging. */
+	private static final String TAG = "RarExtractor";
+	/** Discards everything. Used to skip files in a solid block. */
+	private static final OutputStream NULL_STREAM = new OutputStream() {
+		@Override
+		public void write(final int b) {
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+		}
+	};
+
+	/** The file of the archive. */
+	private final File file;
+	/** The archive. Null if it must be opened again, or if closed. */
+	private Archive archive = null;
+	/** If set, the extractor was closed. */
+	private boolean closed = false;
+	/** The file headers of the archive, in the order of the archive. */
+	private ArrayList<FileHeader> headers = null;
+	/** The position of each file in headers, by name. */
+	private HashMap<String, Integer> positions = null;
+	/** The position of the last extracted file, or -1. */
+	private int last = -1;
+
+	/** Writes into an array of a known size. */
+	private static final class ArrayOutputStream extends OutputStream {
+		/** The array to write to. */
+		private final byte[] data;
+		/** The number of bytes that can be written. */
+		private final int size;
+		/** The number of bytes written. */
+		private int count = 0;
+
+		/**
+		 * @param d The array to write to
+		 * @param s The number of bytes that can be written
+		 */
+		ArrayOutputStream(final byte[] d, final int s) {
+			this.data = d;
+			this.size = s;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			if (this.count >= this.size) {
+				throw new IOException("File larger than expected");
+			}
+			this.data[this.count++] = (byte) b;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if (this.count + len > this.size) {
+				throw new IOException("File larger than expected");
+			}
+			System.arraycopy(b, off, this.data, this.count, len);
+			this.count += len;
+		}
+	}
+
+	/**
+	 * Opens an archive.
+	 * @param f The file of the archive
+	 * @throws RarException If the archive cannot be read
+	 * @throws IOException If the archive cannot be read
+	 */
+	public RarExtractor(final File f) throws RarException, IOException {
+		this.file = f;
+		this.open();
+	}
+
+	/** Opens the archive and reads its headers.
+	 * @throws RarException If the archive cannot be read
+	 * @throws IOException If the archive cannot be read */
+	private void open() throws RarException, IOException {
+		this.archive = new Archive(this.file);
+		this.headers = new ArrayList<FileHeader>();
+		this.positions = new HashMap<String, Integer>();
+		for (FileHeader h: this.archive.getFileHeaders()) {
+			this.positions.put(h.getFileNameString(), Integer.valueOf(this.headers.size()));
+			this.headers.add(h);
+		}
+		this.last = -1;
+	}
+
+	/** @return True if the archive is encrypted */
+	public final synchronized boolean isEncrypted() {
+		return this.archive != null && this.archive.isEncrypted();
+	}
+
+	/** @return The file headers of the archive, in the order of the archive. Do not modify this list. */
+	public final synchronized List<FileHeader> getFileHeaders() {
+		return this.headers;
+	}
+
+	/** @param name The name of a file in the archive
+	 * @return The uncompressed size of the file
+	 * @throws IOException If the file is not in the archive */
+	public final synchronized int getSize(final String name) throws IOException {
+		if (this.closed) {
+			throw new IOException("Archive closed");
+		}
+		return (int) this.headers.get(this.getPosition(name)).getFullUnpackSize();
+	}
+
+	/** @param name The name of a file in the archive
+	 * @return The position of the file in the archive
+	 * @throws IOException If the file is not in the archive */
+	private int getPosition(final String name) throws IOException {
+		Integer p = this.positions.get(name);
+		if (p == null) {
+			throw new IOException("Not in the archive: " + name);
+		}
+		return p.intValue();
+	}
+
+	/**
+	 * Extracts a file into a new array.
+	 * @param name The name of the file in the archive
+	 * @return The contents of the file, in an array of exactly its size
+	 * @throws IOException If the file cannot be extracted
+	 */
+	public final synchronized byte[] extract(final String name) throws IOException {
+		if (this.closed) {
+			throw new IOException("Archive closed");
+		}
+		byte[] data = new byte[this.getSize(name)];
+		this.extract(name, data);
+		return data;
+	}
+
+	/**
+	 * Extracts a file into an array.
+	 * @param name The name of the file in the archive
+	 * @param data The array. It must be at least getSize(name) bytes long
+	 * @return The size of the file
+	 * @throws IOException If the file cannot be extracted
+	 */
+	public final synchronized int extract(final String name, final byte[] data) throws IOException {
+		if (this.closed) {
+			throw new IOException("Archive closed");
+		}
+		if (this.archive == null) {
+			try {
+				this.open();
+			} catch (RarException e) {
+				throw new IOException(e.toString());
+			}
+		}
+		int target = this.getPosition(name);
+		int size = this.getSize(name);
+		FileHeader h = this.headers.get(target);
+		try {
+			if (h.isSolid()) {
+				this.skipTo(target);
+			}
+			ArrayOutputStream out = new ArrayOutputStream(data, size);
+			this.archive.extractFile(h, out);
+			this.last = target;
+			if (out.count != size) {
+				throw new IOException("Truncated file: " + name);
+			}
+			return size;
+		} catch (RarException e) {
+			this.reset();
+			throw new IOException("Cannot extract " + name + ": " + e.toString());
+		} catch (IOException e) {
+			this.reset();
+			throw e;
+		} catch (RuntimeException e) {
+			// JunRAR throws all kind of exceptions on corrupted archives
+			this.reset();
+			throw new IOException("Cannot extract " + name + ": " + e.toString());
+		}
+	}
+
+	/** Decompresses and discards the files of the solid block before a file.
+	 * @param target The position of a solid file
+	 * @throws RarException If a file cannot be extracted
+	 * @throws IOException If the archive cannot be read */
+	private void skipTo(final int target) throws RarException, IOException {
+		// the beginning of the solid block: the decompressor is reset there
+		int start = target;
+		while (start > 0 && this.headers.get(start).isSolid()) {
+			start--;
+		}
+		int from;
+		if (start <= this.last && this.last < target) {
+			// the decompressor is in the right block: continue
+			from = this.last + 1;
+		} else if (!this.headers.get(start).isSolid()) {
+			from = start;
+		} else {
+			// there is not a non-solid file to reset the decompressor
+			if (this.last >= target) {
+				MyLog.d(TAG, "Reopening " + this.file.getName());
+				this.archive.close();
+				this.open();
+			}
+			from = this.last + 1;
+		}
+		if (from < target) {
+			MyLog.v(TAG, "Skipping " + (target - from) + " files");
+		}
+		for (int i = from; i < target; i++) {
+			FileHeader h = this.headers.get(i);
+			if (!h.isDirectory()) {
+				this.archive.extractFile(h, NULL_STREAM);
+			}
+			this.last = i;
+		}
+	}
+
+	/** After an error, the state of the decompressor is unknown: reopen the archive next time. */
+	private void reset() {
+		if (this.archive != null) {
+			try {
+				this.archive.close();
+			} catch (IOException e) {
+				MyLog.e(TAG, e.toString());
+			}
+		}
+		this.archive = null;
+		this.last = -1;
+	}
+
+	/** Closes the archive. Extractions after this call throw an IOException. */
+	public final synchronized void close() {
+		this.closed = true;
+		this.reset();
+	}
+}
@@ -1,8 +1,11 @@
 package com.juanvvc.comicviewer.readers;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -39,6 +42,8 @@ public abstract class Reader {
 	private int viewportWidth = -1;
 	/** The height of the viewport. -1 if not set. */
 	private int viewportHeight = -1;
+	/** The pool to decode tiles. If null, use the shared pool. */
+	private TilePool tilePool = null;
 
 	// TODO: make these options configurable
 	/** If set, ignore case when ordering pages of the comic. */
@@ -56,6 +61,12 @@ public abstract class Reader {
 	 * Unfortunately, small  bitmaps cause large load times for
 	 * example in the PDFReader. Tweak this with care. */
 	public static final int MAX_BITMAP_SIZE = 512;
+	/** Max number of bytes of a bitmap that is decoded without a target size. Larger images are sampled down. */
+	private static final long MAX_DECODED_BYTES = Runtime.getRuntime().maxMemory() / 8;
+	/** The width of the covers of the comics. */
+	public static final int COVER_WIDTH = 200;
+	/** The height of the covers of the comics. */
+	public static final int COVER_HEIGHT = 300;
 
 	/** Create a new reader from a uri.
 	 * @param newContext Context of the application
@@ -98,6 +109,38 @@ public abstract class Reader {
 	 */
 	public abstract Bitmap getBitmapPage(final int page, final int initialscale) throws ReaderException;
 
+	/**
+	 * The bitmap of a page, scaled to fit in a size.
+	 * The page is sampled while decoding: readers do not load the complete page
+	 * in memory. Pages are never scaled up.
+	 *
+	 * The default implementation decodes the page with getBitmapPage(page, 1)
+	 * and then scales it. Override this method in your reader.
+	 *
+	 * @param page The index of the page to return, starting at 0.
+	 * @param targetWidth The max width of the bitmap
+	 * @param targetHeight The max height of the bitmap
+	 * @throws ReaderException after any problem.
+	 * @return A scaled version of the page, or null if the page does not exist
+	 */
+	public Bitmap getBitmapPage(final int page, final int targetWidth, final int targetHeight) throws ReaderException {
+		return fitBitmap(this.getBitmapPage(page, 1), false, targetWidth, targetHeight);
+	}
+
+	/**
+	 * Opens a page to decode regions of it at different resolutions.
+	 * This is used to zoom and pan pages with a ZoomDrawable.
+	 * The default implementation returns null: override this method in your reader.
+	 *
+	 * @param page The index of the page, starting at 0.
+	 * @return A region source of the page, or null if the reader does not support this.
+	 * The caller must close it
+	 * @throws ReaderException If the page cannot be opened
+	 */
+	public RegionSource openRegionSource(final int page) throws ReaderException {
+		return null;
+	}
+
 	/**
 	 * Loads a URI into this reader. You need to override this method in you
 	 * reader, calling to the parent.load(uri)
@@ -175,103 +218,165 @@ public abstract class Reader {
 	}
 
 	/**
-	 * Convert a byte array into a Bitmap
-	 *
-	 * This method should be a single line: return new
-	 * BitmapDrawable(BitmapFactory.decodeByteArray(ba, 0, ba.length); or even:
-	 * Drawable.createFromStream(new ByteArrayInputStream(ba), "name"); These
-	 * work only with small images. This method manages large images (and they
-	 * are very usual in comic files)
+	 * Convert a buffer into a Bitmap, without copying the buffer into an array.
+	 * The buffer may be a memory-mapped region of a file.
 	 *
-	 * The last versions of Android have a very annoying feature: graphics are
-	 * always HW accelerated, bitmaps are always loaded as OPENGL_TEXTURES, and
-	 * a HW limit applies: MAX_BITMAP_SIZE at most.
-	 * http://groups.google.com/group/android-developers/browse_thread/thread/2352c776651b6f99
-	 * Some report
-	 * (http://stackoverflow.com/questions/7428996/hw-accelerated-activity-how-to-get-opengl-texture-size-limit)
-	 * that the minimum is 2048. In my device,
-	 * that does not work. 1024 does. Conclusion: in current devices, you cannot
-	 * load a bitmap larger (width or height) than MAX_BITMAP_SIZE pixels. Fact:
-	 * many CBRs use images larger than that. OutOfMemory errors appear.
-	 * Solution: Options.inSampleSize to the rescue.
+	 * This method should be a single line: return
+	 * BitmapFactory.decodeStream(...). That works only with small images. This
+	 * method manages large images (and they are very usual in comic files)
 	 *
 	 * Remember: we have to do this with every image because is very common CBR
 	 * files where pages have different sizes for example, double/single pages.
+	 * The size of the image is read before decoding it, and the sample size grows
+	 * until the decoded bitmap uses less than MAX_DECODED_BYTES. There is not
+	 * any OutOfMemoryError to recover from.
 	 *
-	 * This method is in this class because I think that any reader will find
-	 * this useful.
-	 *
-	 * @param ba
-	 *            The byte array to convert
-	 * @param initialscale
-	 *            The initial scale to use, 1 for original size, 2 for half the
-	 *            size...
-	 * @return A Bitmap object
+	 * @param buffer The buffer to convert, from its position to its limit. The position does not change.
+	 * @param initialscale The initial scale to use, 1 for original size, 2 for half the size...
+	 * @return A Bitmap object, or null if the buffer is not an image
+	 * @see #byteBufferToBitmap(ByteBuffer, int, int)
 	 */
-	protected final Bitmap byteArrayToBitmap(final byte[] ba, final int initialscale) {
-		Bitmap bitmap = null;
-		/*
-		 * First strategy: 1.- load only the image information
-		 * (inJustDecodeBounds=true) 2.- read the image size 3.- if larger than
-		 * MAX_BITMAP_SIZE, apply a scale 4.- load the image scaled Problem: in
-		 * my experience, some images are unnecessarily scaled down and quality
-		 * suffers
-		 */
-		// Options opts=new Options();
-		// opts.inSampleSize=initialscale;
-		// opts.inJustDecodeBounds=true;
-		// BitmapFactory.decodeByteArray(ba, 0, ba.length, opts);
-		// // now, set the scale according to the image size: 1, 2, 3...
-		// opts.inSampleSize = Math.max(opts.outHeight,
-		// opts.outWidth)/MAX_BITMAP_SIZE+1;
-		// opts.inScaled=true;
-		// // set a high quality scale (did really works?)
-		// opts.inPreferQualityOverSpeed=true;
-		// opts.inJustDecodeBounds=false;
-		// // finally, load the scaled image
-		// bitmap = BitmapFactory.decodeByteArray(ba, 0, ba.length, opts);
-
-		/*
-		 * Second strategy: 1.- load the complete image 2.- if error, scale down
-		 * and try again Problem: this method is slower, and sometimes a page
-		 * does not throw an OutOfMemoryError, but a warning "bitmap too large"
-		 * that cannot be caught and the image is not shown. Quality is much
-		 * better.
-		 */
+	protected final Bitmap byteBufferToBitmap(final ByteBuffer buffer, final int initialscale) {
 		Options opts = new Options();
-		opts.inSampleSize = initialscale;
+		opts.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(new ByteBufferInputStream(buffer.duplicate()), null, opts);
+		if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+			return null;
+		}
+		int sample = Math.max(1, initialscale);
+		while (4L * (opts.outWidth / sample) * (opts.outHeight / sample) > MAX_DECODED_BYTES) {
+			sample *= 2;
+		}
+		if (sample != initialscale) {
+			MyLog.d(TAG, "Using scale " + sample);
+		}
+		opts.inJustDecodeBounds = false;
+		opts.inSampleSize = sample;
 		opts.inPreferQualityOverSpeed = true;
-		// finally, load the scaled image
-		while (true) {
-			try {
-				bitmap = BitmapFactory.decodeByteArray(ba, 0, ba.length, opts);
-				break; // if we arrive here, the last line didn't trigger an
-						// outofmemory error
-			} catch (OutOfMemoryError e) {
-				System.gc();
-			}
-			opts.inSampleSize *= 2;
-			MyLog.d(TAG, "Using scale " + opts.inSampleSize);
+		Bitmap bitmap = BitmapFactory.decodeStream(new ByteBufferInputStream(buffer.duplicate()), null, opts);
+		return rotateIfLandscape(bitmap);
+	}
+
+	/**
+	 * Convert a buffer into a Bitmap that fits in a size.
+	 * The size of the image is read before decoding it, and the image is decoded
+	 * with the largest sample size that keeps it larger than the target size.
+	 * Then, it is scaled down to fit. The image is never decoded at full size
+	 * and there is not any OutOfMemoryError to recover from.
+	 *
+	 * @param buffer The buffer to convert, from its position to its limit. The position does not change.
+	 * @param targetWidth The max width of the bitmap, after rotation
+	 * @param targetHeight The max height of the bitmap, after rotation
+	 * @return A Bitmap object, or null if the buffer is not an image
+	 */
+	protected final Bitmap byteBufferToBitmap(final ByteBuffer buffer, final int targetWidth, final int targetHeight) {
+		Options opts = new Options();
+		opts.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(new ByteBufferInputStream(buffer.duplicate()), null, opts);
+		if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+			return null;
 		}
+		// landscape pages are rotated: compare their sizes after the rotation
+		boolean rotate = AUTOMATIC_ROTATION && opts.outWidth > opts.outHeight;
+		int w = rotate ? opts.outHeight : opts.outWidth;
+		int h = rotate ? opts.outWidth : opts.outHeight;
+		opts.inSampleSize = getSampleSize(w, h, targetWidth, targetHeight);
+		opts.inJustDecodeBounds = false;
+		// scaled pages do not need the quality of ARGB_8888
+		opts.inPreferredConfig = Bitmap.Config.RGB_565;
+		Bitmap bitmap = BitmapFactory.decodeStream(new ByteBufferInputStream(buffer.duplicate()), null, opts);
+		return fitBitmap(bitmap, rotate, targetWidth, targetHeight);
+	}
 
-		if (AUTOMATIC_ROTATION && bitmap.getHeight() < bitmap.getWidth()) {
-			Matrix matrix = new Matrix();
+	/**
+	 * @param width The width of an image
+	 * @param height The height of an image
+	 * @param targetWidth The max width of the scaled image
+	 * @param targetHeight The max height of the scaled image
+	 * @return The largest power of two that keeps the image larger than its scaled version
+	 */
+	protected static int getSampleSize(final int width, final int height, final int targetWidth, final int targetHeight) {
+		// the scaled image fits in the target, so one of its sides matches the target
+		float scale = Math.min(1f * targetWidth / width, 1f * targetHeight / height);
+		int sample = 1;
+		while (sample * 2 * scale <= 1) {
+			sample *= 2;
+		}
+		return sample;
+	}
+
+	/**
+	 * Rotates and scales down a bitmap to fit in a size, in a single step.
+	 * @param bitmap The bitmap. It is recycled if a new bitmap is created. May be null
+	 * @param rotate If set, rotate the bitmap 90 degrees
+	 * @param targetWidth The max width of the bitmap, after rotation
+	 * @param targetHeight The max height of the bitmap, after rotation
+	 * @return The bitmap, rotated and scaled
+	 */
+	protected static Bitmap fitBitmap(final Bitmap bitmap, final boolean rotate, final int targetWidth, final int targetHeight) {
+		if (bitmap == null) {
+			return null;
+		}
+		int w = rotate ? bitmap.getHeight() : bitmap.getWidth();
+		int h = rotate ? bitmap.getWidth() : bitmap.getHeight();
+		float scale = Math.min(1f * targetWidth / w, 1f * targetHeight / h);
+		if (scale >= 1 && !rotate) {
+			return bitmap;
+		}
+		Matrix matrix = new Matrix();
+		if (rotate) {
 			matrix.postRotate(90);
-			Bitmap b = bitmap;
-			bitmap = Bitmap.createBitmap(b, 0, 0, b.getWidth(), b.getHeight(), matrix, true);
-			b.recycle();
 		}
+		if (scale < 1) {
+			matrix.postScale(scale, scale);
+		}
+		Bitmap b = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+		if (b != bitmap) {
+			bitmap.recycle();
+		}
+		return b;
+	}
 
+	/** Rotates landscape bitmaps to match the screen, if AUTOMATIC_ROTATION is set.
+	 * @param bitmap The bitmap to rotate. It is recycled if rotated. May be null
+	 * @return The rotated bitmap, or the same bitmap if not rotated */
+	private static Bitmap rotateIfLandscape(final Bitmap bitmap) {
+		if (bitmap != null && AUTOMATIC_ROTATION && bitmap.getHeight() < bitmap.getWidth()) {
+			Matrix matrix = new Matrix();
+			matrix.postRotate(90);
+			Bitmap b = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+			bitmap.recycle();
+			return b;
+		}
 		return bitmap;
 	}
 
 	/**
+	 * Creates a progressive tiled drawable from a stream.
+	 * The tiles that are visible at the top left corner of the page, at original size,
+	 * are decoded before this method returns. The rest of the tiles are decoded in the
+	 * background, and they appear on the screen as soon as they are ready.
+	 * Tiles are decoded in parallel by the TilePool of this reader.
+	 * If the drawable is recycled, the pending tiles are not decoded.
+	 *
 	 * @param is A stream to read the image and create a tiled drawable
 	 * @return A tiled drawable with the contensts of the stream
 	 * @throws IOException After any error
 	 */
 	protected final Drawable streamToTiledDrawable(final InputStream is) throws IOException {
-		BitmapRegionDecoder bd = BitmapRegionDecoder.newInstance(is, true);
+		return this.bytesToTiledDrawable(readFully(is));
+	}
+
+	/**
+	 * Creates a progressive tiled drawable from an array.
+	 * @param data The contents of an image file. Do not modify it after calling this method
+	 * @return A tiled drawable with the contents of the array
+	 * @throws IOException After any error
+	 * @see #streamToTiledDrawable(InputStream)
+	 */
+	protected final Drawable bytesToTiledDrawable(final byte[] data) throws IOException {
+		// each thread needs its own decoder, and all of them share the same data
+		final BitmapRegionDecoder bd = BitmapRegionDecoder.newInstance(data, 0, data.length, true);
 
 		// Should we rotate the bitmaps?
 		boolean rotate = false;
@@ -300,34 +405,209 @@ public abstract class Reader {
 		MyLog.d(TAG, "Using cols, rows: " + cols  + ", " + rows);
 
 		// Get the final tiles width and height
-		int tw = ow / cols;
-		int th = oh / rows;
-		// create the tiles
-		ArrayList<Bitmap> tiles = new ArrayList<Bitmap>();
-
+		final int tw = ow / cols;
+		final int th = oh / rows;
+		final TiledDrawable d = new TiledDrawable(cols, rows, tw, th, Bitmap.Config.ARGB_8888, rotate);
+
+		// the tiles that the viewport shows first. If we know nothing about the viewport, only the first tile
+		int visibleCols = 1;
+		int visibleRows = 1;
+		if (this.viewportWidth > 0 && this.viewportHeight > 0) {
+			visibleCols = Math.min(cols, (this.viewportWidth + tw - 1) / tw);
+			visibleRows = Math.min(rows, (this.viewportHeight + th - 1) / th);
+		}
+		// visible tiles first, then the rest of them
+		int[] order = new int[cols * rows];
+		int n = 0;
+		for (int i = 0; i < visibleRows; i++) {
+			for (int j = 0; j < visibleCols; j++) {
+				order[n++] = i * cols + j;
+			}
+		}
 		for (int i = 0; i < rows; i++) {
 			for (int j = 0; j < cols; j++) {
-				if (rotate) {
-					int left = th * i;
-					int top = tw * (cols - j - 1);
-					int right = left + th;
-					int bottom = top + tw;
-
-					Matrix matrix = new Matrix();
-					matrix.postRotate(90);
-					Bitmap b = bd.decodeRegion(new Rect(left, top, right, bottom), null);
-					tiles.add(Bitmap.createBitmap(b, 0, 0, b.getWidth(), b.getHeight(), matrix, true));
-					b.recycle();
-				} else {
-					int left = tw * j;
-					int top = th * i;
-					int right = left + tw;
-					int bottom = top + th;
-					tiles.add(bd.decodeRegion(new Rect(left, top, right, bottom), null));
+				if (i >= visibleRows || j >= visibleCols) {
+					order[n++] = i * cols + j;
+				}
+			}
+		}
+
+		final int c = cols;
+		final boolean r = rotate;
+		this.getTilePool().decode(d, order, visibleCols * visibleRows, new TilePool.TileSource() {
+			/** If set, the first decoder was already used by a worker. */
+			private boolean firstUsed = false;
+			public TilePool.TileWorker newWorker() throws IOException {
+				BitmapRegionDecoder wd = null;
+				synchronized (this) {
+					if (!this.firstUsed) {
+						this.firstUsed = true;
+						wd = bd;
+					}
+				}
+				if (wd == null) {
+					wd = BitmapRegionDecoder.newInstance(data, 0, data.length, true);
+				}
+				return new RegionWorker(wd, c, tw, th, r);
+			}
+		});
+		return d;
+	}
+
+	/**
+	 * Creates a region source from an array.
+	 * @param data The contents of an image file. Do not modify it after calling this method
+	 * @return A region source of the image
+	 * @throws IOException If the image cannot be decoded
+	 */
+	protected static RegionSource bytesToRegionSource(final byte[] data) throws IOException {
+		return new DecoderRegionSource(BitmapRegionDecoder.newInstance(data, 0, data.length, true));
+	}
+
+	/** Decodes regions of a page with a BitmapRegionDecoder. */
+	private static final class DecoderRegionSource implements RegionSource {
+		/** The decoder of the page. */
+		private final BitmapRegionDecoder bd;
+
+		/** @param d The decoder of the page */
+		DecoderRegionSource(final BitmapRegionDecoder d) {
+			this.bd = d;
+		}
+
+		public int getWidth() {
+			return this.bd.getWidth();
+		}
+
+		public int getHeight() {
+			return this.bd.getHeight();
+		}
+
+		public Bitmap decodeRegion(final Rect region, final int sample) {
+			Options opts = new Options();
+			opts.inSampleSize = sample;
+			opts.inPreferredConfig = Bitmap.Config.RGB_565;
+			return this.bd.decodeRegion(region, opts);
+		}
+
+		public void close() {
+			this.bd.recycle();
+		}
+	}
+
+	/** Decodes tiles of a page with a BitmapRegionDecoder. */
+	private static final class RegionWorker implements TilePool.TileWorker {
+		/** The decoder of this worker. */
+		private final BitmapRegionDecoder bd;
+		/** The number of columns. */
+		private final int cols;
+		/** The width of a tile, after rotation. */
+		private final int tw;
+		/** The height of a tile, after rotation. */
+		private final int th;
+		/** If set, the page is rotated: tiles are decoded before the rotation. */
+		private final boolean rotate;
+
+		/**
+		 * @param d The decoder of the page
+		 * @param c The number of columns
+		 * @param w The width of a tile, after rotation
+		 * @param h The height of a tile, after rotation
+		 * @param r If set, the page is rotated
+		 */
+		RegionWorker(final BitmapRegionDecoder d, final int c, final int w, final int h, final boolean r) {
+			this.bd = d;
+			this.cols = c;
+			this.tw = w;
+			this.th = h;
+			this.rotate = r;
+		}
+
+		public Bitmap decode(final int tile) {
+			return decodeTile(this.bd, tile / this.cols, tile % this.cols, this.cols, this.tw, this.th, this.rotate);
+		}
+
+		public void close() {
+			this.bd.recycle();
+		}
+	}
+
+	/** Decodes a tile of a page, reusing the bitmaps of the BitmapPool.
+	 * @param bd The decoder of the page
+	 * @param i The row of the tile
+	 * @param j The column of the tile
+	 * @param cols The number of columns
+	 * @param tw The width of a tile, after rotation
+	 * @param th The height of a tile, after rotation
+	 * @param rotate If set, the page is rotated: return the region of the page before the rotation.
+	 * The drawable rotates it while drawing
+	 * @return The tile, or null if it cannot be decoded
+	 */
+	private static Bitmap decodeTile(final BitmapRegionDecoder bd, final int i, final int j, final int cols,
+			final int tw, final int th, final boolean rotate) {
+		if (rotate) {
+			int left = th * i;
+			int top = tw * (cols - j - 1);
+			int right = left + th;
+			int bottom = top + tw;
+
+			// the drawable rotates the tile while drawing
+			return BitmapPool.decodeRegion(bd, new Rect(left, top, right, bottom), Bitmap.Config.ARGB_8888);
+		} else {
+			int left = tw * j;
+			int top = th * i;
+			int right = left + tw;
+			int bottom = top + th;
+			return BitmapPool.decodeRegion(bd, new Rect(left, top, right, bottom), Bitmap.Config.ARGB_8888);
+		}
+	}
+
+	/** Reads a stream completely, and closes it.
+	 * @param is The stream to read
+	 * @return The contents of the stream
+	 * @throws IOException After any error */
+	protected static byte[] readFully(final InputStream is) throws IOException {
+		try {
+			// if the stream knows its size (files do), read it into an array of that size
+			byte[] data = new byte[Math.max(0, is.available())];
+			int n = 0;
+			while (n < data.length) {
+				int read = is.read(data, n, data.length - n);
+				if (read < 0) {
+					break;
 				}
+				n += read;
+			}
+			// if the array is full, check that the stream ended. This reads a byte
+			int next = n == data.length ? is.read() : -1;
+			if (n == data.length && next == -1) {
+				return data;
+			}
+			// available() was only an estimation: copy what we read, and read the rest
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(32, 2 * n));
+			baos.write(data, 0, n);
+			if (next != -1) {
+				baos.write(next);
 			}
+			byte[] buffer = new byte[16 * 1024];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, read);
+			}
+			return baos.toByteArray();
+		} finally {
+			is.close();
 		}
-		return new TiledDrawable(tiles, cols, rows);
+	}
+
+	/** @return The pool that decodes the tiles of this reader. */
+	protected final TilePool getTilePool() {
+		return this.tilePool == null ? TilePool.getShared() : this.tilePool;
+	}
+
+	/** Changes the pool that decodes the tiles of this reader. Used in benchmarks.
+	 * @param pool The new pool. If null, use the shared pool. */
+	public final void setTilePool(final TilePool pool) {
+		this.tilePool = pool;
 	}
 
 	/**
@@ -372,6 +652,12 @@ public abstract class Reader {
 	public static final Reader getReader(final Context context, final String uri) {
 		try {
 			if (CBRReader.manages(uri)) {
+				// use the converted file, if any. If not, convert it for the next time
+				File cbz = TranscodeCache.getCached(context, new File(uri));
+				if (cbz != null) {
+					return new CBZReader(context, uri, cbz);
+				}
+				TranscodeCache.schedule(context, new File(uri));
 				return new CBRReader(context, uri);
 			} else if (CBZReader.manages(uri)) {
 				return new CBZReader(context, uri);
@@ -397,6 +683,19 @@ public abstract class Reader {
 		return CBRReader.manages(uri) || CBZReader.manages(uri) || DirReader.manages(uri) || PDFReader.manages(uri);
 	}
 
+	/**
+	 * Tests the name of a regular file, without checking the filesystem.
+	 * Use this method if you already know that the file exists and it is not a directory.
+	 * @param name The name of a regular file
+	 * @return True if there is a reader for the file
+	 */
+	public static final boolean existsReaderForFile(final String name) {
+		String lname = name.toLowerCase(Locale.US);
+		return lname.endsWith(".zip") || lname.endsWith(".cbz")
+				|| lname.endsWith(".rar") || lname.endsWith(".cbr")
+				|| lname.endsWith(".pdf");
+	}
+
 	/**
 	 * @return The context of this reader
 	 */
@@ -430,10 +729,23 @@ public abstract class Reader {
 		return row;
 	}
 	
-	/** Returns a bitmap with the cover of the book.
+	/** Returns a bitmap with the cover of the book, of COVER_WIDTH x COVER_HEIGHT pixels.
 	 * The default behavior is returning the first page of the book, scaled down */
 	public Bitmap getCover() throws ReaderException {
-		return this.getBitmapPage(0, 8);
+		return scaleToCover(this.getBitmapPage(0, COVER_WIDTH, COVER_HEIGHT));
+	}
+
+	/** @param bitmap A bitmap. It is recycled if a new bitmap is created. May be null
+	 * @return The bitmap, scaled to exactly COVER_WIDTH x COVER_HEIGHT pixels */
+	protected static Bitmap scaleToCover(final Bitmap bitmap) {
+		if (bitmap == null || (bitmap.getWidth() == COVER_WIDTH && bitmap.getHeight() == COVER_HEIGHT)) {
+			return bitmap;
+		}
+		Bitmap b = Bitmap.createScaledBitmap(bitmap, COVER_WIDTH, COVER_HEIGHT, true);
+		if (b != bitmap) {
+			bitmap.recycle();
+		}
+		return b;
 	}
 	
 	/** Returns true if the reader allows the creation of caches of covers.
@@ -0,0 +1,37 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/** Decodes regions of a page at different resolutions.
+ *
+ * A region source keeps the page open (a BitmapRegionDecoder, or the PDF file)
+ * so a ZoomDrawable can decode only the regions on the screen, at the resolution
+ * of the current zoom level. Get a region source with Reader.openRegionSource().
+ *
+ * Region sources are used from a single thread at a time.
+ *
+ * @author juanvi
+ */
+public interface RegionSource {
+	/** @return The width of the page at full resolution */
+	int getWidth();
+
+	/** @return The height of the page at full resolution */
+	int getHeight();
+
+	/**
+	 * @param region The region to decode, in pixels of the page at full resolution
+	 * @param sample The sample size: 1 for full resolution, 2 for half the resolution...
+	 * Always a power of two
+	 * @return A bitmap of the region, of about region.width() / sample x region.height() / sample pixels.
+	 * Null if the region cannot be decoded
+	 * @throws IOException If the page cannot be read
+	 */
+	Bitmap decodeRegion(Rect region, int sample) throws IOException;
+
+	/** Closes the source. Do not use it after calling this method. */
+	void close();
+}
@@ -0,0 +1,239 @@
+package com.juanvvc.comicviewer.readers;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import com.juanvvc.comicviewer.MyLog;
+
+/** Compares the time to decode a page using different number of threads,
+ * and measures the time to draw the frames of a page turn.
+ * For PDF files, it also compares the time to render several pages at the same time.
+ *
+ * This is a tool for debugging: it is slow and uses lots of memory.
+ * Do not run it in the UI thread.
+ *
+ * @author juanvi
+ */
+public final class TileBenchmark {
+	/** A tag for logging. */
+	private static final String TAG = "TileBenchmark";
+	/** The max number of threads to test. */
+	public static final int MAX_THREADS = 8;
+	/** Number of times each test is repeated. */
+	private static final int REPETITIONS = 3;
+	/** Max time to decode a page, in milliseconds. */
+	private static final long TIMEOUT = 60000;
+	/** Number of frames of the drawing test: two seconds of an animation at 60fps. */
+	private static final int FRAMES = 120;
+	/** The max number of pages that are rendered at the same time in the PDF test. */
+	public static final int MAX_PARALLEL = 4;
+
+	/** Do not create instances of this class. */
+	private TileBenchmark() {
+	}
+
+	/**
+	 * Decodes a page with 1 to MAX_THREADS threads.
+	 * The time of each test is the time until all tiles are decoded.
+	 * Then, draws the page as in the animation of a page turn.
+	 *
+	 * @param context The context of the application
+	 * @param uri The uri of the comic
+	 * @param page The page to decode
+	 * @param width The width of the viewport
+	 * @param height The height of the viewport
+	 * @return A report of the benchmark, one line for each number of threads
+	 * @throws ReaderException If the page cannot be decoded
+	 */
+	public static String run(final Context context, final String uri, final int page, final int width, final int height)
+			throws ReaderException {
+		// a reader for the benchmark: readers are not thread safe
+		Reader reader = Reader.getReader(context, uri);
+		if (reader == null) {
+			throw new ReaderException("No reader for " + uri);
+		}
+		StringBuffer report = new StringBuffer();
+		try {
+			reader.setViewportSize(width, height);
+			report.append(reader.getClass().getSimpleName()).append(", page ").append(page + 1)
+				.append(", ").append(Runtime.getRuntime().availableProcessors()).append(" cores\n");
+			// warm up: the first decoding reads the file from the disk
+			decode(reader, page, 1);
+			long serial = 0;
+			for (int threads = 1; threads <= MAX_THREADS; threads++) {
+				long total = 0;
+				for (int i = 0; i < REPETITIONS; i++) {
+					total += decode(reader, page, threads);
+				}
+				long avg = total / REPETITIONS;
+				if (threads == 1) {
+					serial = avg;
+				}
+				report.append(threads).append(threads == 1 ? " thread: " : " threads: ").append(avg).append("ms");
+				if (threads > 1 && avg > 0) {
+					report.append(" (x").append(Math.round(10.0 * serial / avg) / 10.0).append(")");
+				}
+				report.append("\n");
+			}
+			report.append(drawFrames(reader, page, width, height));
+			if (reader instanceof PDFReader) {
+				// only PDFReader can be used from several threads
+				long single = 0;
+				for (int n = 1; n <= MAX_PARALLEL; n++) {
+					long total = 0;
+					for (int i = 0; i < REPETITIONS; i++) {
+						total += renderInParallel(reader, page, n, width, height);
+					}
+					// milliseconds per page
+					long avg = total / (REPETITIONS * n);
+					if (n == 1) {
+						single = avg;
+					}
+					report.append(n).append(" parallel renders: ").append(avg).append("ms/page");
+					if (n > 1 && avg > 0) {
+						report.append(" (x").append(Math.round(10.0 * single / avg) / 10.0).append(")");
+					}
+					report.append("\n");
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		MyLog.i(TAG, report.toString());
+		return report.toString();
+	}
+
+	/**
+	 * Draws a page sliding out of the screen, as the ImageSwitcher does.
+	 * @param reader The reader
+	 * @param page The page to draw
+	 * @param width The width of the viewport
+	 * @param height The height of the viewport
+	 * @return A line of the report: time per frame, and allocations and garbage collections while drawing
+	 * @throws ReaderException If the page cannot be decoded
+	 */
+	private static String drawFrames(final Reader reader, final int page, final int width, final int height)
+			throws ReaderException {
+		TilePool pool = new TilePool(1);
+		reader.setTilePool(pool);
+		Drawable d;
+		try {
+			d = reader.getPage(page);
+		} finally {
+			pool.shutdown(TIMEOUT);
+			reader.setTilePool(null);
+		}
+		if (d == null) {
+			throw new ReaderException("Page not found: " + page);
+		}
+		Bitmap screen = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+		Canvas canvas = new Canvas(screen);
+		d.setBounds(0, 0, width, height);
+		// the first frame calculates the layout of the page
+		d.draw(canvas);
+		long max = 0;
+		Debug.resetAllCounts();
+		Debug.startAllocCounting();
+		long start = SystemClock.uptimeMillis();
+		try {
+			for (int i = 0; i < FRAMES; i++) {
+				long frame = SystemClock.uptimeMillis();
+				canvas.save();
+				canvas.translate(-width * i / FRAMES, 0);
+				d.draw(canvas);
+				canvas.restore();
+				max = Math.max(max, SystemClock.uptimeMillis() - frame);
+			}
+		} finally {
+			Debug.stopAllocCounting();
+		}
+		long time = SystemClock.uptimeMillis() - start;
+		String line = "Drawing " + FRAMES + " frames: " + (Math.round(10.0 * time / FRAMES) / 10.0)
+			+ "ms/frame, max " + max + "ms, " + Debug.getGlobalAllocCount() + " allocations, "
+			+ Debug.getGlobalGcInvocationCount() + " GCs\n";
+		screen.recycle();
+		if (d instanceof TiledDrawable) {
+			((TiledDrawable) d).recycle();
+		}
+		return line;
+	}
+
+	/**
+	 * Renders several pages at the same time, each one from its own thread.
+	 * @param reader The reader. It must support calls from several threads
+	 * @param page The first page to render
+	 * @param n Number of pages to render at the same time
+	 * @param width The width of the viewport
+	 * @param height The height of the viewport
+	 * @return Milliseconds to render all the pages
+	 * @throws ReaderException If a page cannot be rendered
+	 */
+	private static long renderInParallel(final Reader reader, final int page, final int n,
+			final int width, final int height) throws ReaderException {
+		final Exception[] error = {null };
+		Thread[] threads = new Thread[n];
+		long start = SystemClock.uptimeMillis();
+		for (int i = 0; i < n; i++) {
+			final int p = (page + i) % reader.countPages();
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Bitmap b = reader.getBitmapPage(p, width, height);
+						if (b != null) {
+							b.recycle();
+						}
+					} catch (Exception e) {
+						synchronized (error) {
+							error[0] = e;
+						}
+					}
+				}
+			}, TAG + "-" + i);
+			threads[i].start();
+		}
+		for (Thread t: threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				throw new ReaderException("Interrupted");
+			}
+		}
+		long time = SystemClock.uptimeMillis() - start;
+		synchronized (error) {
+			if (error[0] != null) {
+				throw new ReaderException(error[0].toString());
+			}
+		}
+		return time;
+	}
+
+	/**
+	 * @param reader The reader
+	 * @param page The page to decode
+	 * @param threads Number of threads
+	 * @return Milliseconds to decode all the tiles of the page
+	 * @throws ReaderException If the page cannot be decoded
+	 */
+	private static long decode(final Reader reader, final int page, final int threads) throws ReaderException {
+		TilePool pool = new TilePool(threads);
+		reader.setTilePool(pool);
+		long start = SystemClock.uptimeMillis();
+		Drawable d;
+		try {
+			d = reader.getPage(page);
+		} finally {
+			// wait for the tiles in the background
+			pool.shutdown(TIMEOUT);
+			reader.setTilePool(null);
+		}
+		long time = SystemClock.uptimeMillis() - start;
+		if (d instanceof TiledDrawable) {
+			((TiledDrawable) d).recycle();
+		}
+		return time;
+	}
+}
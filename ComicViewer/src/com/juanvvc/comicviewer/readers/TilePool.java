@@ -0,0 +1,182 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import com.juanvvc.comicviewer.MyLog;
+
+/** Decodes the tiles of a page in parallel.
+ *
+ * The pool has a fixed number of threads, by default the number of cores.
+ * A page is decoded by several jobs that take tiles from a shared list, in order.
+ * Each job has its own worker (for example, its own BitmapRegionDecoder) since
+ * decoders cannot be used by several threads at the same time.
+ * Tiles are set in their place of the TiledDrawable, so the final layout
+ * does not depend on the order in which the tiles were decoded.
+ *
+ * @author juanvi
+ */
+public class TilePool {
+	/** A tag for logging. */
+	private static final String TAG = "TilePool";
+	/** The pool that all readers share. Created when needed. */
+	private static TilePool shared = null;
+
+	/** The threads of the pool. */
+	private final ExecutorService executor;
+	/** Number of threads of the pool. */
+	private final int threads;
+
+	/** Decodes tiles. A worker is used by a single thread. */
+	public interface TileWorker {
+		/**
+		 * @param tile The index of the tile: the first row from left to right, then the second row...
+		 * @return The tile, or null if it cannot be decoded
+		 * @throws IOException After any problem
+		 */
+		Bitmap decode(int tile) throws IOException;
+
+		/** The worker is not going to be used anymore. */
+		void close();
+	}
+
+	/** Creates the workers of a page. */
+	public interface TileSource {
+		/** This method may be called from any thread.
+		 * @return A new worker for the page
+		 * @throws IOException After any problem */
+		TileWorker newWorker() throws IOException;
+	}
+
+	/**
+	 * @param n Number of threads of the pool
+	 */
+	public TilePool(final int n) {
+		this.threads = Math.max(1, n);
+		this.executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			/** Number of created threads. */
+			private final AtomicInteger count = new AtomicInteger(0);
+			public Thread newThread(final Runnable runnable) {
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, TAG + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/** @return The pool that all readers share, with a thread for each core. */
+	public static synchronized TilePool getShared() {
+		if (shared == null) {
+			shared = new TilePool(Runtime.getRuntime().availableProcessors());
+			MyLog.d(TAG, "Shared pool of " + shared.getThreads() + " threads");
+		}
+		return shared;
+	}
+
+	/** @return Number of threads of the pool. */
+	public final int getThreads() {
+		return this.threads;
+	}
+
+	/**
+	 * Decodes the tiles of a page.
+	 * The tiles are decoded in the order of the array, using up to getThreads() workers.
+	 * This method returns when the first tiles are set in the drawable, and the rest of the
+	 * tiles are decoded in the background. If the drawable is recycled, pending tiles are not decoded.
+	 *
+	 * @param d The drawable to set the tiles in
+	 * @param order The indexes of the tiles to decode, in order
+	 * @param first Wait until this number of tiles of the array are decoded. Use order.length to wait for all of them
+	 * @param source Creates the workers
+	 * @throws IOException If any of the first tiles could not be decoded
+	 */
+	public final void decode(final TiledDrawable d, final int[] order, final int first, final TileSource source)
+			throws IOException {
+		final AtomicInteger next = new AtomicInteger(0);
+		final CountDownLatch firstDone = new CountDownLatch(Math.min(first, order.length));
+		final Throwable[] error = {null };
+		int jobs = Math.min(this.threads, order.length);
+		for (int k = 0; k < jobs; k++) {
+			this.executor.execute(new Runnable() {
+				public void run() {
+					TileWorker worker = null;
+					try {
+						worker = source.newWorker();
+						while (!d.isRecycled()) {
+							int n = next.getAndIncrement();
+							if (n >= order.length) {
+								break;
+							}
+							Bitmap b = worker.decode(order[n]);
+							if (b != null) {
+								d.setTile(order[n], b);
+							}
+							if (n < first) {
+								firstDone.countDown();
+							}
+						}
+					} catch (Throwable e) {
+						MyLog.e(TAG, "Cannot decode tile: " + e.toString());
+						synchronized (error) {
+							error[0] = e;
+						}
+						// nobody else is going to decode the first tiles if all jobs fail
+						while (firstDone.getCount() > 0) {
+							firstDone.countDown();
+						}
+					} finally {
+						if (worker != null) {
+							worker.close();
+						}
+					}
+				}
+			});
+		}
+		try {
+			firstDone.await();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		}
+		synchronized (error) {
+			if (error[0] == null) {
+				return;
+			}
+		}
+		for (int n = 0; n < first && n < order.length; n++) {
+			if (!d.isTileReady(order[n])) {
+				synchronized (error) {
+					if (error[0] instanceof OutOfMemoryError) {
+						throw (OutOfMemoryError) error[0];
+					}
+					throw new IOException(error[0].toString());
+				}
+			}
+		}
+	}
+
+	/** Finishes the threads of the pool, after the pending tiles.
+	 * Do not call this method on the shared pool.
+	 * @param timeout Max number of milliseconds to wait
+	 * @return True if all tiles were decoded before the timeout */
+	public final boolean shutdown(final long timeout) {
+		this.executor.shutdown();
+		try {
+			return this.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+}
@@ -8,10 +8,21 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Matrix;
+import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
 
 /** Manages a drawable that is created from a bitmap divided in tiles.
  * This class has different scale modes to show the tiles of the bitmap.
+ *
+ * A tiled drawable may be rotated: its tiles are the regions of a landscape
+ * image as they are decoded, and the drawable rotates them 90 degrees while
+ * drawing. Rows, columns and tile sizes always refer to the rotated image.
+ *
+ * A tiled drawable may be progressive: it is created without tiles, and the
+ * tiles are set later from any thread. Missing tiles are not drawn, and
+ * the drawable invalidates itself each time a tile arrives.
  * @author juanvi
  *
  */
@@ -46,6 +57,46 @@ public class TiledDrawable extends Drawable {
 	 * All tiles must have the same size, but this is not checked anywhere!
 	 */
 	private int tileHeight;
+	/** If set, the tiles are rotated 90 degrees while drawing. */
+	private final boolean rotated;
+	/** If set, the tiles were recycled and this drawable cannot be drawn. */
+	private volatile boolean recycled = false;
+	/** If set, this drawable is in a PageCache and the cache decides when to recycle it. */
+	private boolean cached = false;
+	/** Number of tiles that are not set yet. */
+	private int missingTiles = 0;
+	/** The number of bytes of the tiles, once all of them are set. */
+	private final long byteCount;
+	/** If set, there is an invalidation pending in the UI thread. */
+	private boolean invalidatePending = false;
+	/** The matrix of each tile on the canvas. Calculated in layout(). */
+	private Matrix[] matrices = null;
+	/** The area of each tile on the canvas. Calculated in layout(). */
+	private RectF[] bounds = null;
+	/** The width of the canvas of the last layout. */
+	private int layoutWidth = -1;
+	/** The height of the canvas of the last layout. */
+	private int layoutHeight = -1;
+	/** The mode of the last layout. */
+	private Mode layoutMode = null;
+	/** Runs invalidations on the UI thread. */
+	private static Handler uiHandler = null;
+
+	/**
+	 * Construct a tiled drawable with a single tile.
+	 * @param b The only tile
+	 */
+	public TiledDrawable(final Bitmap b) {
+		this(singleTile(b), 1, 1);
+	}
+
+	/** @param b A bitmap
+	 * @return A list of tiles with only this bitmap */
+	private static ArrayList<Bitmap> singleTile(final Bitmap b) {
+		ArrayList<Bitmap> t = new ArrayList<Bitmap>(1);
+		t.add(b);
+		return t;
+	}
 
 	/**
 	 * Construct a tiled drawable.
@@ -60,10 +111,113 @@ public class TiledDrawable extends Drawable {
 		this.tiles = t;
 		this.cols = c;
 		this.rows = r;
+		this.rotated = false;
 		this.setMode(Mode.CENTERED_FILL_SCREEN);
 		Bitmap b = tiles.get(0);
 		tileHeight = b.getHeight();
 		tileWidth = b.getWidth();
+		long bytes = 0;
+		for (Bitmap d: tiles) {
+			bytes += d.getRowBytes() * d.getHeight();
+		}
+		this.byteCount = bytes;
+	}
+
+	/**
+	 * Construct a progressive tiled drawable, without any tile.
+	 * Set the tiles later with setTile().
+	 * @param c Number of columns
+	 * @param r Number of rows
+	 * @param tw Width of a tile
+	 * @param th Height of a tile
+	 * @param config The configuration of the tiles
+	 */
+	public TiledDrawable(final int c, final int r, final int tw, final int th, final Bitmap.Config config) {
+		this(c, r, tw, th, config, false);
+	}
+
+	/**
+	 * Construct a progressive tiled drawable, without any tile.
+	 * Set the tiles later with setTile().
+	 * @param c Number of columns, after rotation
+	 * @param r Number of rows, after rotation
+	 * @param tw Width of a tile, after rotation
+	 * @param th Height of a tile, after rotation
+	 * @param config The configuration of the tiles
+	 * @param rotate If set, the tiles are set without rotation (that is, tiles are th x tw pixels)
+	 * and they are rotated 90 degrees while drawing
+	 */
+	public TiledDrawable(final int c, final int r, final int tw, final int th, final Bitmap.Config config,
+			final boolean rotate) {
+		this.rotated = rotate;
+		this.cols = c;
+		this.rows = r;
+		this.tileWidth = tw;
+		this.tileHeight = th;
+		this.tiles = new ArrayList<Bitmap>(c * r);
+		for (int i = 0; i < c * r; i++) {
+			this.tiles.add(null);
+		}
+		this.missingTiles = c * r;
+		this.setMode(Mode.CENTERED_FILL_SCREEN);
+		this.byteCount = ((long) c) * r * tw * th * (config == Bitmap.Config.RGB_565 ? 2 : 4);
+	}
+
+	/** Sets a tile of a progressive drawable. This method may be called from any thread.
+	 * If the drawable was recycled, the tile returns to the BitmapPool.
+	 * @param i The index of the tile: the first row from left to right, then the second row...
+	 * @param b The tile. It must have the size of the other tiles. Tiles of rotated drawables are not rotated.
+	 */
+	public final void setTile(final int i, final Bitmap b) {
+		synchronized (this.tiles) {
+			if (this.recycled) {
+				BitmapPool.release(b);
+				return;
+			}
+			if (this.tiles.set(i, b) == null) {
+				this.missingTiles--;
+			}
+			if (this.invalidatePending) {
+				return;
+			}
+			this.invalidatePending = true;
+		}
+		synchronized (TiledDrawable.class) {
+			if (uiHandler == null) {
+				uiHandler = new Handler(Looper.getMainLooper());
+			}
+		}
+		uiHandler.post(new Runnable() {
+			public void run() {
+				synchronized (tiles) {
+					invalidatePending = false;
+				}
+				invalidateSelf();
+			}
+		});
+	}
+
+	/** @param i The index of a tile
+	 * @return True if the tile is set */
+	public final boolean isTileReady(final int i) {
+		synchronized (this.tiles) {
+			return this.tiles.get(i) != null;
+		}
+	}
+
+	/** @return True if all tiles are set */
+	public final boolean isComplete() {
+		synchronized (this.tiles) {
+			return this.missingTiles == 0;
+		}
+	}
+
+	/** @param i The index of a tile
+	 * @return The tile, or null if it is not ready */
+	private Bitmap getTile(final int i) {
+		synchronized (this.tiles) {
+			return this.tiles.get(i);
+		}
 	}
 
 	@Override
@@ -72,77 +226,84 @@ public class TiledDrawable extends Drawable {
 			MyLog.w(TAG, "Mode was null! Using default mode");
 			this.setMode(Mode.CENTERED_FILL_SCREEN);
 		}
+		// draw() runs on every frame of the animations: it must not create any object
+		this.layout(canvas.getWidth(), canvas.getHeight());
+		for (int k = 0; k < this.matrices.length; k++) {
+			Bitmap d = this.getTile(k);
+			if (d == null || canvas.quickReject(this.bounds[k], Canvas.EdgeType.AA)) {
+				continue;
+			}
+			canvas.drawBitmap(d, this.matrices[k], null);
+		}
+	}
+
+	/**
+	 * Calculates the position of the tiles on a canvas.
+	 * The positions are calculated only if the size of the canvas or the mode changed.
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 */
+	private void layout(final int width, final int height) {
+		if (this.matrices != null && width == this.layoutWidth && height == this.layoutHeight
+				&& this.mode == this.layoutMode) {
+			return;
+		}
+		// the scale and offset of the tiles
+		float sx, sy, ox, oy;
 		switch(this.mode) {
 		case CENTERED_FILL_SCREEN:
-			this.drawCenteredFillScreen(canvas);
-			break;
-		case CENTERED_ORIGINAL_SIZE:
-			this.drawCenteredOriginal(canvas);
+			// fill the screen, maintain proportions
+			sx = Math.min(
+					(((float) width) / cols) / tileWidth,
+					(((float) height) / rows) / tileHeight
+					);
+			sy = sx;
+			ox = Math.round(width - sx * tileWidth * this.cols) / 2;
+			oy = Math.round(height - sy * tileHeight * this.rows) / 2;
 			break;
 		case STRECHED:
-			this.drawStreched(canvas);
+			// fill the whole screen
+			sx = (((float) width) / cols) / tileWidth;
+			sy = (((float) height) / rows) / tileHeight;
+			ox = 0;
+			oy = 0;
 			break;
+		case CENTERED_ORIGINAL_SIZE:
 		default:
+			// keep original size
+			sx = 1;
+			sy = 1;
+			ox = 0;
+			oy = 0;
 		}
-	}
-
-	/**
-	 * Mode "fill the screen, maintain proportions".
-	 * @param canvas The canvas to draw this drawable on
-	 */
-	private void drawCenteredFillScreen(final Canvas canvas) {
-		float scale = Math.min(
-				(((float) canvas.getWidth()) / cols) / tileWidth,
-				(((float) canvas.getHeight()) / rows) / tileHeight
-				);
-		int ox = Math.round(canvas.getWidth() - scale * tileWidth * this.cols) / 2;
-		int oy = Math.round(canvas.getHeight() - scale * tileHeight * this.rows) / 2;
-
-		for (int i = 0; i < this.rows; i++) {
-			for (int j = 0; j < this.cols; j++) {
-				Bitmap d = this.tiles.get(i * this.cols + j);
-				Matrix matrix = new Matrix();
-				matrix.preScale(scale, scale);
-				matrix.postTranslate(scale * tileWidth * j + ox, scale * tileHeight * i + oy);
-				canvas.drawBitmap(d, matrix, null);
-			}
-		}
-	}
 
-	/**
-	 * Mode "fill the whole screen".
-	 * @param canvas The canvas to draw this drawable on
-	 */
-	private void drawStreched(final Canvas canvas) {
-		// the final tile width and height
-		float tw = ((float) canvas.getWidth()) / cols;
-		float th = ((float) canvas.getHeight()) / rows;
-		for (int i = 0; i < this.rows; i++) {
-			for (int j = 0; j < this.cols; j++) {
-				Bitmap d = this.tiles.get(i * this.cols + j);
-				Matrix matrix = new Matrix();
-				matrix.preScale(tw / d.getWidth(), th / d.getHeight());
-				matrix.postTranslate(tw * j, th * i);
-				canvas.drawBitmap(d, matrix, null);
+		if (this.matrices == null) {
+			this.matrices = new Matrix[this.cols * this.rows];
+			this.bounds = new RectF[this.cols * this.rows];
+			for (int k = 0; k < this.matrices.length; k++) {
+				this.matrices[k] = new Matrix();
+				this.bounds[k] = new RectF();
 			}
 		}
-	}
-
-	/**
-	 * Mode "keep original size".
-	 * @param canvas The canvas to draw this drawable on
-	 */
-	private void drawCenteredOriginal(final Canvas canvas) {
 		for (int i = 0; i < this.rows; i++) {
 			for (int j = 0; j < this.cols; j++) {
-				Bitmap d = this.tiles.get(i * this.cols + j);
-				Matrix matrix = new Matrix();
-				float tw = d.getWidth();
-				float th = d.getHeight();
-				matrix.postTranslate(tw * j, th * i);
-				canvas.drawBitmap(d, matrix, null);
+				int k = i * this.cols + j;
+				Matrix matrix = this.matrices[k];
+				matrix.reset();
+				if (this.rotated) {
+					// a tile of th x tw pixels, rotated clockwise: (x, y) goes to (tw - y, x)
+					matrix.postRotate(90);
+					matrix.postTranslate(tileWidth, 0);
+				}
+				matrix.postScale(sx, sy);
+				matrix.postTranslate(sx * tileWidth * j + ox, sy * tileHeight * i + oy);
+				this.bounds[k].set(sx * tileWidth * j + ox, sy * tileHeight * i + oy,
+						sx * tileWidth * (j + 1) + ox, sy * tileHeight * (i + 1) + oy);
 			}
 		}
+		this.layoutWidth = width;
+		this.layoutHeight = height;
+		this.layoutMode = this.mode;
 	}
 
 	@Override
@@ -159,14 +320,66 @@ public class TiledDrawable extends Drawable {
 	}
 
 	/** Recycle the internal bitmaps.
-	 * Not sure if necessary.
+	 * The tiles return to the BitmapPool, and the next pages reuse them.
 	 */
 	public final void recycle() {
-		for (Bitmap d: tiles) {
-			d.recycle();
+		synchronized (this.tiles) {
+			if (this.recycled) {
+				return;
+			}
+			this.recycled = true;
+			for (int i = 0; i < this.tiles.size(); i++) {
+				BitmapPool.release(this.tiles.get(i));
+				this.tiles.set(i, null);
+			}
+		}
+	}
+
+	/** The drawable is not going to be used anymore.
+	 * Recycle the internal bitmaps, unless the drawable is in a PageCache:
+	 * then, the cache recycles the bitmaps when the page is evicted.
+	 */
+	public final void release() {
+		if (!this.cached) {
+			this.recycle();
 		}
 	}
 
+	/** @return True if the internal bitmaps were recycled. */
+	public final boolean isRecycled() {
+		return this.recycled;
+	}
+
+	/** @param c If set, this drawable is in a PageCache (or any other owner) and
+	 * release() does not recycle the internal bitmaps. */
+	public final void setCached(final boolean c) {
+		this.cached = c;
+	}
+
+	/** Creates a small version of this drawable.
+	 * @param maxSize The max width or height of the preview
+	 * @return A bitmap with the contents of this drawable, scaled down
+	 */
+	public final Bitmap createPreview(final int maxSize) {
+		int w = this.tileWidth * this.cols;
+		int h = this.tileHeight * this.rows;
+		float scale = Math.min(1f, ((float) maxSize) / Math.max(w, h));
+		Bitmap preview = Bitmap.createBitmap(
+				Math.max(1, Math.round(w * scale)), Math.max(1, Math.round(h * scale)),
+				Bitmap.Config.RGB_565);
+		Mode m = this.mode;
+		this.mode = Mode.STRECHED;
+		this.draw(new Canvas(preview));
+		this.mode = m;
+		return preview;
+	}
+
+	/** @return The number of bytes of the internal bitmaps, once all tiles are set.
+	 * This value does not change during the lifetime of the drawable. */
+	public final long getByteCount() {
+		return this.byteCount;
+	}
+
 	/**
 	 * @return The current scale mode
 	 */
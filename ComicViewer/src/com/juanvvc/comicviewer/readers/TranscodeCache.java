@@ -0,0 +1,342 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import android.content.Context;
+import android.os.Process;
+import android.preference.PreferenceManager;
+
+import com.juanvvc.comicviewer.CacheFile;
+import com.juanvvc.comicviewer.MyLog;
+
+import de.innosystec.unrar.rarfile.FileHeader;
+
+/** A cache of CBR files converted to CBZ.
+ *
+ * JunRAR is slow and loads the entire file of a page into memory. Comics in
+ * ZIP files are much faster, so CBR files are converted in the background into
+ * store-only CBZ files in the cache directory, and Reader.getReader() uses the
+ * CBZ file the next time.
+ *
+ * The cache has a size budget: the least recently used files are removed.
+ * A converted file is valid while the size and modification time of the
+ * original file do not change. The last time a converted file was used is saved
+ * in its SOURCE file, and not as its modification time: the ArchiveIndex of the
+ * converted file depends on it, and external storage may not allow to change it.
+ *
+ * This is optional: see the preference pref_transcode_cbr.
+ *
+ * @author juanvi
+ */
+public final class TranscodeCache {
+	/** A tag for logging. */
+	private static final String TAG = "TranscodeCache";
+	/** The name of the directory of the cache. */
+	private static final String DIRECTORY = "cbz";
+	/** The extension of the converted files. */
+	private static final String CBZ = ".cbz";
+	/** The extension of the files with information about the original file. */
+	private static final String SOURCE = ".src";
+	/** Max size of the cache, in bytes. */
+	private static final long MAX_BYTES = 256L * 1024 * 1024;
+	/** Change this number if the format of the files changes. */
+	private static final int VERSION = 2;
+	/** The files that are being converted. */
+	private static final HashSet<String> PENDING = new HashSet<String>();
+	/** Converts files in the background, one at a time. Created when needed. */
+	private static ExecutorService executor = null;
+
+	/** Do not create instances of this class. */
+	private TranscodeCache() {
+	}
+
+	/** @param context The context of the application
+	 * @return True if the user wants to convert CBR files */
+	public static boolean isEnabled(final Context context) {
+		return PreferenceManager.getDefaultSharedPreferences(context).getBoolean("pref_transcode_cbr", false);
+	}
+
+	/** @param context The context of the application
+	 * @return The directory of the cache. External storage, if available: comics are large */
+	private static File getDirectory(final Context context) {
+		File root = context.getExternalCacheDir();
+		if (root == null) {
+			root = context.getCacheDir();
+		}
+		return new File(root, DIRECTORY);
+	}
+
+	/** @param context The context of the application
+	 * @param cbr The original file
+	 * @param extension The extension of the file in the cache
+	 * @return A file in the cache for the original file */
+	private static File getFile(final Context context, final File cbr, final String extension) {
+		return CacheFile.getFile(getDirectory(context), cbr, extension);
+	}
+
+	/**
+	 * Gets the converted version of a CBR file.
+	 * Stale files are removed.
+	 * @param context The context of the application
+	 * @param cbr The original file
+	 * @return The converted CBZ file, or null if there is not a valid one
+	 */
+	public static File getCached(final Context context, final File cbr) {
+		File cbz = getFile(context, cbr, CBZ);
+		File src = getFile(context, cbr, SOURCE);
+		if (!cbz.exists() || !src.exists()) {
+			return null;
+		}
+		boolean valid = false;
+		DataInputStream in = null;
+		try {
+			in = CacheFile.open(src);
+			valid = CacheFile.checkHeader(in, VERSION, cbr);
+		} catch (IOException e) {
+			valid = false;
+		} finally {
+			CacheFile.close(in);
+		}
+		if (!valid) {
+			MyLog.d(TAG, "Removing stale " + cbz.getName() + " of " + cbr.getName());
+			cbz.delete();
+			src.delete();
+			return null;
+		}
+		try {
+			writeSource(src, cbr);
+		} catch (IOException e) {
+			MyLog.w(TAG, "Cannot update " + src.getName() + ": " + e.toString());
+		}
+		return cbz;
+	}
+
+	/**
+	 * Writes the information about the original file of a converted file,
+	 * and the current time as the last time the converted file was used.
+	 * @param src The file of the information
+	 * @param cbr The original file
+	 * @throws IOException If the file cannot be written
+	 */
+	private static void writeSource(final File src, final File cbr) throws IOException {
+		CacheFile.write(src, new CacheFile.Content() {
+			public void write(final DataOutputStream out) throws IOException {
+				CacheFile.writeHeader(out, VERSION, cbr);
+				out.writeLong(System.currentTimeMillis());
+			}
+		}, false);
+	}
+
+	/**
+	 * @param src The file of the information about an original file
+	 * @return The last time its converted file was used, or 0 if unknown
+	 */
+	private static long getLastUsed(final File src) {
+		DataInputStream in = null;
+		try {
+			in = CacheFile.open(src);
+			CacheFile.skipHeader(in);
+			return in.readLong();
+		} catch (IOException e) {
+			return 0;
+		} finally {
+			CacheFile.close(in);
+		}
+	}
+
+	/**
+	 * Converts a CBR file in the background, if the user wants to and it is not converted yet.
+	 * @param context The context of the application
+	 * @param cbr The original file
+	 */
+	public static void schedule(final Context context, final File cbr) {
+		if (!isEnabled(context) || cbr.length() > MAX_BYTES / 2) {
+			return;
+		}
+		final String path = cbr.getAbsolutePath();
+		synchronized (PENDING) {
+			if (PENDING.contains(path)) {
+				return;
+			}
+			PENDING.add(path);
+		}
+		final Context app = context.getApplicationContext();
+		getExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					if (getCached(app, cbr) == null) {
+						transcode(app, cbr);
+						trim(app);
+					}
+				} finally {
+					synchronized (PENDING) {
+						PENDING.remove(path);
+					}
+				}
+			}
+		});
+	}
+
+	/** @return The executor of the conversions. */
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable runnable) {
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+							runnable.run();
+						}
+					}, TAG);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Converts a CBR file into a store-only CBZ file.
+	 * Images are already compressed: compressing them again saves nothing and slows down the reader.
+	 * @param context The context of the application
+	 * @param cbr The original file
+	 */
+	private static void transcode(final Context context, final File cbr) {
+		File cbz = getFile(context, cbr, CBZ);
+		File src = getFile(context, cbr, SOURCE);
+		long start = System.currentTimeMillis();
+		RarExtractor rar = null;
+		try {
+			// the modification time of the original file is read before converting it
+			long length = cbr.length();
+			long modified = cbr.lastModified();
+			rar = new RarExtractor(cbr);
+			if (rar.isEncrypted()) {
+				throw new IOException("Encrypted file");
+			}
+			final RarExtractor r = rar;
+			CacheFile.write(cbz, new CacheFile.Content() {
+				public void write(final DataOutputStream out) throws IOException {
+					writeZip(r, out);
+				}
+			}, false);
+			if (cbr.length() != length || cbr.lastModified() != modified) {
+				throw new IOException("Changed during the conversion");
+			}
+			writeSource(src, cbr);
+			MyLog.i(TAG, "Converted " + cbr.getName() + " in " + (System.currentTimeMillis() - start) + "ms");
+		} catch (Exception e) {
+			MyLog.w(TAG, "Cannot convert " + cbr.getName() + ": " + e.toString());
+			cbz.delete();
+			src.delete();
+		} catch (OutOfMemoryError e) {
+			MyLog.w(TAG, "Cannot convert " + cbr.getName() + ": " + e.toString());
+			cbz.delete();
+			src.delete();
+		} finally {
+			if (rar != null) {
+				rar.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes the images of a RAR file as a store-only ZIP file.
+	 * @param rar The original file
+	 * @param out Where the ZIP file is written. It is not closed
+	 * @throws IOException After any problem
+	 */
+	private static void writeZip(final RarExtractor rar, final DataOutputStream out) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(out);
+		zip.setMethod(ZipOutputStream.STORED);
+		CRC32 crc = new CRC32();
+		// in the order of the archive, so solid archives are decompressed only once
+		for (FileHeader h: rar.getFileHeaders()) {
+			String name = h.getFileNameString();
+			String lname = name.toLowerCase();
+			if (h.isDirectory() || !(lname.endsWith(".jpg") || lname.endsWith(".png"))) {
+				continue;
+			}
+			byte[] data = BufferPool.acquire(rar.getSize(name));
+			try {
+				int size = rar.extract(name, data);
+				crc.reset();
+				crc.update(data, 0, size);
+				ZipEntry e = new ZipEntry(name.replace('\\', '/'));
+				e.setMethod(ZipEntry.STORED);
+				e.setSize(size);
+				e.setCompressedSize(size);
+				e.setCrc(crc.getValue());
+				zip.putNextEntry(e);
+				zip.write(data, 0, size);
+				zip.closeEntry();
+			} finally {
+				BufferPool.release(data);
+			}
+		}
+		// the stream is flushed and closed by the CacheFile
+		zip.finish();
+	}
+
+	/** Removes the least recently used files until the cache is under its budget.
+	 * @param context The context of the application */
+	private static void trim(final Context context) {
+		File[] files = getDirectory(context).listFiles();
+		if (files == null) {
+			return;
+		}
+		long total = 0;
+		ArrayList<File> cbzs = new ArrayList<File>();
+		final HashMap<File, Long> lastUsed = new HashMap<File, Long>();
+		for (File f: files) {
+			total += f.length();
+			if (f.getName().endsWith(CBZ)) {
+				cbzs.add(f);
+				lastUsed.put(f, getLastUsed(getSourceOf(f)));
+			}
+		}
+		if (total <= MAX_BYTES) {
+			return;
+		}
+		Collections.sort(cbzs, new Comparator<File>() {
+			public int compare(final File lhs, final File rhs) {
+				long l = lastUsed.get(lhs);
+				long r = lastUsed.get(rhs);
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		for (File f: cbzs) {
+			if (total <= MAX_BYTES) {
+				break;
+			}
+			MyLog.d(TAG, "Removing " + f.getName());
+			total -= f.length();
+			f.delete();
+			File src = getSourceOf(f);
+			total -= src.length();
+			src.delete();
+		}
+	}
+
+	/** @param cbz A converted file
+	 * @return The file of the information about its original file */
+	private static File getSourceOf(final File cbz) {
+		String base = cbz.getPath().substring(0, cbz.getPath().length() - CBZ.length());
+		return new File(base + SOURCE);
+	}
+}
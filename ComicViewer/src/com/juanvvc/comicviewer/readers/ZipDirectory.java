@@ -0,0 +1,297 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/** Reads the entries of a ZIP file by their offset.
+ *
+ * java.util.zip.ZipFile only returns streams, and the readers had to copy
+ * each stream into a growing buffer and then into a byte array. This class reads
+ * the central directory of the file, and then:
+ *
+ * - stored (not compressed) entries are mapped in memory, without any copy.
+ * - deflated entries are read into buffers of the BufferPool and inflated into a single array.
+ *
+ * ZIP64 and encrypted files are not supported.
+ * This class is thread safe: the file is read only with positional reads.
+ *
+ * @author juanvi
+ */
+public class ZipDirectory {
+	/** Signature of the end of central directory record. */
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	/** Signature of a central directory entry. */
+	private static final int CD_SIGNATURE = 0x02014b50;
+	/** Signature of a local header. */
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	/** Size of the end of central directory record, without comment. */
+	private static final int EOCD_SIZE = 22;
+	/** Size of a local header, without name and extra field. */
+	private static final int LOCAL_SIZE = 30;
+	/** Max size of the comment of the file. */
+	private static final int MAX_COMMENT = 0xffff;
+	/** The compression method "stored". */
+	public static final int STORED = 0;
+	/** The compression method "deflated". */
+	public static final int DEFLATED = 8;
+
+	/** The file. */
+	private final RandomAccessFile raf;
+	/** The channel of the file. */
+	private final FileChannel channel;
+	/** The entries, in the order of the central directory. */
+	private final ArrayList<ArchiveEntry> entries;
+
+	/**
+	 * Opens a ZIP file and reads its central directory.
+	 * @param file The file
+	 * @throws IOException If the file cannot be read, or it is not supported
+	 */
+	public ZipDirectory(final File file) throws IOException {
+		this(file, true);
+	}
+
+	/**
+	 * Opens a ZIP file.
+	 * @param file The file
+	 * @param readDirectory If not set, the central directory is not read and getEntries()
+	 * is empty. Use this if the entries are known, for example from an ArchiveIndex
+	 * @throws IOException If the file cannot be read, or it is not supported
+	 */
+	public ZipDirectory(final File file, final boolean readDirectory) throws IOException {
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = this.raf.getChannel();
+		try {
+			if (readDirectory) {
+				this.entries = this.readCentralDirectory();
+			} else {
+				this.entries = new ArrayList<ArchiveEntry>();
+			}
+		} catch (IOException e) {
+			this.close();
+			throw e;
+		}
+	}
+
+	/** @return The entries of the file, in the order of the central directory. Do not modify this list. */
+	public final ArrayList<ArchiveEntry> getEntries() {
+		return this.entries;
+	}
+
+	/** Closes the file. */
+	public final void close() {
+		try {
+			this.raf.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	/** @return The entries in the central directory.
+	 * @throws IOException If the file cannot be read */
+	private ArrayList<ArchiveEntry> readCentralDirectory() throws IOException {
+		// look for the end of central directory record, at the end of the file
+		long length = this.channel.size();
+		int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT);
+		ByteBuffer tail = this.readAt(length - tailSize, tailSize);
+		int eocd = -1;
+		for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == EOCD_SIGNATURE) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd < 0) {
+			throw new IOException("Not a ZIP file");
+		}
+		int count = tail.getShort(eocd + 10) & 0xffff;
+		long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+		long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+		if (count == 0xffff || cdOffset == 0xffffffffL) {
+			throw new IOException("ZIP64 files are not supported");
+		}
+		if (cdOffset + cdSize > length) {
+			throw new IOException("Bad central directory");
+		}
+
+		ByteBuffer cd = this.readAt(cdOffset, (int) cdSize);
+		ArrayList<ArchiveEntry> list = new ArrayList<ArchiveEntry>(count);
+		int p = 0;
+		for (int i = 0; i < count; i++) {
+			if (p + 46 > cdSize || cd.getInt(p) != CD_SIGNATURE) {
+				throw new IOException("Bad central directory");
+			}
+			int flags = cd.getShort(p + 8) & 0xffff;
+			int method = cd.getShort(p + 10) & 0xffff;
+			long compressed = cd.getInt(p + 20) & 0xffffffffL;
+			long size = cd.getInt(p + 24) & 0xffffffffL;
+			int nameLen = cd.getShort(p + 28) & 0xffff;
+			int extraLen = cd.getShort(p + 30) & 0xffff;
+			int commentLen = cd.getShort(p + 32) & 0xffff;
+			long offset = cd.getInt(p + 42) & 0xffffffffL;
+			if (p + 46 + nameLen + extraLen + commentLen > cdSize) {
+				throw new IOException("Bad central directory");
+			}
+			byte[] name = new byte[nameLen];
+			cd.position(p + 46);
+			cd.get(name);
+			// encrypted entries are ignored
+			if ((flags & 1) == 0) {
+				list.add(new ArchiveEntry(decodeName(name), method, compressed, size, offset));
+			}
+			p += 46 + nameLen + extraLen + commentLen;
+		}
+		return list;
+	}
+
+	/** @param name The bytes of a name
+	 * @return The name as a string */
+	private static String decodeName(final byte[] name) {
+		try {
+			return new String(name, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return new String(name);
+		}
+	}
+
+	/** Reads a region of the file.
+	 * @param offset The offset of the region
+	 * @param size The size of the region
+	 * @return A little endian buffer with the contents of the region
+	 * @throws IOException If the region cannot be read */
+	private ByteBuffer readAt(final long offset, final int size) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		this.readFully(b, offset);
+		b.flip();
+		return b;
+	}
+
+	/** Fills a buffer with the contents of the file.
+	 * @param b The buffer
+	 * @param offset The offset in the file
+	 * @throws IOException If the buffer cannot be filled */
+	private void readFully(final ByteBuffer b, final long offset) throws IOException {
+		long pos = offset;
+		while (b.hasRemaining()) {
+			int read = this.channel.read(b, pos);
+			if (read < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+			pos += read;
+		}
+	}
+
+	/** @param e An entry
+	 * @return The offset of the data of the entry
+	 * @throws IOException If the local header cannot be read */
+	private long getDataOffset(final ArchiveEntry e) throws IOException {
+		synchronized (e) {
+			if (e.dataOffset < 0) {
+				long length = this.channel.size();
+				if (e.getHeaderOffset() + LOCAL_SIZE > length) {
+					throw new IOException("Bad local header: " + e.getName());
+				}
+				// the extra field of the local header may be different from the central directory
+				ByteBuffer h = this.readAt(e.getHeaderOffset(), LOCAL_SIZE);
+				if (h.getInt(0) != LOCAL_SIGNATURE) {
+					throw new IOException("Bad local header: " + e.getName());
+				}
+				long offset = e.getHeaderOffset() + LOCAL_SIZE + (h.getShort(26) & 0xffff) + (h.getShort(28) & 0xffff);
+				if (offset + e.getCompressedSize() > length) {
+					throw new IOException("Bad local header: " + e.getName());
+				}
+				e.dataOffset = offset;
+			}
+			return e.dataOffset;
+		}
+	}
+
+	/**
+	 * Reads an entry into a new array of exactly the size of the entry.
+	 * @param e The entry
+	 * @return The uncompressed contents of the entry
+	 * @throws IOException If the entry cannot be read
+	 */
+	public final byte[] read(final ArchiveEntry e) throws IOException {
+		byte[] data = new byte[(int) e.getSize()];
+		this.read(e, data);
+		return data;
+	}
+
+	/**
+	 * Gets the contents of an entry as a buffer.
+	 * Stored entries are mapped in memory. Deflated entries are inflated into a
+	 * pooled buffer: call release() after using the buffer.
+	 * @param e The entry
+	 * @return The uncompressed contents of the entry
+	 * @throws IOException If the entry cannot be read
+	 */
+	public final ByteBuffer getBuffer(final ArchiveEntry e) throws IOException {
+		if (e.getMethod() == STORED) {
+			return this.channel.map(FileChannel.MapMode.READ_ONLY, this.getDataOffset(e), e.getSize());
+		}
+		byte[] data = BufferPool.acquire((int) e.getSize());
+		try {
+			this.read(e, data);
+		} catch (IOException ex) {
+			BufferPool.release(data);
+			throw ex;
+		}
+		return ByteBuffer.wrap(data, 0, (int) e.getSize());
+	}
+
+	/** Returns a buffer from getBuffer() to the pool, if it was pooled.
+	 * @param b The buffer. Do not use it after calling this method */
+	public final void release(final ByteBuffer b) {
+		if (b != null && b.hasArray()) {
+			BufferPool.release(b.array());
+		}
+	}
+
+	/** Reads the uncompressed contents of an entry.
+	 * @param e The entry
+	 * @param data The array to fill. It must be at least e.getSize() bytes long
+	 * @throws IOException If the entry cannot be read */
+	private void read(final ArchiveEntry e, final byte[] data) throws IOException {
+		long offset = this.getDataOffset(e);
+		if (e.getMethod() == STORED) {
+			this.readFully(ByteBuffer.wrap(data, 0, (int) e.getSize()), offset);
+			return;
+		}
+		if (e.getMethod() != DEFLATED) {
+			throw new IOException("Compression method not supported: " + e.getMethod());
+		}
+		// raw inflaters may need an extra dummy byte at the end of the input
+		byte[] input = BufferPool.acquire((int) e.getCompressedSize() + 1);
+		Inflater inflater = new Inflater(true);
+		try {
+			this.readFully(ByteBuffer.wrap(input, 0, (int) e.getCompressedSize()), offset);
+			input[(int) e.getCompressedSize()] = 0;
+			inflater.setInput(input, 0, (int) e.getCompressedSize() + 1);
+			int n = 0;
+			while (n < e.getSize() && !inflater.finished()) {
+				int r = inflater.inflate(data, n, (int) e.getSize() - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += r;
+			}
+			if (n != e.getSize()) {
+				throw new IOException("Truncated entry: " + e.getName());
+			}
+		} catch (DataFormatException ex) {
+			throw new IOException("Bad entry " + e.getName() + ": " + ex.getMessage());
+		} finally {
+			inflater.end();
+			BufferPool.release(input);
+		}
+	}
+}
@@ -0,0 +1,464 @@
+package com.juanvvc.comicviewer.readers;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.juanvvc.comicviewer.MyLog;
+
+/** A drawable to zoom and pan a page.
+ *
+ * The page is a pyramid of tiles: level 0 is the page at full resolution,
+ * level 1 is the page at half the resolution, and so on. The drawable shows
+ * the tiles of the level that matches the current zoom, and only the tiles
+ * that are on the screen are decoded, in the background. While a tile is decoded,
+ * the tile of the previous level (or a preview of the whole page) is shown.
+ * Tiles that are not on the screen are evicted when they use too much memory,
+ * and all of them are evicted if the memory runs out.
+ *
+ * This way, small lettering on very large scans can be read without loading
+ * the page at full resolution in memory.
+ *
+ * The page is shown as it is, without the automatic rotation of landscape pages.
+ * Use this class from the UI thread: tiles are decoded in a background thread.
+ *
+ * @author juanvi
+ */
+public class ZoomDrawable extends Drawable {
+	/** A tag for logging. */
+	private static final String TAG = "ZoomDrawable";
+	/** The size of a tile, in pixels of its level. */
+	private static final int TILE_SIZE = 256;
+	/** The max width or height of the preview of the page. */
+	private static final int PREVIEW_SIZE = 1024;
+	/** Max number of bytes of the tiles in memory, besides the preview. */
+	private static final long MAX_BYTES = Runtime.getRuntime().maxMemory() / 8;
+	/** Max zoom: screen pixels for each pixel of the page at full resolution. */
+	private static final float MAX_SCALE = 2f;
+	/** Decodes the tiles of all the zoom drawables, one at a time. Created when needed. */
+	private static ExecutorService executor = null;
+	/** Runs invalidations on the UI thread. */
+	private static Handler uiHandler = null;
+
+	/** The source of the tiles. */
+	private final RegionSource source;
+	/** The width of the page at full resolution. */
+	private final int width;
+	/** The height of the page at full resolution. */
+	private final int height;
+	/** A preview of the whole page. */
+	private final Bitmap preview;
+	/** The sample size of the preview. */
+	private final int previewSample;
+	/** The tiles in memory, by key, from the least to the most recently used. */
+	private final LinkedHashMap<Long, Bitmap> tiles = new LinkedHashMap<Long, Bitmap>(16, 0.75f, true);
+	/** Number of bytes of the tiles in memory. Guarded by tiles. */
+	private long tileBytes = 0;
+	/** The keys of the tiles that are being decoded. */
+	private final HashSet<Long> pending = new HashSet<Long>();
+	/** Screen pixels for each pixel of the page at full resolution. Negative if not set yet. */
+	private float scale = -1;
+	/** The horizontal position of the page on the screen. */
+	private float tx = 0;
+	/** The vertical position of the page on the screen. */
+	private float ty = 0;
+	/** The level of the tiles on the screen, or -1 if the screen shows the preview. */
+	private volatile int visibleLevel = -1;
+	/** The first column of tiles on the screen. */
+	private volatile int visibleLeft = 0;
+	/** The first row of tiles on the screen. */
+	private volatile int visibleTop = 0;
+	/** The last column of tiles on the screen. */
+	private volatile int visibleRight = -1;
+	/** The last row of tiles on the screen. */
+	private volatile int visibleBottom = -1;
+	/** If set, the drawable was closed. */
+	private volatile boolean closed = false;
+	/** The area of a bitmap on the screen. Reused while drawing. */
+	private final RectF dst = new RectF();
+	/** The paint to draw the bitmaps. */
+	private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	/**
+	 * Creates a zoom drawable. This decodes a preview of the page: do not call it from the UI thread.
+	 * @param s The source of the tiles. The drawable closes it
+	 * @throws IOException If the preview cannot be decoded
+	 */
+	public ZoomDrawable(final RegionSource s) throws IOException {
+		this.source = s;
+		this.width = s.getWidth();
+		this.height = s.getHeight();
+		int sample = 1;
+		while (Math.max(this.width, this.height) / sample > PREVIEW_SIZE) {
+			sample *= 2;
+		}
+		this.previewSample = sample;
+		this.preview = s.decodeRegion(new Rect(0, 0, this.width, this.height), sample);
+		if (this.preview == null) {
+			s.close();
+			throw new IOException("Cannot decode the page");
+		}
+	}
+
+	/** Shows the whole page on the screen. */
+	public final void fit() {
+		this.reset();
+		this.invalidateSelf();
+	}
+
+	/** Moves the page to show the whole page on the screen, without invalidating the drawable. */
+	private void reset() {
+		Rect b = this.getBounds();
+		this.scale = this.getMinScale();
+		this.tx = b.left + (b.width() - this.width * this.scale) / 2;
+		this.ty = b.top + (b.height() - this.height * this.scale) / 2;
+	}
+
+	/** @return The scale that shows the whole page */
+	private float getMinScale() {
+		Rect b = this.getBounds();
+		return Math.min(1f * b.width() / this.width, 1f * b.height() / this.height);
+	}
+
+	/** @return True if the page is zoomed in */
+	public final boolean isZoomed() {
+		return this.scale > this.getMinScale() * 1.01f;
+	}
+
+	/**
+	 * Zooms the page.
+	 * @param factor The change of the zoom level
+	 * @param fx The horizontal position on the screen that does not move
+	 * @param fy The vertical position on the screen that does not move
+	 */
+	public final void zoomBy(final float factor, final float fx, final float fy) {
+		if (this.getBounds().isEmpty()) {
+			return;
+		}
+		if (this.scale < 0) {
+			this.reset();
+		}
+		float s = Math.max(this.getMinScale(), Math.min(MAX_SCALE, this.scale * factor));
+		this.tx = fx - (fx - this.tx) * s / this.scale;
+		this.ty = fy - (fy - this.ty) * s / this.scale;
+		this.scale = s;
+		this.clamp();
+		this.invalidateSelf();
+	}
+
+	/**
+	 * Moves the page.
+	 * @param dx Horizontal distance, in pixels of the screen
+	 * @param dy Vertical distance, in pixels of the screen
+	 */
+	public final void panBy(final float dx, final float dy) {
+		if (this.getBounds().isEmpty()) {
+			return;
+		}
+		if (this.scale < 0) {
+			this.reset();
+		}
+		this.tx += dx;
+		this.ty += dy;
+		this.clamp();
+		this.invalidateSelf();
+	}
+
+	/** Keeps the page on the screen: centered if it is smaller than the screen, covering the screen if not. */
+	private void clamp() {
+		Rect b = this.getBounds();
+		float w = this.width * this.scale;
+		float h = this.height * this.scale;
+		if (w <= b.width()) {
+			this.tx = b.left + (b.width() - w) / 2;
+		} else {
+			this.tx = Math.min(b.left, Math.max(b.right - w, this.tx));
+		}
+		if (h <= b.height()) {
+			this.ty = b.top + (b.height() - h) / 2;
+		} else {
+			this.ty = Math.min(b.top, Math.max(b.bottom - h, this.ty));
+		}
+	}
+
+	@Override
+	protected final void onBoundsChange(final Rect bounds) {
+		// the screen changed: show the whole page again
+		this.scale = -1;
+	}
+
+	@Override
+	public final void draw(final Canvas canvas) {
+		if (this.closed || this.getBounds().isEmpty()) {
+			return;
+		}
+		if (this.scale < 0) {
+			this.reset();
+		}
+		this.dst.set(this.tx, this.ty, this.tx + this.width * this.scale, this.ty + this.height * this.scale);
+		canvas.drawBitmap(this.preview, null, this.dst, this.paint);
+
+		// the level with the lowest resolution that is not lower than the resolution of the screen
+		int level = 0;
+		while ((1 << (level + 1)) * this.scale <= 1) {
+			level++;
+		}
+		int sample = 1 << level;
+		if (sample >= this.previewSample) {
+			// the preview is enough
+			this.visibleLevel = -1;
+			return;
+		}
+
+		// the tiles on the screen
+		Rect b = this.getBounds();
+		int ts = TILE_SIZE * sample;
+		int left = (int) Math.max(0, (b.left - this.tx) / this.scale);
+		int top = (int) Math.max(0, (b.top - this.ty) / this.scale);
+		int right = (int) Math.min(this.width, (b.right - this.tx) / this.scale);
+		int bottom = (int) Math.min(this.height, (b.bottom - this.ty) / this.scale);
+		if (right <= left || bottom <= top) {
+			return;
+		}
+		int c0 = left / ts;
+		int c1 = (right - 1) / ts;
+		int r0 = top / ts;
+		int r1 = (bottom - 1) / ts;
+		this.visibleLeft = c0;
+		this.visibleTop = r0;
+		this.visibleRight = c1;
+		this.visibleBottom = r1;
+		this.visibleLevel = level;
+
+		synchronized (this.tiles) {
+			// first, the tiles of the previous level in place of the missing tiles
+			if (sample * 2 < this.previewSample) {
+				for (int i = r0; i <= r1; i++) {
+					for (int j = c0; j <= c1; j++) {
+						if (!this.tiles.containsKey(key(level, j, i))) {
+							Bitmap p = this.tiles.get(key(level + 1, j / 2, i / 2));
+							if (p != null) {
+								this.drawTile(canvas, p, level + 1, j / 2, i / 2);
+							}
+						}
+					}
+				}
+			}
+			// then, the tiles of this level
+			for (int i = r0; i <= r1; i++) {
+				for (int j = c0; j <= c1; j++) {
+					Bitmap t = this.tiles.get(key(level, j, i));
+					if (t != null) {
+						this.drawTile(canvas, t, level, j, i);
+					} else {
+						this.request(level, j, i);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param level The level of a tile
+	 * @param col The column of the tile
+	 * @param row The row of the tile
+	 * @return A key for the tile
+	 */
+	private static Long key(final int level, final int col, final int row) {
+		return Long.valueOf(((long) level << 48) | ((long) row << 24) | col);
+	}
+
+	/**
+	 * @param level The level of a tile
+	 * @param col The column of the tile
+	 * @param row The row of the tile
+	 * @return The region of the tile, in pixels of the page at full resolution
+	 */
+	private Rect getTileRegion(final int level, final int col, final int row) {
+		int ts = TILE_SIZE << level;
+		return new Rect(col * ts, row * ts, Math.min(this.width, (col + 1) * ts), Math.min(this.height, (row + 1) * ts));
+	}
+
+	/**
+	 * Draws a tile on its position of the screen.
+	 * @param canvas The canvas
+	 * @param t The tile
+	 * @param level The level of the tile
+	 * @param col The column of the tile
+	 * @param row The row of the tile
+	 */
+	private void drawTile(final Canvas canvas, final Bitmap t, final int level, final int col, final int row) {
+		int ts = TILE_SIZE << level;
+		this.dst.set(
+				this.tx + col * ts * this.scale,
+				this.ty + row * ts * this.scale,
+				this.tx + Math.min(this.width, (col + 1) * ts) * this.scale,
+				this.ty + Math.min(this.height, (row + 1) * ts) * this.scale);
+		canvas.drawBitmap(t, null, this.dst, this.paint);
+	}
+
+	/**
+	 * @param level The level of a tile
+	 * @param col The column of the tile
+	 * @param row The row of the tile
+	 * @return True if the tile is on the screen
+	 */
+	private boolean isVisible(final int level, final int col, final int row) {
+		return level == this.visibleLevel && col >= this.visibleLeft && col <= this.visibleRight
+				&& row >= this.visibleTop && row <= this.visibleBottom;
+	}
+
+	/**
+	 * Decodes a tile in the background, if it is not being decoded yet.
+	 * If the tile leaves the screen before it is decoded, it is not decoded.
+	 * @param level The level of the tile
+	 * @param col The column of the tile
+	 * @param row The row of the tile
+	 */
+	private void request(final int level, final int col, final int row) {
+		final Long k = key(level, col, row);
+		synchronized (this.pending) {
+			if (this.pending.contains(k)) {
+				return;
+			}
+			this.pending.add(k);
+		}
+		getExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					if (closed || !isVisible(level, col, row)) {
+						return;
+					}
+					Bitmap t = source.decodeRegion(getTileRegion(level, col, row), 1 << level);
+					if (t == null) {
+						return;
+					}
+					synchronized (tiles) {
+						if (closed) {
+							t.recycle();
+							return;
+						}
+						Bitmap old = tiles.put(k, t);
+						if (old != null) {
+							tileBytes -= sizeOf(old);
+							old.recycle();
+						}
+						tileBytes += sizeOf(t);
+						trim(MAX_BYTES);
+					}
+					uiHandler.post(new Runnable() {
+						public void run() {
+							invalidateSelf();
+						}
+					});
+				} catch (IOException e) {
+					MyLog.w(TAG, "Cannot decode tile: " + e.toString());
+				} catch (OutOfMemoryError e) {
+					MyLog.w(TAG, "Out of memory decoding a tile");
+					synchronized (tiles) {
+						trim(0);
+					}
+				} finally {
+					synchronized (pending) {
+						pending.remove(k);
+					}
+				}
+			}
+		});
+	}
+
+	/** Removes the least recently used tiles that are not on the screen, until the tiles
+	 * use at most some bytes. Tiles on the screen are never removed.
+	 * Call this method synchronized on tiles.
+	 * @param maxBytes The max number of bytes of the tiles. 0 removes all the tiles that are not on the screen */
+	private void trim(final long maxBytes) {
+		Iterator<Map.Entry<Long, Bitmap>> itr = this.tiles.entrySet().iterator();
+		while (this.tileBytes > maxBytes && itr.hasNext()) {
+			Map.Entry<Long, Bitmap> e = itr.next();
+			long k = e.getKey().longValue();
+			if (!this.isVisible((int) (k >> 48), (int) (k & 0xffffff), (int) ((k >> 24) & 0xffffff))) {
+				this.tileBytes -= sizeOf(e.getValue());
+				e.getValue().recycle();
+				itr.remove();
+			}
+		}
+	}
+
+	/** @param b A bitmap
+	 * @return The number of bytes of the bitmap */
+	private static long sizeOf(final Bitmap b) {
+		return ((long) b.getRowBytes()) * b.getHeight();
+	}
+
+	/** @return The executor that decodes the tiles. */
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			uiHandler = new Handler(Looper.getMainLooper());
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable runnable) {
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+							runnable.run();
+						}
+					}, TAG);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/** Releases the memory of this drawable and closes its source. Do not use the drawable after calling this method. */
+	public final void close() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		synchronized (this.tiles) {
+			for (Bitmap t: this.tiles.values()) {
+				t.recycle();
+			}
+			this.tiles.clear();
+			this.tileBytes = 0;
+		}
+		this.preview.recycle();
+		// after the tile that is being decoded, if any
+		getExecutor().execute(new Runnable() {
+			public void run() {
+				source.close();
+			}
+		});
+	}
+
+	@Override
+	public final int getOpacity() {
+		return PixelFormat.TRANSLUCENT;
+	}
+
+	@Override
+	public void setAlpha(final int alpha) {
+	}
+
+	@Override
+	public void setColorFilter(final ColorFilter cf) {
+	}
+}
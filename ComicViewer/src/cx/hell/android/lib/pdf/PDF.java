@@ -11,6 +11,7 @@ import java.util.Map;
 
 import android.content.Context;
 import android.content.res.AssetManager;
+import android.graphics.Bitmap;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
@@ -77,6 +78,14 @@ public class PDF {
     }
 
     public static native void init(int maxStore);
+
+    /**
+     * Each PDF object has its own native context: different objects may render
+     * at the same time from different threads, but each object renders one page at a time.
+     * Old versions of the native library do not have this method.
+     * @return true if the native library supports rendering from several threads
+     */
+    public static native boolean isThreadSafe();
     
     public static void setApplicationContext(Context context) {
         PDF.applicationContext = context;
@@ -398,6 +407,20 @@ public class PDF {
 	 */
 	synchronized public native int[] renderPage(int n, int zoom, int left, int top, 
 			int rotation, boolean skipImages, PDF.Size rect);
+
+	/**
+	 * Render a page into the pixels of a bitmap, without intermediate Java arrays.
+	 * The size of the bitmap is the size of the rendered region.
+	 * Old versions of the native library do not have this method.
+	 * @param n page number, starting from 0
+	 * @param zoom page size scaling
+	 * @param left left edge
+	 * @param top top edge
+	 * @param bitmap a mutable RGB_565 or ARGB_8888 bitmap
+	 * @return error code, 0 on success
+	 */
+	synchronized public native int renderPageToBitmap(int n, int zoom, int left, int top,
+			int rotation, boolean skipImages, Bitmap bitmap);
 	
 	/**
 	 * Get PDF page size, store it in size struct, return error code.